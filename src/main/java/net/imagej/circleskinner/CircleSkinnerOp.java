@@ -28,6 +28,7 @@
  */
 package net.imagej.circleskinner;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -41,29 +42,50 @@ import org.scijava.plugin.Plugin;
 import org.scijava.thread.ThreadService;
 import org.scijava.ui.UIService;
 
+import ij.Prefs;
 import ij.measure.ResultsTable;
 import net.imagej.Dataset;
 import net.imagej.ImgPlus;
 import net.imagej.axis.Axes;
 import net.imagej.circleskinner.analyze.CircleAnalyzerOp;
 import net.imagej.circleskinner.gui.CircleSkinnerGUI;
+import net.imagej.circleskinner.hough.AccumulatorType;
+import net.imagej.circleskinner.hough.BitMask;
+import net.imagej.circleskinner.hough.CircleStencil;
+import net.imagej.circleskinner.hough.FftHoughTransformOp;
 import net.imagej.circleskinner.hough.HoughCircle;
 import net.imagej.circleskinner.hough.HoughCircle.Stats;
 import net.imagej.circleskinner.hough.HoughCircleDetectorOp;
 import net.imagej.circleskinner.hough.HoughCircleDogDetectorOp;
 import net.imagej.circleskinner.hough.HoughCircleLocalMaxDetectorOp;
+import net.imagej.circleskinner.hough.HoughCircleProjectionDetectorOp;
+import net.imagej.circleskinner.hough.HoughCircleStreamingDetectorOp;
 import net.imagej.circleskinner.hough.HoughTransformOp;
+import net.imagej.circleskinner.hough.NonMaximaSuppression;
+import net.imagej.circleskinner.hough.RandomizedHoughCircleDetectorOp;
+import net.imagej.circleskinner.hough.TwoStageHoughCircleDetectorOp;
+import net.imagej.ops.Op;
 import net.imagej.ops.OpService;
 import net.imagej.ops.special.computer.AbstractUnaryComputerOp;
 import net.imagej.ops.special.function.Functions;
+import net.imagej.ops.special.function.UnaryFunctionOp;
 import net.imagej.ops.special.inplace.Inplaces;
+import net.imglib2.Cursor;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealPoint;
 import net.imglib2.histogram.Histogram1d;
 import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.NativeType;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
@@ -85,6 +107,27 @@ public class CircleSkinnerOp< T extends RealType< T > > extends AbstractUnaryCom
 	private static final String CIRCLE_THRESHOLD_COLUMN = "Threshold adj.";
 	public static final String CIRCLE_SENSITIVITY_COLUMN = "Sensitivity";
 
+	/**
+	 * By how much the sensitivity is relaxed for the coarse detection in
+	 * coarse-to-fine mode, so that we do not miss candidates that would pass
+	 * at full resolution.
+	 */
+	private static final double COARSE_SENSITIVITY_FACTOR = 2.;
+
+	/**
+	 * The percentage of image pixels that we aim to keep as voters when the
+	 * voter fraction is automatic.
+	 */
+	private static final double TARGET_PERCENT_VOTERS = 2.;
+
+	/**
+	 * The cost of one element of one FFT stage, relative to the cost of one
+	 * vote, used to choose between the FFT Hough transform and voting. There
+	 * is one transform per radius plane, since a pair of planes takes one
+	 * forward and one inverse transform.
+	 */
+	private static final double FFT_COST_FACTOR = 2.;
+
 	/*
 	 * SERVICES.
 	 */
@@ -151,6 +194,173 @@ public class CircleSkinnerOp< T extends RealType< T > > extends AbstractUnaryCom
 	@Parameter( label = "Keep last vote image", required = false, type = ItemIO.INPUT )
 	private boolean doKeepVoteImg = false;
 
+	@Parameter( label = "Vote along ridge normals", required = false, type = ItemIO.INPUT, description = "If true, each pixel only votes for the circle centers located along the ridge normal, instead of on a full circle." )
+	private boolean voteAlongNormals = false;
+
+	@Parameter( label = "Normal angular tolerance (degrees)", min = "0", required = false, type = ItemIO.INPUT )
+	private double normalTolerance = 10.;
+
+	/**
+	 * The pixel type of the vote image. If <code>null</code>, the default,
+	 * the smallest integer type that cannot saturate for the max radius is
+	 * used. If a cache directory is set, the disk-cached accumulator is used
+	 * instead when the vote image would take more than half of the max heap
+	 * size. The stored vote image is then an
+	 * {@link net.imglib2.type.numeric.integer.UnsignedShortType} or
+	 * {@link net.imglib2.type.numeric.integer.IntType} image. Set it to
+	 * {@link AccumulatorType#DOUBLE} to get the
+	 * {@link net.imglib2.type.numeric.real.DoubleType} vote image of previous
+	 * versions.
+	 */
+	@Parameter( label = "Vote accumulator type", required = false, type = ItemIO.INPUT )
+	private AccumulatorType accumulatorType = null;
+
+	/**
+	 * If <code>true</code>, the Hough transform and the detection are
+	 * performed one radius at a time, and the vote image is never stored in
+	 * full. Only used with the {@link DetectionMethod#FAST} detection method
+	 * and full-circle voting. The vote image cannot be kept in this mode.
+	 */
+	@Parameter( label = "Stream votes (low memory)", required = false, type = ItemIO.INPUT )
+	private boolean streamVotes = false;
+
+	/**
+	 * If <code>true</code>, circles are first detected in a downsampled
+	 * image, then refined at full resolution around each candidate. The
+	 * downsampling factor is derived from the circle thickness and the min
+	 * radius. The vote image kept in this mode is the downsampled one.
+	 */
+	@Parameter( label = "Coarse-to-fine detection", required = false, type = ItemIO.INPUT )
+	private boolean coarseToFine = false;
+
+	/**
+	 * If <code>true</code>, the thresholded ridges are thinned to their
+	 * centerline before the Hough transform. Sensitivity values are corrected
+	 * for the lower number of votes, so that they keep the same meaning.
+	 */
+	@Parameter( label = "Thin ridges", required = false, type = ItemIO.INPUT )
+	private boolean thinRidges = false;
+
+	/**
+	 * The fraction of the thresholded pixels that vote in the Hough
+	 * transform. If 0, it is derived from the fraction of pixels retained
+	 * after thresholding, so that dense images are subsampled and sparse ones
+	 * are not. Sensitivity values are corrected for the lower number of votes.
+	 * Only used with the standard Hough transform.
+	 */
+	@Parameter( label = "Voter fraction (0 for automatic)", min = "0", max = "1", required = false, type = ItemIO.INPUT )
+	private double voterFraction = 1.;
+
+	/**
+	 * If <code>true</code>, voters are evenly spread over the image instead of
+	 * being picked independently at random.
+	 */
+	@Parameter( label = "Stratified voter subsampling", required = false, type = ItemIO.INPUT )
+	private boolean stratifiedSubsampling = false;
+
+	@Parameter( label = "Voter subsampling seed", required = false, type = ItemIO.INPUT )
+	private long subsamplingSeed = 1l;
+
+	/**
+	 * If <code>true</code>, circles detected with subsampled voters are
+	 * re-detected with all the voters, around each of them.
+	 */
+	@Parameter( label = "Refine at full voter density", required = false, type = ItemIO.INPUT )
+	private boolean refineAtFullDensity = true;
+
+	/**
+	 * If <code>true</code>, each voter votes with its tubeness value relative
+	 * to the threshold, instead of 1. Sensitivity values are corrected for
+	 * the mean vote weight. Only used when the thresholding and the voting are
+	 * fused, that is with the standard Hough transform, without ridge thinning
+	 * and with a set voter fraction.
+	 */
+	@Parameter( label = "Weight votes by tubeness", required = false, type = ItemIO.INPUT )
+	private boolean weightVotes = false;
+
+	/**
+	 * Where to write the cells of the vote image when it is disk cached. The
+	 * vote image is disk cached if the accumulator type is
+	 * {@link AccumulatorType#DISK_INT}, or if it is automatic, this directory
+	 * is set, and the vote image would take more than half of the max heap
+	 * size. With {@link AccumulatorType#DISK_INT} and no directory, a
+	 * temporary directory is used.
+	 */
+	@Parameter( label = "Vote cache directory", required = false, style = "directory", type = ItemIO.INPUT )
+	private File cacheDirectory = null;
+
+	@Parameter( label = "Vote cache memory budget (MB)", min = "1", required = false, type = ItemIO.INPUT )
+	private int cacheBudget = 1024;
+
+	/**
+	 * If not <code>null</code>, only circles centered in this region (X and Y,
+	 * in pixels) are detected. Only the region and the margin needed to get
+	 * all the voters of these circles are filtered and thresholded, so the
+	 * Otsu threshold is computed on this part of the image. If the
+	 * accumulator type is automatic, votes are only computed where the
+	 * detector needs them.
+	 */
+	@Parameter( label = "Region of interest", required = false, type = ItemIO.INPUT )
+	private Interval roi = null;
+
+	/**
+	 * If <code>true</code>, the standard Hough transform is computed with FFTs
+	 * instead of voting when this is expected to be faster, that is for dense
+	 * thresholded images. Both give the same vote image. Not used with
+	 * subsampled voters, votes along normals, weighted votes or a sparse,
+	 * disk-cached or lazy accumulator.
+	 */
+	@Parameter( label = "Use FFT Hough transform when faster", required = false, type = ItemIO.INPUT )
+	private boolean allowFftHoughTransform = true;
+
+	/**
+	 * If <code>true</code> and the radius step is larger than 1, each vote of
+	 * the standard Hough transform is split between the two nearest radius
+	 * planes, and circle radiuses are refined accordingly. Circles whose
+	 * radius falls between two planes are then not missed, so that larger
+	 * radius steps can be used. Votes are accumulated as doubles. Not used
+	 * with votes along normals.
+	 */
+	@Parameter( label = "Split votes between radius planes", required = false, type = ItemIO.INPUT )
+	private boolean splitRadiusVotes = false;
+
+	/**
+	 * If <code>true</code>, circles are first detected with a coarse radius
+	 * step over the whole radius range, with a relaxed sensitivity. Each
+	 * candidate is then re-detected with the radius step, only in a small
+	 * region around it and on a small range of radiuses. The vote image kept
+	 * in this mode is the coarse one.
+	 */
+	@Parameter( label = "Coarse radius sweep", required = false, type = ItemIO.INPUT )
+	private boolean coarseRadiusSweep = false;
+
+	/**
+	 * The radius step of the coarse sweep. It is rounded down to a multiple of
+	 * the radius step. If 0, it is derived from the circle thickness.
+	 */
+	@Parameter( label = "Coarse radius step (0 for auto)", required = false, min = "0", type = ItemIO.INPUT )
+	private int coarseRadiusStep = 0;
+
+	/**
+	 * The sigma of the difference of Gaussians along the radius, in radius
+	 * steps, with the {@link DetectionMethod#ACCURATE} detection method. If
+	 * negative, the in-plane sigma is used. If 0, the vote image is only
+	 * smoothed in-plane.
+	 */
+	@Parameter( label = "DoG sigma along radius (radius steps, <0 for in-plane sigma)", required = false, type = ItemIO.INPUT )
+	private double dogRadiusSigma = -1.;
+
+	/**
+	 * If <code>true</code>, the peaks of the vote image are refined with a
+	 * parabola fitted separately along each dimension, instead of a quadratic
+	 * fit. This is cheaper, but peaks cannot move to another pixel. It
+	 * applies to the {@link DetectionMethod#FAST},
+	 * {@link DetectionMethod#ACCURATE} and {@link DetectionMethod#PROJECTION}
+	 * detection methods.
+	 */
+	@Parameter( label = "Parabolic peak fit", required = false, type = ItemIO.INPUT )
+	private boolean parabolicFit = false;
+
 
 	/*
 	 * OUTPUT PARAMETERS.
@@ -162,7 +372,7 @@ public class CircleSkinnerOp< T extends RealType< T > > extends AbstractUnaryCom
 	/**
 	 * Storage for the vote image.
 	 */
-	private Img< DoubleType > voteImg;
+	private Img< ? extends RealType< ? > > voteImg;
 
 	/**
 	 * Stores the percentage (from 0 to 100) of pixels retained in the
@@ -170,6 +380,11 @@ public class CircleSkinnerOp< T extends RealType< T > > extends AbstractUnaryCom
 	 */
 	private double percentPixelsInThresholded;
 
+	/**
+	 * The number of voters found by the last Hough transform.
+	 */
+	private long nVoters;
+
 	/*
 	 * METHODS.
 	 */
@@ -179,7 +394,7 @@ public class CircleSkinnerOp< T extends RealType< T > > extends AbstractUnaryCom
 		return circles;
 	}
 
-	public Img< DoubleType > getVoteImg()
+	public Img< ? extends RealType< ? > > getVoteImg()
 	{
 		return voteImg;
 	}
@@ -309,6 +524,53 @@ public class CircleSkinnerOp< T extends RealType< T > > extends AbstractUnaryCom
 	 * @return the list of circles ordered by increasing sensitivity.
 	 */
 	private List< HoughCircle > segmentCircles( final RandomAccessibleInterval< T > aSegmentationChannel )
+	{
+		if ( null == roi )
+			return segmentCircles( aSegmentationChannel, null );
+
+		/*
+		 * Crop the channel to the ROI, plus a margin containing all the voters
+		 * of the circles centered in the ROI and the support of the filter.
+		 */
+
+		final Interval crop = Intervals.intersect( Intervals.expand( roi, maxRadius + 2 * circleThickness ), aSegmentationChannel );
+		if ( Intervals.isEmpty( crop ) )
+			return Collections.emptyList();
+
+		// The ROI in the cropped image, plus one pixel for the detector border.
+		final long[] min = new long[ 2 ];
+		final long[] max = new long[ 2 ];
+		for ( int d = 0; d < 2; d++ )
+		{
+			min[ d ] = Math.max( 0, roi.min( d ) - 1 - crop.min( d ) );
+			max[ d ] = Math.min( crop.dimension( d ) - 1, roi.max( d ) + 1 - crop.min( d ) );
+		}
+		final Interval detectionInterval = new FinalInterval( min, max );
+
+		final List< HoughCircle > cropCircles = segmentCircles( Views.zeroMin( Views.interval( aSegmentationChannel, crop ) ), detectionInterval );
+		final List< HoughCircle > aCircles = new ArrayList<>( cropCircles.size() );
+		for ( final HoughCircle circle : cropCircles )
+		{
+			final double x = circle.getDoublePosition( 0 ) + crop.min( 0 );
+			final double y = circle.getDoublePosition( 1 ) + crop.min( 1 );
+			if ( x < roi.min( 0 ) || x > roi.max( 0 ) || y < roi.min( 1 ) || y > roi.max( 1 ) )
+				continue;
+			aCircles.add( new HoughCircle( new RealPoint( x, y ), circle.getRadius(), circle.getThickness(), circle.getSensitivity() ) );
+		}
+		return aCircles;
+	}
+
+	/**
+	 * Segments the specified channel and find the circles it contains.
+	 *
+	 * @param aSegmentationChannel
+	 *            the channel to segment as a RAI.
+	 * @param detectionInterval
+	 *            if not <code>null</code>, the region (X and Y) in which to
+	 *            look for circle centers with the standard Hough transform.
+	 * @return the list of circles ordered by increasing sensitivity.
+	 */
+	private List< HoughCircle > segmentCircles( final RandomAccessibleInterval< T > aSegmentationChannel, final Interval detectionInterval )
 	{
 		final double sigma = circleThickness / 2. / Math.sqrt( aSegmentationChannel.numDimensions() );
 
@@ -321,11 +583,12 @@ public class CircleSkinnerOp< T extends RealType< T > > extends AbstractUnaryCom
 		@SuppressWarnings( { "rawtypes", "unchecked" } )
 		final TubenessOp< T > tubenessOp =
 				( TubenessOp ) Functions.unary( ops, TubenessOp.class, RandomAccessibleInterval.class,
-						aSegmentationChannel, sigma, Util.getArrayFromValue( 1., aSegmentationChannel.numDimensions() ) );
+						aSegmentationChannel, sigma, Util.getArrayFromValue( 1., aSegmentationChannel.numDimensions() ), voteAlongNormals || thinRidges || detectionMethod.usesNormals() );
 		this.cancelableOp = tubenessOp;
 		final Img< DoubleType > H = tubenessOp.calculate( aSegmentationChannel );
 		if ( isCanceled() )
 			return Collections.emptyList();
+		final Img< DoubleType > normals = tubenessOp.getRidgeNormals();
 
 		/*
 		 * Threshold with Otsu.
@@ -336,55 +599,628 @@ public class CircleSkinnerOp< T extends RealType< T > > extends AbstractUnaryCom
 		final Histogram1d< DoubleType > histo = ops.image().histogram( H );
 		final DoubleType otsuThreshold = ops.threshold().otsu( histo );
 		otsuThreshold.mul( thresholdFactor / 100. );
-		final IterableInterval< BitType > thresholded = ops.threshold().apply( H, otsuThreshold );
+		Img< BitType > thresholded = null;
+		if ( thinRidges && null != normals )
+		{
+			@SuppressWarnings( { "rawtypes", "unchecked" } )
+			final UnaryFunctionOp< RandomAccessibleInterval< DoubleType >, Img< BitType > > thinningOp =
+					( UnaryFunctionOp ) Functions.unary( ops, RidgeThinningOp.class, Img.class,
+							H, normals, otsuThreshold.get() );
+			thresholded = thinningOp.calculate( H );
+		}
 
-		percentPixelsInThresholded = 100. * ops().stats().sum( thresholded ).getRealDouble() / thresholded.size();
+		/*
+		 * Hough transform and detection.
+		 */
+
+		final Img< DoubleType > votingNormals = voteAlongNormals ? normals : null;
+		final int factor = coarseToFineFactor();
+		final boolean useCoarseToFine = detectionMethod.usesVoteImage() && coarseToFine && factor > 1;
+		final boolean useStreaming = detectionMethod.usesVoteImage() && !useCoarseToFine && streamVotes && detectionMethod == DetectionMethod.FAST && null == votingNormals;
+		final int sweepStep = coarseRadiusSweepStep();
+		final boolean useRadiusSweep = detectionMethod.usesVoteImage() && !useCoarseToFine && !useStreaming && coarseRadiusSweep && sweepStep > stepRadius;
+		final boolean useStandard = detectionMethod.usesVoteImage() && !useCoarseToFine && !useStreaming && !useRadiusSweep;
 
 		/*
-		 * Hough transform
+		 * With the standard Hough transform, the tubeness image is thresholded
+		 * while voting, and retained pixels are counted at the same time, so
+		 * the mask is not built. We cannot do it if the voter fraction is
+		 * derived from this count, or if ridges are thinned. Unweighted votes
+		 * go through the mask instead when the FFT Hough transform is faster,
+		 * since it votes from the mask. Weighted votes need the tubeness
+		 * values, so they are only cast when the stages are fused.
 		 */
 
-		statusService.showStatus( "Computing Hough transform..." );
+		final boolean fft = useStandard
+				&& allowFftHoughTransform
+				&& !weightVotes
+				&& voterFraction >= 1.
+				&& null == votingNormals
+				&& !( splitRadiusVotes && stepRadius > 1 )
+				&& null == detectionInterval
+				&& isFftFaster( ( null == thresholded ) ? fractionAbove( histo, otsuThreshold ) : ( double ) BitMask.count( thresholded ) / thresholded.size(),
+						H.dimension( 0 ), H.dimension( 1 ) );
+		final boolean fused = useStandard && !thinRidges && voterFraction > 0. && !fft;
+		if ( !fused )
+		{
+			if ( null == thresholded )
+			{
+				// Packed in bits, so that voters skip empty regions quickly.
+				thresholded = BitMask.threshold( H, otsuThreshold.get(), Prefs.getThreads(), threadService.getExecutorService() );
+			}
+			percentPixelsInThresholded = 100. * BitMask.count( thresholded ) / thresholded.size();
+		}
 
-		@SuppressWarnings( { "unchecked", "rawtypes" } )
-		final HoughTransformOp< BitType > houghTransformOp =
-				( HoughTransformOp ) Functions.unary( ops, HoughTransformOp.class, RandomAccessibleInterval.class,
-						thresholded, minRadius, maxRadius, stepRadius );
-		this.cancelableOp = houghTransformOp;
+		/*
+		 * Detectors expect each circle to get about one vote per pixel of its
+		 * crown. When fewer votes are cast, we run them with a sensitivity
+		 * scaled accordingly, and scale back the sensitivity of the circles
+		 * they return.
+		 */
 
-		if ( null == voteImg )
-			voteImg = houghTransformOp.createOutput( thresholded );
+		final double voteScale = voteScale();
+		final double aSensitivity = sensitivity / voteScale;
+
+		List< HoughCircle > aCircles;
+		if ( !detectionMethod.usesVoteImage() )
+			aCircles = detectWithoutVoteImage( thresholded, normals, aSensitivity );
+		else if ( useCoarseToFine )
+			aCircles = coarseToFineHoughTransform( thresholded, votingNormals, factor, aSensitivity );
+		else if ( useRadiusSweep )
+			aCircles = radiusSweepHoughTransform( thresholded, votingNormals, sweepStep, aSensitivity );
+		else if ( useStreaming )
+			aCircles = streamHoughTransform( thresholded, aSensitivity );
 		else
-			for ( final DoubleType p : voteImg )
-				p.setZero();
-
-		houghTransformOp.compute( thresholded, voteImg );
+		{
+			final double fraction = voterFraction();
+			/*
+			 * Detectors can stop after the best circles if the list they return
+			 * is the one we truncate: no refinement around candidates, and no
+			 * filtering on the region of interest afterwards.
+			 */
+			final boolean refines = fraction < 1. && refineAtFullDensity;
+			final int maxCount = ( refines || null != detectionInterval ) ? Integer.MAX_VALUE : maxNDetections;
+			final HoughSettings settings = new HoughSettings( minRadius, maxRadius, stepRadius, circleThickness, aSensitivity / fraction );
+			settings.normals = votingNormals;
+			settings.fraction = fraction;
+			settings.fft = fft;
+			settings.detectionInterval = detectionInterval;
+			settings.maxCount = maxCount;
+			settings.storeVoteImg = true;
+			if ( fused )
+			{
+				settings.threshold = otsuThreshold.get();
+				settings.weighted = weightVotes;
+				aCircles = houghTransformAndDetect( H, settings );
+				percentPixelsInThresholded = 100. * nVoters / H.size();
+			}
+			else
+			{
+				aCircles = houghTransformAndDetect( thresholded, settings );
+			}
+			if ( fraction < 1. )
+			{
+				aCircles = rescaleSensitivities( aCircles, fraction );
+				if ( refineAtFullDensity && !isCanceled() )
+				{
+					// The fused path did not build the mask.
+					if ( null == thresholded )
+						thresholded = BitMask.threshold( H, otsuThreshold.get(), Prefs.getThreads(), threadService.getExecutorService() );
+					aCircles = refineAroundCandidates( thresholded, votingNormals, aCircles, Math.max( 2, stepRadius ), stepRadius, aSensitivity );
+				}
+			}
+		}
 		if ( isCanceled() )
 			return Collections.emptyList();
 
+		if ( voteScale != 1. )
+			aCircles = rescaleSensitivities( aCircles, voteScale );
+
 		/*
-		 * Detect maxima on vote image.
+		 * Limit number of detections.
 		 */
 
+		if ( aCircles.size() > maxNDetections )
+			aCircles = new ArrayList<>( aCircles.subList( 0, maxNDetections ) );
+
+		return aCircles;
+	}
+
+	/**
+	 * Returns the expected ratio between the votes a circle gets and the
+	 * number of pixels in its crown, given the parameters of this op.
+	 *
+	 * @return the vote scale.
+	 */
+	private double voteScale()
+	{
+		double scale = 1.;
+		if ( thinRidges )
+			scale /= circleThickness;
+		return scale;
+	}
+
+	/**
+	 * Returns the fraction of thresholded pixels that vote in the standard
+	 * Hough transform.
+	 *
+	 * @return the voter fraction, in ]0, 1].
+	 */
+	private double voterFraction()
+	{
+		if ( voterFraction > 0. )
+			return Math.min( 1., voterFraction );
+		if ( percentPixelsInThresholded <= TARGET_PERCENT_VOTERS )
+			return 1.;
+		return TARGET_PERCENT_VOTERS / percentPixelsInThresholded;
+	}
+
+	/**
+	 * Returns a copy of the specified circles with their sensitivity
+	 * multiplied by the specified scale.
+	 */
+	private static final List< HoughCircle > rescaleSensitivities( final List< HoughCircle > aCircles, final double scale )
+	{
+		final List< HoughCircle > rescaled = new ArrayList<>( aCircles.size() );
+		for ( final HoughCircle circle : aCircles )
+			rescaled.add( new HoughCircle( circle, circle.getRadius(), circle.getThickness(), circle.getSensitivity() * scale ) );
+		return rescaled;
+	}
+
+	/**
+	 * Detects circles in the specified thresholded image with a detection
+	 * method that does not need the vote image.
+	 *
+	 * @param thresholded
+	 *            the thresholded image.
+	 * @param normals
+	 *            the ridge normals. Only used by methods that need them.
+	 * @param aSensitivity
+	 *            the detection sensitivity.
+	 * @return the list of circles ordered by increasing sensitivity.
+	 */
+	private List< HoughCircle > detectWithoutVoteImage( final Img< BitType > thresholded, final RandomAccessibleInterval< DoubleType > normals, final double aSensitivity )
+	{
 		statusService.showStatus( "Detecting circles..." );
 
-		@SuppressWarnings( { "rawtypes", "unchecked" } )
-		final HoughCircleDetectorOp< DoubleType > houghDetectOp =
-				( HoughCircleDetectorOp ) Functions.unary( ops, detectionMethod.getOpClass(), List.class,
-						voteImg, circleThickness, minRadius, stepRadius, sensitivity );
-		this.cancelableOp = houghDetectOp;
-		List< HoughCircle > aCircles = houghDetectOp.calculate( voteImg );
+		final Object[] args = detectionMethod.usesNormals()
+				? new Object[] { ( double ) circleThickness, minRadius, maxRadius, aSensitivity, normals }
+				: new Object[] { ( double ) circleThickness, minRadius, maxRadius, aSensitivity };
+		@SuppressWarnings( { "unchecked", "rawtypes" } )
+		final UnaryFunctionOp< IterableInterval< BitType >, List< HoughCircle > > detectOp =
+				( UnaryFunctionOp ) Functions.unary( ops, detectionMethod.getOpClass(), List.class,
+						thresholded, args );
+		this.cancelableOp = ( Cancelable ) detectOp;
+		return detectOp.calculate( thresholded );
+	}
+
+	/**
+	 * Detects circles in the specified thresholded image with the streaming
+	 * Hough transform, without storing the vote image.
+	 *
+	 * @param thresholded
+	 *            the thresholded image.
+	 * @param aSensitivity
+	 *            the detection sensitivity.
+	 * @return the list of circles ordered by increasing sensitivity.
+	 */
+	private List< HoughCircle > streamHoughTransform( final Img< BitType > thresholded, final double aSensitivity )
+	{
+		statusService.showStatus( "Computing Hough transform and detecting circles..." );
+
+		@SuppressWarnings( { "unchecked", "rawtypes" } )
+		final HoughCircleStreamingDetectorOp< BitType > streamingOp =
+				( HoughCircleStreamingDetectorOp ) Functions.unary( ops, HoughCircleStreamingDetectorOp.class, List.class,
+						thresholded, minRadius, maxRadius, stepRadius, ( double ) circleThickness, aSensitivity );
+		this.cancelableOp = streamingOp;
+		return streamingOp.calculate( thresholded );
+	}
+
+	/**
+	 * Detects circles with a coarse-to-fine strategy. The thresholded image is
+	 * downsampled by the specified factor, and circles are detected in it with
+	 * a relaxed sensitivity. Each candidate is then re-detected at full
+	 * resolution, only in a small region around it and on a small range of
+	 * radiuses.
+	 *
+	 * @param thresholded
+	 *            the thresholded image.
+	 * @param normals
+	 *            the ridge normals, or <code>null</code> to vote on full
+	 *            circles.
+	 * @param factor
+	 *            the downsampling factor.
+	 * @param aSensitivity
+	 *            the detection sensitivity.
+	 * @return the list of circles ordered by increasing sensitivity.
+	 */
+	private List< HoughCircle > coarseToFineHoughTransform( final Img< BitType > thresholded, final RandomAccessibleInterval< DoubleType > normals, final int factor, final double aSensitivity )
+	{
+		/*
+		 * Coarse detection.
+		 */
+
+		final Img< BitType > coarse = downsample( thresholded, factor );
+		final int cMinRadius = Math.max( 1, minRadius / factor );
+		final int cMaxRadius = Math.max( cMinRadius, ( maxRadius + factor - 1 ) / factor );
+		final int cStepRadius = Math.max( 1, stepRadius / factor );
+		final double cThickness = Math.max( 1., ( double ) circleThickness / factor );
+		final HoughSettings settings = new HoughSettings( cMinRadius, cMaxRadius, cStepRadius, cThickness, COARSE_SENSITIVITY_FACTOR * aSensitivity );
+		settings.storeVoteImg = true;
+		final List< HoughCircle > candidates = houghTransformAndDetect( coarse, settings );
 		if ( isCanceled() )
 			return Collections.emptyList();
 
 		/*
-		 * Limit number of detections.
+		 * Fine detection around each candidate.
 		 */
 
-		if ( aCircles.size() > maxNDetections )
-			aCircles = new ArrayList<>( aCircles.subList( 0, maxNDetections ) );
+		final List< HoughCircle > upscaled = new ArrayList<>( candidates.size() );
+		for ( final HoughCircle candidate : candidates )
+		{
+			final double cx = ( candidate.getDoublePosition( 0 ) + 0.5 ) * factor - 0.5;
+			final double cy = ( candidate.getDoublePosition( 1 ) + 0.5 ) * factor - 0.5;
+			upscaled.add( new HoughCircle( new RealPoint( cx, cy ), candidate.getRadius() * factor, candidate.getThickness(), candidate.getSensitivity() ) );
+		}
+		return refineAroundCandidates( thresholded, normals, upscaled, 2 * factor, stepRadius, aSensitivity );
+	}
 
-		return aCircles;
+	/**
+	 * Detects circles with a coarse radius sweep. Circles are detected over
+	 * the whole radius range with the specified coarse radius step and a
+	 * relaxed sensitivity. Each candidate is then re-detected with the radius
+	 * step, only in a small region around it and on a small range of
+	 * radiuses. Since a crown is seen by all the radius planes within half its
+	 * thickness, circles between two coarse planes are not missed as long as
+	 * the coarse step is not larger than the thickness.
+	 *
+	 * @param thresholded
+	 *            the thresholded image.
+	 * @param normals
+	 *            the ridge normals, or <code>null</code> to vote on full
+	 *            circles.
+	 * @param coarseStep
+	 *            the radius step of the coarse sweep.
+	 * @param aSensitivity
+	 *            the detection sensitivity.
+	 * @return the list of circles ordered by increasing sensitivity.
+	 */
+	private List< HoughCircle > radiusSweepHoughTransform( final Img< BitType > thresholded, final RandomAccessibleInterval< DoubleType > normals, final int coarseStep, final double aSensitivity )
+	{
+		final HoughSettings settings = new HoughSettings( minRadius, maxRadius, coarseStep, circleThickness, COARSE_SENSITIVITY_FACTOR * aSensitivity );
+		settings.normals = normals;
+		settings.storeVoteImg = true;
+		final List< HoughCircle > candidates = houghTransformAndDetect( thresholded, settings );
+		if ( isCanceled() )
+			return Collections.emptyList();
+
+		return refineAroundCandidates( thresholded, normals, candidates, coarseStep, stepRadius, aSensitivity );
+	}
+
+	/**
+	 * Re-detects circles at full resolution and with all the voters, only in
+	 * a small region around each candidate and on a small range of radiuses.
+	 *
+	 * @param thresholded
+	 *            the thresholded image.
+	 * @param normals
+	 *            the ridge normals, or <code>null</code> to vote on full
+	 *            circles.
+	 * @param candidates
+	 *            the candidate circles, in full-resolution coordinates.
+	 * @param margin
+	 *            how far (in pixels) the refined circles can be from their
+	 *            candidate, in position and in radius.
+	 * @param step
+	 *            the radius step of the re-detection. Radiuses are aligned on
+	 *            the grid of this step starting at the min radius.
+	 * @param aSensitivity
+	 *            the detection sensitivity.
+	 * @return the list of circles ordered by increasing sensitivity.
+	 */
+	private List< HoughCircle > refineAroundCandidates( final Img< BitType > thresholded, final RandomAccessibleInterval< DoubleType > normals, final List< HoughCircle > candidates, final int margin, final int step, final double aSensitivity )
+	{
+		final List< HoughCircle > refined = new ArrayList<>();
+		int progress = 0;
+		for ( final HoughCircle candidate : candidates )
+		{
+			final double cx = candidate.getDoublePosition( 0 );
+			final double cy = candidate.getDoublePosition( 1 );
+			final double r = candidate.getRadius();
+
+			// Radius range aligned on the full-resolution radius grid.
+			final int rMinUnaligned = Math.max( minRadius, ( int ) Math.floor( r ) - margin );
+			final int rMin = minRadius + ( ( rMinUnaligned - minRadius ) / step ) * step;
+			final int rMax = Math.min( maxRadius, ( int ) Math.ceil( r ) + margin );
+			if ( rMax < rMin )
+				continue;
+
+			final long half = rMax + margin + circleThickness;
+			final long[] min = new long[] {
+					Math.max( thresholded.min( 0 ), Math.round( cx ) - half ),
+					Math.max( thresholded.min( 1 ), Math.round( cy ) - half ) };
+			final long[] max = new long[] {
+					Math.min( thresholded.max( 0 ), Math.round( cx ) + half ),
+					Math.min( thresholded.max( 1 ), Math.round( cy ) + half ) };
+			final FinalInterval roi = new FinalInterval( min, max );
+
+			final IterableInterval< BitType > roiMask = Views.iterable( Views.zeroMin( Views.interval( thresholded, roi ) ) );
+			final RandomAccessibleInterval< DoubleType > roiNormals = ( null == normals ) ? null : Views.zeroMin( Views.interval( normals, roi ) );
+			final HoughSettings settings = new HoughSettings( rMin, rMax, step, circleThickness, aSensitivity );
+			settings.normals = roiNormals;
+			final List< HoughCircle > local = houghTransformAndDetect( roiMask, settings );
+			for ( final HoughCircle circle : local )
+			{
+				final double x = circle.getDoublePosition( 0 ) + min[ 0 ];
+				final double y = circle.getDoublePosition( 1 ) + min[ 1 ];
+				if ( ( x - cx ) * ( x - cx ) + ( y - cy ) * ( y - cy ) > margin * margin )
+					continue;
+				refined.add( new HoughCircle( new RealPoint( x, y ), circle.getRadius(), circle.getThickness(), circle.getSensitivity() ) );
+			}
+
+			statusService.showProgress( ++progress, candidates.size() );
+			if ( isCanceled() )
+				return Collections.emptyList();
+		}
+
+		/*
+		 * Non-maxima suppression between regions.
+		 * 
+		 * Rule: when one circle has a center inside one another, we discard
+		 * the one with the highest sensitivity.
+		 */
+
+		Collections.sort( refined );
+		return NonMaximaSuppression.suppress( refined,
+				c -> c.getDoublePosition( 0 ), c -> c.getDoublePosition( 1 ), HoughCircle::getRadius );
+	}
+
+	/**
+	 * Returns the downsampling factor used in coarse-to-fine mode. We want
+	 * the crown to stay at least about 3 pixels thick, and the smallest
+	 * circles to keep a radius of at least about 12 pixels, so that they are
+	 * still properly rasterized.
+	 *
+	 * @return the downsampling factor, 1 if the image should not be
+	 *         downsampled.
+	 */
+	private int coarseToFineFactor()
+	{
+		return Math.max( 1, Math.min( circleThickness / 3, minRadius / 12 ) );
+	}
+
+	/**
+	 * Returns the radius step of the coarse radius sweep, as a multiple of the
+	 * radius step so that coarse radius planes are also fine ones. By
+	 * default, it is the largest such multiple not larger than the circle
+	 * thickness, so that every crown is seen by a coarse radius plane.
+	 *
+	 * @return the coarse radius step, equal to the radius step if there is
+	 *         nothing to gain.
+	 */
+	private int coarseRadiusSweepStep()
+	{
+		final int target = ( coarseRadiusStep > 0 ) ? coarseRadiusStep : circleThickness;
+		return stepRadius * Math.max( 1, target / stepRadius );
+	}
+
+	/**
+	 * Downsamples a mask by the specified factor. A pixel of the downsampled
+	 * mask is on if any of the pixels of its block is on, so that thin crowns
+	 * are not lost.
+	 */
+	private static final Img< BitType > downsample( final IterableInterval< BitType > mask, final int factor )
+	{
+		final long[] dims = new long[ mask.numDimensions() ];
+		for ( int d = 0; d < dims.length; d++ )
+			dims[ d ] = ( mask.dimension( d ) + factor - 1 ) / factor;
+		final Img< BitType > coarse = ArrayImgs.bits( dims );
+		final RandomAccess< BitType > ra = coarse.randomAccess();
+		final Cursor< BitType > cursor = mask.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			if ( !cursor.get().get() )
+				continue;
+			for ( int d = 0; d < dims.length; d++ )
+				ra.setPosition( ( cursor.getLongPosition( d ) - mask.min( d ) ) / factor, d );
+			ra.get().set( true );
+		}
+		return coarse;
+	}
+
+	/**
+	 * Computes the Hough transform of the specified image and detects circles
+	 * in the vote image. The vote image type is chosen from the accumulator
+	 * type parameter, unless votes are weighted.
+	 *
+	 * @param input
+	 *            the thresholded image, or the filtered image to threshold
+	 *            while voting.
+	 * @param settings
+	 *            the settings of the Hough transform and of the detection.
+	 * @return the list of circles ordered by increasing sensitivity.
+	 */
+	private < R extends RealType< R >, V extends RealType< V > & NativeType< V > > List< HoughCircle > houghTransformAndDetect(
+			final IterableInterval< R > input,
+			final HoughSettings settings )
+	{
+		final RandomAccessibleInterval< DoubleType > normals = settings.normals;
+		final int rMin = settings.rMin;
+		final int rMax = settings.rMax;
+		final int rStep = settings.rStep;
+		final Interval detectionInterval = settings.detectionInterval;
+
+		final boolean split = splitRadiusVotes && rStep > 1 && null == normals;
+		final AccumulatorType accType;
+		if ( settings.weighted || split )
+			accType = AccumulatorType.DOUBLE;
+		else if ( null == accumulatorType && null != detectionInterval && null == normals )
+			accType = AccumulatorType.LAZY_INT;
+		else
+			accType = ( null == accumulatorType ) ? automaticAccumulatorType( input, rMin, rMax, rStep ) : accumulatorType;
+		// The FFT Hough transform only writes into dense accumulators.
+		final boolean useFft = settings.fft && ( accType == AccumulatorType.DOUBLE || accType == AccumulatorType.INT || accType == AccumulatorType.UNSIGNED_SHORT );
+		statusService.showStatus( "Computing Hough transform" + ( useFft ? " with FFTs" : "" ) + " (" + accType + " votes)..." );
+
+		final Img< V > votes;
+		final double weightScale;
+		if ( useFft )
+		{
+			@SuppressWarnings( { "unchecked", "rawtypes" } )
+			final FftHoughTransformOp< R, V > fftHoughTransformOp =
+					( FftHoughTransformOp ) Functions.unary( ops, FftHoughTransformOp.class, RandomAccessibleInterval.class,
+							input, rMin, rMax, rStep, Prefs.getThreads(), accType, settings.threshold );
+			this.cancelableOp = fftHoughTransformOp;
+
+			votes = fftHoughTransformOp.createOutput( input );
+			fftHoughTransformOp.compute( input, votes );
+			nVoters = fftHoughTransformOp.getNVoters();
+			weightScale = 1.;
+		}
+		else
+		{
+			@SuppressWarnings( { "unchecked", "rawtypes" } )
+			final HoughTransformOp< R, V > houghTransformOp =
+					( HoughTransformOp ) Functions.unary( ops, HoughTransformOp.class, RandomAccessibleInterval.class,
+							input, rMin, rMax, rStep, Prefs.getThreads(), normals, normalTolerance, accType,
+							settings.fraction, stratifiedSubsampling, subsamplingSeed, settings.threshold, settings.weighted,
+							cacheDirectory, cacheBudget, split );
+			this.cancelableOp = houghTransformOp;
+
+			votes = houghTransformOp.createOutput( input );
+			houghTransformOp.compute( input, votes );
+			nVoters = houghTransformOp.getNVoters();
+			weightScale = houghTransformOp.getMeanWeight() * ( split ? splitVoteScale( rMin, rMax, rStep, settings.thickness ) : 1. );
+		}
+		if ( settings.storeVoteImg )
+			voteImg = votes;
+		if ( isCanceled() )
+			return Collections.emptyList();
+
+		/*
+		 * Detect maxima on vote image. Weighted votes are corrected for their
+		 * mean weight, like subsampled votes.
+		 */
+
+		statusService.showStatus( "Detecting circles..." );
+
+		final RandomAccessibleInterval< V > detectionVotes;
+		if ( null == detectionInterval )
+			detectionVotes = votes;
+		else
+			detectionVotes = Views.interval( votes, new FinalInterval(
+					new long[] { detectionInterval.min( 0 ), detectionInterval.min( 1 ), votes.min( 2 ) },
+					new long[] { detectionInterval.max( 0 ), detectionInterval.max( 1 ), votes.max( 2 ) } ) );
+
+		// Only the DoG detector accepts a sigma along the radius.
+		final Object[] detectorArgs = ( detectionMethod == DetectionMethod.ACCURATE )
+				? new Object[] { settings.thickness, rMin, rStep, settings.aSensitivity / weightScale, split, settings.maxCount, dogRadiusSigma, parabolicFit }
+				: new Object[] { settings.thickness, rMin, rStep, settings.aSensitivity / weightScale, split, settings.maxCount, parabolicFit };
+		@SuppressWarnings( { "rawtypes", "unchecked" } )
+		final HoughCircleDetectorOp< V > houghDetectOp =
+				( HoughCircleDetectorOp ) Functions.unary( ops, detectionMethod.getOpClass(), List.class,
+						detectionVotes, detectorArgs );
+		this.cancelableOp = houghDetectOp;
+		final List< HoughCircle > detected = houghDetectOp.calculate( detectionVotes );
+		return ( weightScale == 1. ) ? detected : rescaleSensitivities( detected, weightScale );
+	}
+
+	/**
+	 * Returns the fraction of the values counted in the specified histogram
+	 * that are strictly above the specified threshold, to the precision of
+	 * the histogram bins.
+	 *
+	 * @param histo
+	 *            the histogram.
+	 * @param threshold
+	 *            the threshold.
+	 * @return the fraction of values above the threshold.
+	 */
+	private static double fractionAbove( final Histogram1d< DoubleType > histo, final DoubleType threshold )
+	{
+		final long bin = histo.map( threshold );
+		long above = 0;
+		for ( long i = bin + 1; i < histo.getBinCount(); i++ )
+			above += histo.frequency( i );
+		final long total = histo.totalCount();
+		return ( total == 0 ) ? 0. : ( double ) above / total;
+	}
+
+	/**
+	 * Returns <code>true</code> if computing the Hough transform with FFTs is
+	 * expected to be faster than voting, for an image of the specified size
+	 * with the specified fraction of foreground pixels, and if it fits in the
+	 * default memory budget of {@link FftHoughTransformOp} with one task.
+	 * <p>
+	 * Voting costs one operation per foreground pixel and per stencil offset,
+	 * that is about <code>2πr</code> per radius. The FFT Hough transform
+	 * costs one forward and one inverse transform of the padded image per
+	 * pair of radiuses, whatever the number of foreground pixels.
+	 *
+	 * @param foregroundFraction
+	 *            the fraction of pixels that vote.
+	 * @param width
+	 *            the image width.
+	 * @param height
+	 *            the image height.
+	 * @return <code>true</code> if FFTs should be used.
+	 */
+	private boolean isFftFaster( final double foregroundFraction, final long width, final long height )
+	{
+		final long paddedSize = FftHoughTransformOp.paddedSize( width, height, maxRadius );
+		if ( paddedSize > FftHoughTransformOp.MAX_PADDED_SIZE
+				|| FftHoughTransformOp.requiredMemory( paddedSize, 1 ) > FftHoughTransformOp.defaultMemoryBudget() * 1024l * 1024l )
+			return false;
+
+		double stencilSize = 0.;
+		int nRadii = 0;
+		for ( int r = minRadius; r <= maxRadius; r += stepRadius )
+		{
+			stencilSize += 2. * Math.PI * r;
+			nRadii++;
+		}
+		final double voteCost = foregroundFraction * width * height * stencilSize;
+		final double fftCost = FFT_COST_FACTOR * nRadii * paddedSize * Math.log( paddedSize ) / Math.log( 2. );
+		return fftCost < voteCost;
+	}
+
+	/**
+	 * Returns how many more votes a circle receives in its radius plane when
+	 * votes are split between radius planes, compared to the standard Hough
+	 * transform.
+	 * <p>
+	 * A split vote weighs <code>1 - |d - r| / step</code> in the plane of
+	 * radius <code>r</code>, so a crown of thickness <code>t</code> centered on
+	 * this radius collects <code>2a - a² / step</code> times
+	 * <code>2πr</code> votes, with <code>a = min(t/2, step)</code>. The
+	 * standard Hough transform collects one vote per pixel of the rasterized
+	 * circle instead.
+	 */
+	private static double splitVoteScale( final int rMin, final int rMax, final int rStep, final double thickness )
+	{
+		final int radius = ( rMin + rMax ) / 2;
+		final double a = Math.min( thickness / 2., rStep );
+		final double weight = 2. * a - a * a / rStep;
+		final CircleStencil stencil = new CircleStencil( radius );
+		return weight * 2. * Math.PI * radius / Math.max( 1, stencil.size() );
+	}
+
+	/**
+	 * Returns the smallest integer accumulator that cannot saturate. If a
+	 * cache directory is set, returns the disk-cached one instead if the vote
+	 * image would take more than half of the max heap size. This only depends
+	 * on the parameters and on the JVM settings, not on the memory in use.
+	 */
+	private AccumulatorType automaticAccumulatorType( final Dimensions input, final int rMin, final int rMax, final int rStep )
+	{
+		final AccumulatorType type = AccumulatorType.forMaxRadius( rMax );
+		if ( null == cacheDirectory )
+			return type;
+		final long nRadiuses = ( rMax - rMin ) / rStep + 1;
+		final long bytesPerVoxel = ( type == AccumulatorType.UNSIGNED_SHORT ) ? 2 : 4;
+		final long bytes = input.dimension( 0 ) * input.dimension( 1 ) * nRadiuses * bytesPerVoxel;
+		return ( bytes > Runtime.getRuntime().maxMemory() / 2 ) ? AccumulatorType.DISK_INT : type;
 	}
 
 	/**
@@ -407,6 +1243,80 @@ public class CircleSkinnerOp< T extends RealType< T > > extends AbstractUnaryCom
 		circleAnalyzerOp.run();
 	}
 
+	/**
+	 * The settings of one Hough transform and of the detection in its vote
+	 * image. The other settings are taken from the parameters of this op.
+	 */
+	private static final class HoughSettings
+	{
+
+		/** The min radius. */
+		private final int rMin;
+
+		/** The max radius. */
+		private final int rMax;
+
+		/** The radius step. */
+		private final int rStep;
+
+		/** The circle thickness. */
+		private final double thickness;
+
+		/** The detection sensitivity. */
+		private final double aSensitivity;
+
+		/**
+		 * The threshold above which pixels of the input are voters. Use 0 for
+		 * a thresholded image.
+		 */
+		private double threshold = 0.;
+
+		/**
+		 * If <code>true</code>, votes are weighted by the input values relative
+		 * to the threshold.
+		 */
+		private boolean weighted = false;
+
+		/**
+		 * The ridge normals, or <code>null</code> to vote on full circles.
+		 */
+		private RandomAccessibleInterval< DoubleType > normals = null;
+
+		/** The fraction of thresholded pixels that vote. */
+		private double fraction = 1.;
+
+		/**
+		 * If <code>true</code>, the Hough transform is computed with FFTs
+		 * instead of voting. All pixels then vote with a weight of 1.
+		 */
+		private boolean fft = false;
+
+		/**
+		 * If not <code>null</code>, the region (X and Y) in which to look for
+		 * circle centers. With a lazy vote image, votes are only computed
+		 * around this region.
+		 */
+		private Interval detectionInterval = null;
+
+		/** The max number of circles to detect. */
+		private int maxCount = Integer.MAX_VALUE;
+
+		/**
+		 * If <code>true</code>, the vote image is stored and can be retrieved
+		 * with {@link CircleSkinnerOp#getVoteImg()}.
+		 */
+		private boolean storeVoteImg = false;
+
+		private HoughSettings( final int rMin, final int rMax, final int rStep, final double thickness, final double aSensitivity )
+		{
+			this.rMin = rMin;
+			this.rMax = rMax;
+			this.rStep = rStep;
+			this.thickness = thickness;
+			this.aSensitivity = aSensitivity;
+		}
+	}
+
 	// -- Cancelable methods --
 
 	/** Reason for cancelation, or null if not canceled. */
@@ -435,27 +1345,67 @@ public class CircleSkinnerOp< T extends RealType< T > > extends AbstractUnaryCom
 
 	public static enum DetectionMethod
 	{
-		FAST( HoughCircleLocalMaxDetectorOp.class, "Fast" ),
-		ACCURATE( HoughCircleDogDetectorOp.class, "Accurate" );
+		FAST( HoughCircleLocalMaxDetectorOp.class, "Fast", true ),
+		ACCURATE( HoughCircleDogDetectorOp.class, "Accurate", true ),
+		PROJECTION( HoughCircleProjectionDetectorOp.class, "Fast (radius projection)", true ),
+		RANDOMIZED( RandomizedHoughCircleDetectorOp.class, "Randomized (sparse images)", false ),
+		TWO_STAGE( TwoStageHoughCircleDetectorOp.class, "Two-stage (center then radius)", false, true );
 
-		@SuppressWarnings( "rawtypes" )
-		private final Class< ? extends HoughCircleDetectorOp > opClass;
+		private final Class< ? extends Op > opClass;
 
 		private final String name;
 
-		@SuppressWarnings( "rawtypes" )
-		private DetectionMethod( final Class< ? extends HoughCircleDetectorOp > opClass, final String name )
+		private final boolean usesVoteImage;
+
+		private final boolean usesNormals;
+
+		private DetectionMethod( final Class< ? extends Op > opClass, final String name, final boolean usesVoteImage )
+		{
+			this( opClass, name, usesVoteImage, false );
+		}
+
+		private DetectionMethod( final Class< ? extends Op > opClass, final String name, final boolean usesVoteImage, final boolean usesNormals )
 		{
 			this.opClass = opClass;
 			this.name = name;
+			this.usesVoteImage = usesVoteImage;
+			this.usesNormals = usesNormals;
 		}
 
-		@SuppressWarnings( "rawtypes" )
-		public Class< ? extends HoughCircleDetectorOp > getOpClass()
+		/**
+		 * Returns the class of the detector op. If this method uses the vote
+		 * image, it is a {@link HoughCircleDetectorOp}. Otherwise it is an op
+		 * that detects circles directly in the thresholded image.
+		 *
+		 * @return the op class.
+		 */
+		public Class< ? extends Op > getOpClass()
 		{
 			return opClass;
 		}
 
+		/**
+		 * Returns <code>true</code> if this method detects circles in the vote
+		 * image of the Hough transform.
+		 *
+		 * @return whether the vote image is needed.
+		 */
+		public boolean usesVoteImage()
+		{
+			return usesVoteImage;
+		}
+
+		/**
+		 * Returns <code>true</code> if this method needs the ridge normals,
+		 * which are then passed to its op after the sensitivity.
+		 *
+		 * @return whether the ridge normals are needed.
+		 */
+		public boolean usesNormals()
+		{
+			return usesNormals;
+		}
+
 		@Override
 		public String toString()
 		{
@@ -0,0 +1,114 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner;
+
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import net.imagej.ops.special.function.AbstractUnaryFunctionOp;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
+
+/**
+ * Thresholds a tubeness image and thins the ridges to their centerline, with
+ * a non-maxima suppression across the ridge. A pixel is kept if its tubeness
+ * is above the threshold, and not lower than the tubeness at one pixel
+ * distance on both sides, along the ridge normal.
+ * <p>
+ * Each ring then casts about as many votes as its centerline instead of its
+ * whole crown, which makes the Hough transform faster by about the crown
+ * thickness, and gives sharper peaks in the vote image.
+ *
+ * @author agent
+ */
+@Plugin( type = RidgeThinningOp.class )
+public class RidgeThinningOp extends AbstractUnaryFunctionOp< RandomAccessibleInterval< DoubleType >, Img< BitType > >
+{
+
+	/**
+	 * The angle of the ridge normal at each pixel, in radians, as computed by
+	 * {@link TubenessOp#getRidgeNormals()}.
+	 */
+	@Parameter
+	private RandomAccessibleInterval< DoubleType > normals;
+
+	/**
+	 * Pixels with a tubeness lower than or equal to this value are discarded.
+	 */
+	@Parameter
+	private double threshold;
+
+	@Override
+	public Img< BitType > calculate( final RandomAccessibleInterval< DoubleType > tubeness )
+	{
+		final Img< BitType > thinned = ops().create().img( tubeness, new BitType() );
+		final RandomAccess< DoubleType > ra = tubeness.randomAccess();
+		final RandomAccess< DoubleType > nra = normals.randomAccess();
+		final RealRandomAccess< DoubleType > rra = Views.interpolate(
+				Views.extendBorder( tubeness ),
+				new NLinearInterpolatorFactory< DoubleType >() ).realRandomAccess();
+
+		final Cursor< BitType > cursor = thinned.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			ra.setPosition( cursor );
+			final double val = ra.get().get();
+			if ( val <= threshold )
+				continue;
+
+			nra.setPosition( cursor );
+			final double theta = nra.get().get();
+			final double nx = Math.cos( theta );
+			final double ny = Math.sin( theta );
+			final double x = cursor.getDoublePosition( 0 );
+			final double y = cursor.getDoublePosition( 1 );
+
+			rra.setPosition( x + nx, 0 );
+			rra.setPosition( y + ny, 1 );
+			if ( rra.get().get() > val )
+				continue;
+
+			rra.setPosition( x - nx, 0 );
+			rra.setPosition( y - ny, 1 );
+			if ( rra.get().get() > val )
+				continue;
+
+			cursor.get().set( true );
+		}
+		return thinned;
+	}
+}
@@ -41,6 +41,7 @@ import net.imagej.circleskinner.hessian.HessianMatrix;
 import net.imagej.circleskinner.hessian.TensorEigenValues;
 import net.imagej.ops.special.computer.AbstractUnaryComputerOp;
 import net.imagej.ops.special.hybrid.AbstractUnaryHybridCF;
+import net.imglib2.Cursor;
 import net.imglib2.Dimensions;
 import net.imglib2.FinalDimensions;
 import net.imglib2.RandomAccessibleInterval;
@@ -52,6 +53,7 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
+import net.imglib2.view.composite.RealComposite;
 
 @Plugin( type = TubenessOp.class )
 public class TubenessOp< T extends RealType< T > >
@@ -77,6 +79,32 @@ public class TubenessOp< T extends RealType< T > >
 	@Parameter
 	private double[] calibration;
 
+	/**
+	 * If <code>true</code>, also computes the direction normal to the ridges
+	 * for 2D images. It can be retrieved with {@link #getRidgeNormals()}.
+	 */
+	@Parameter( required = false )
+	private boolean computeNormals = false;
+
+	/**
+	 * Storage for the ridge normal angles.
+	 */
+	private Img< DoubleType > normals;
+
+	/**
+	 * Returns the image of the angle (in radians, with respect to the X axis)
+	 * of the direction normal to the ridge at each pixel, as computed during
+	 * the last call to {@link #compute(RandomAccessibleInterval, Img)}. This
+	 * is the direction of the eigenvector of the Hessian with the lowest
+	 * eigenvalue. Returns <code>null</code> if the normals were not computed.
+	 *
+	 * @return the ridge normal image, or <code>null</code>.
+	 */
+	public Img< DoubleType > getRidgeNormals()
+	{
+		return normals;
+	}
+
 	@Override
 	public Img< DoubleType > createOutput( final RandomAccessibleInterval< T > input )
 	{
@@ -88,6 +116,7 @@ public class TubenessOp< T extends RealType< T > >
 	public void compute( final RandomAccessibleInterval< T > input, final Img< DoubleType > tubeness )
 	{
 		cancelReason = null;
+		normals = null;
 		
 		final int numDimensions = input.numDimensions();
 		// Sigmas in pixel units.
@@ -126,6 +155,9 @@ public class TubenessOp< T extends RealType< T > >
 			if ( isCanceled() )
 				return;
 
+			if ( computeNormals && numDimensions == 2 )
+				normals = computeRidgeNormals( hessian, tubeness.factory() );
+
 			// Hessian eigenvalues.
 			final Img< DoubleType > evs = TensorEigenValues.calculateEigenValuesSymmetric(
 					hessian,
@@ -162,6 +194,27 @@ public class TubenessOp< T extends RealType< T > >
 		}
 	}
 
+	/**
+	 * Computes the angle of the eigenvector of the lowest eigenvalue of a 2D
+	 * Hessian matrix image, stored as [h11, h12, h22] along its last dimension.
+	 */
+	private static final Img< DoubleType > computeRidgeNormals( final Img< DoubleType > hessian, final ImgFactory< DoubleType > factory )
+	{
+		final Img< DoubleType > angles = factory.create( hessian.dimension( 0 ), hessian.dimension( 1 ) );
+		final Cursor< RealComposite< DoubleType > > m = Views.iterable( Views.collapseReal( hessian ) ).cursor();
+		final Cursor< DoubleType > a = Views.flatIterable( angles ).cursor();
+		while ( m.hasNext() )
+		{
+			final RealComposite< DoubleType > h = m.next();
+			final double h11 = h.get( 0 ).get();
+			final double h12 = h.get( 1 ).get();
+			final double h22 = h.get( 2 ).get();
+			// Direction of the largest eigenvalue, rotated by 90 degrees.
+			a.next().set( 0.5 * Math.atan2( 2. * h12, h11 - h22 ) + Math.PI / 2. );
+		}
+		return angles;
+	}
+
 	private static final class Tubeness2D extends AbstractUnaryComputerOp< Iterable< DoubleType >, DoubleType >
 	{
 
@@ -91,7 +91,6 @@ import net.imglib2.img.Img;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.type.numeric.real.DoubleType;
 
 public class AdjustSensitivityDialog< T extends RealType< T > & NativeType< T > > extends JDialog
 {
@@ -171,7 +170,7 @@ public class AdjustSensitivityDialog< T extends RealType< T > & NativeType< T >
 
 	private double[] sensitivities = new double[] { CircleSkinnerGUI.MIN_SENSITIVITY };
 
-	private Img< DoubleType > voteImg;
+	private Img< ? > voteImg;
 
 	/*
 	 * CONSTRUCTOR.
@@ -328,7 +327,10 @@ public class AdjustSensitivityDialog< T extends RealType< T > & NativeType< T >
 		panelAdjustments.add( lblShowVoteImage, gbc_lblShowVoteImage );
 
 		final JButton btnShow = new JButton( "Show" );
-		btnShow.addActionListener( ( e ) -> new Thread( () -> uiService.show( voteImg ) ).start() );
+		btnShow.addActionListener( ( e ) -> {
+			if ( null != voteImg )
+				new Thread( () -> uiService.show( voteImg ) ).start();
+		} );
 		final GridBagConstraints gbc_btnShow = new GridBagConstraints();
 		gbc_btnShow.insets = new Insets( 0, 0, 5, 0 );
 		gbc_btnShow.gridx = 2;
@@ -412,7 +414,7 @@ public class AdjustSensitivityDialog< T extends RealType< T > & NativeType< T >
 		circleSkinner.compute( dataset, table );
 
 		final List< HoughCircle > circles = circleSkinner.getCircles();
-		this.voteImg = new ImgPlus<>( circleSkinner.getVoteImg(), "Vote image",
+		this.voteImg = ( null == circleSkinner.getVoteImg() ) ? null : new ImgPlus<>( circleSkinner.getVoteImg(), "Vote image",
 				new AxisType[] { Axes.X, Axes.Y, Axes.Z } );
 
 		/*
@@ -0,0 +1,121 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner.hough;
+
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+
+/**
+ * The pixel types that can be used to store the Hough transform votes.
+ * <p>
+ * Votes are integer counts, and a pixel of the vote image cannot receive more
+ * than twice as many votes as there are pixels in the circle stencil of its
+ * radius, which is about 6 times the radius. So 16-bit unsigned integers are
+ * enough for all practical radiuses, and use 4 times less memory than doubles.
+ * The 16-bit accumulator saturates instead of overflowing, whether it is
+ * written through its backing array or through a random access.
+ * <p>
+ * The sparse accumulator stores 32-bit integers in tiles that are only
+ * allocated where votes are cast. See {@link SparseVoteImg}. The disk-cached
+ * accumulator stores 32-bit integers in cells that are written to disk when
+ * they do not fit in the memory budget anymore, for vote images larger than
+ * the heap. The lazy accumulator only computes the votes of a cell of the
+ * vote image when it is accessed, from the voters within the max radius of
+ * the cell, so that detecting circles in a small region does not require
+ * voting in the whole image.
+ *
+ * @author agent
+ */
+public enum AccumulatorType
+{
+	DOUBLE( "64-bit float" ),
+	INT( "32-bit signed integer" ),
+	UNSIGNED_SHORT( "16-bit unsigned integer" ),
+	SPARSE_INT( "32-bit signed integer, sparse tiles" ),
+	DISK_INT( "32-bit signed integer, disk cached" ),
+	LAZY_INT( "32-bit signed integer, computed on demand" );
+
+	/**
+	 * Largest value that can be stored in an {@link #UNSIGNED_SHORT}
+	 * accumulator.
+	 */
+	public static final int UNSIGNED_SHORT_MAX = 0xffff;
+
+	private final String name;
+
+	private AccumulatorType( final String name )
+	{
+		this.name = name;
+	}
+
+	/**
+	 * Creates a new instance of the pixel type of this accumulator.
+	 *
+	 * @return a new type instance.
+	 */
+	public RealType< ? > createType()
+	{
+		switch ( this )
+		{
+		case INT:
+		case SPARSE_INT:
+		case DISK_INT:
+		case LAZY_INT:
+			return new IntType();
+		case UNSIGNED_SHORT:
+			return new UnsignedShortType();
+		case DOUBLE:
+		default:
+			return new DoubleType();
+		}
+	}
+
+	/**
+	 * Returns the smallest integer accumulator that cannot saturate for the
+	 * specified max radius, or {@link #INT} if the 16-bit accumulator could
+	 * saturate.
+	 *
+	 * @param maxRadius
+	 *            the largest radius of the Hough transform.
+	 * @return a suitable accumulator type.
+	 */
+	public static AccumulatorType forMaxRadius( final int maxRadius )
+	{
+		final long maxVotes = 2l * new CircleStencil( maxRadius ).size();
+		return maxVotes <= UNSIGNED_SHORT_MAX ? UNSIGNED_SHORT : INT;
+	}
+
+	@Override
+	public String toString()
+	{
+		return name;
+	}
+}
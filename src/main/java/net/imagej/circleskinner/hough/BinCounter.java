@@ -0,0 +1,162 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner.hough;
+
+import java.util.Arrays;
+
+/**
+ * A bounded counter of hits per bin, for sparse accumulators indexed by
+ * <code>long</code> keys.
+ * <p>
+ * Keys and counts are stored in two primitive arrays with open addressing
+ * and linear probing, so counting a hit does not allocate. A slot is empty
+ * when its count is 0. The number of bins is bounded: when a hit falls in a
+ * new bin while the counter is full, all the bins are cleared first, which is
+ * the usual way to reset the accumulator of a randomized Hough transform.
+ *
+ * @author agent
+ */
+final class BinCounter
+{
+
+	private final long[] keys;
+
+	private final int[] counts;
+
+	private final int mask;
+
+	private final int maxSize;
+
+	private int size;
+
+	/**
+	 * Creates a counter with the specified max number of bins.
+	 *
+	 * @param maxSize
+	 *            the max number of bins, at least 1.
+	 */
+	BinCounter( final int maxSize )
+	{
+		this.maxSize = Math.max( 1, Math.min( 1 << 29, maxSize ) );
+		// Keep the load factor at or below 1/2.
+		final int capacity = Integer.highestOneBit( 2 * this.maxSize - 1 ) << 1;
+		this.keys = new long[ capacity ];
+		this.counts = new int[ capacity ];
+		this.mask = capacity - 1;
+	}
+
+	/**
+	 * Adds a hit to the bin of the specified key.
+	 *
+	 * @param key
+	 *            the key of the bin.
+	 * @return the number of hits of the bin.
+	 */
+	int increment( final long key )
+	{
+		int slot = slot( key );
+		while ( counts[ slot ] != 0 )
+		{
+			if ( keys[ slot ] == key )
+				return ++counts[ slot ];
+			slot = ( slot + 1 ) & mask;
+		}
+		if ( size >= maxSize )
+		{
+			clear();
+			slot = slot( key );
+		}
+		keys[ slot ] = key;
+		counts[ slot ] = 1;
+		size++;
+		return 1;
+	}
+
+	/**
+	 * Removes the bin of the specified key, if it exists.
+	 *
+	 * @param key
+	 *            the key of the bin.
+	 */
+	void remove( final long key )
+	{
+		int slot = slot( key );
+		while ( counts[ slot ] != 0 && keys[ slot ] != key )
+			slot = ( slot + 1 ) & mask;
+		if ( counts[ slot ] == 0 )
+			return;
+
+		/*
+		 * Shift back the entries of the probe sequence after the removed one,
+		 * so that lookups do not stop on the hole.
+		 */
+
+		int hole = slot;
+		int next = ( hole + 1 ) & mask;
+		while ( counts[ next ] != 0 )
+		{
+			final int home = slot( keys[ next ] );
+			// Move the entry if its home slot is not between the hole and it.
+			if ( ( ( next - home ) & mask ) >= ( ( next - hole ) & mask ) )
+			{
+				keys[ hole ] = keys[ next ];
+				counts[ hole ] = counts[ next ];
+				hole = next;
+			}
+			next = ( next + 1 ) & mask;
+		}
+		counts[ hole ] = 0;
+		size--;
+	}
+
+	/**
+	 * Removes all the bins.
+	 */
+	void clear()
+	{
+		Arrays.fill( counts, 0 );
+		size = 0;
+	}
+
+	/**
+	 * Returns the number of bins with at least one hit.
+	 *
+	 * @return the number of bins.
+	 */
+	int size()
+	{
+		return size;
+	}
+
+	private int slot( final long key )
+	{
+		// Fibonacci hashing, to spread the packed coordinates.
+		return ( int ) ( ( key * 0x9E3779B97F4A7C15l ) >>> 33 ) & mask;
+	}
+}
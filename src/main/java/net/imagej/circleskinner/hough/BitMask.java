@@ -0,0 +1,169 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner.hough;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import net.imglib2.Cursor;
+import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Utilities for foreground masks packed in bits.
+ * <p>
+ * A packed mask is an {@link ArrayImg} of {@link BitType}, backed by a
+ * <code>long[]</code> array where pixel <code>i</code> (in flat iteration
+ * order) is bit <code>i &amp; 63</code> of word <code>i &gt;&gt;&gt; 6</code>.
+ * Foreground pixels can be enumerated one word at a time, skipping 64 empty
+ * pixels in one test, and the mask takes one bit per pixel. Once created, the
+ * words are only read, so a mask can be shared by several threads.
+ *
+ * @author agent
+ */
+public final class BitMask
+{
+
+	private BitMask()
+	{}
+
+	/**
+	 * Creates a packed mask of the pixels of the source image strictly above
+	 * the specified threshold. The mask has the dimensions of the source,
+	 * with a min at 0. Words are filled in parallel, each task writing its own
+	 * range of words.
+	 *
+	 * @param source
+	 *            the image to threshold.
+	 * @param threshold
+	 *            the threshold.
+	 * @param numThreads
+	 *            the number of tasks to use.
+	 * @param es
+	 *            the executor service that runs the tasks.
+	 * @return a new packed mask.
+	 */
+	public static < R extends RealType< R > > ArrayImg< BitType, LongArray > threshold( final RandomAccessibleInterval< R > source, final double threshold, final int numThreads, final ExecutorService es )
+	{
+		final ArrayImg< BitType, LongArray > mask = ArrayImgs.bits( Intervals.dimensionsAsLongArray( source ) );
+		final long[] words = mask.update( null ).getCurrentStorageArray();
+		final long nPixels = Intervals.numElements( source );
+		final int nWords = words.length;
+		final int nTasks = Math.max( 1, Math.min( numThreads, nWords ) );
+		final int wordsPerTask = ( nWords + nTasks - 1 ) / nTasks;
+
+		final List< Callable< Void > > tasks = new ArrayList<>( nTasks );
+		for ( int t = 0; t < nTasks; t++ )
+		{
+			final int firstWord = t * wordsPerTask;
+			final int lastWord = Math.min( nWords, firstWord + wordsPerTask );
+			if ( firstWord >= lastWord )
+				break;
+			tasks.add( () -> {
+				final Cursor< R > cursor = Views.flatIterable( source ).cursor();
+				cursor.jumpFwd( ( long ) firstWord << 6 );
+				for ( int w = firstWord; w < lastWord; w++ )
+				{
+					final int nBits = ( int ) Math.min( 64, nPixels - ( ( long ) w << 6 ) );
+					long word = 0l;
+					for ( int b = 0; b < nBits; b++ )
+						if ( cursor.next().getRealDouble() > threshold )
+							word |= 1l << b;
+					words[ w ] = word;
+				}
+				return null;
+			} );
+		}
+
+		try
+		{
+			final List< Future< Void > > futures = es.invokeAll( tasks );
+			for ( final Future< Void > future : futures )
+				future.get();
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			e.printStackTrace();
+		}
+		return mask;
+	}
+
+	/**
+	 * Returns the words of the specified mask if it is a packed mask, or
+	 * <code>null</code> otherwise. The returned array must not be modified.
+	 *
+	 * @param mask
+	 *            the mask.
+	 * @return the words of the mask, or <code>null</code>.
+	 */
+	public static long[] getWords( final IterableInterval< ? > mask )
+	{
+		if ( !( mask instanceof ArrayImg ) || !( mask.firstElement() instanceof BitType ) )
+			return null;
+		final Object access = ( ( ArrayImg< ?, ? > ) mask ).update( null );
+		if ( !( access instanceof LongArray ) )
+			return null;
+		return ( ( LongArray ) access ).getCurrentStorageArray();
+	}
+
+	/**
+	 * Returns the number of foreground pixels of the specified mask. Packed
+	 * masks are counted one word at a time.
+	 *
+	 * @param mask
+	 *            the mask.
+	 * @return the number of pixels that are <code>true</code>.
+	 */
+	public static long count( final IterableInterval< BitType > mask )
+	{
+		final long[] words = getWords( mask );
+		long count = 0;
+		if ( null != words )
+		{
+			for ( final long word : words )
+				count += Long.bitCount( word );
+			return count;
+		}
+		for ( final BitType pixel : mask )
+			if ( pixel.get() )
+				count++;
+		return count;
+	}
+}
@@ -0,0 +1,509 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner.hough;
+
+import java.util.Arrays;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * The list of pixel offsets that make a rasterized circle of a given radius,
+ * computed once with the midpoint algorithm and reused for all the voters of
+ * the Hough transform.
+ * <p>
+ * When the vote plane is backed by a flat array, the offsets are also stored
+ * as linear offsets in this array, so that voting for a pixel far enough from
+ * the plane borders is a plain loop of array increments. Voters closer to the
+ * border go through a bounds-checked path, in which the votes falling outside
+ * of the plane are discarded.
+ *
+ * @author agent
+ */
+public class CircleStencil
+{
+
+	private final int radius;
+
+	private final int[] dx;
+
+	private final int[] dy;
+
+	/**
+	 * The largest absolute offset of this stencil along X and Y.
+	 */
+	private final int extent;
+
+	/**
+	 * The width for which the linear offsets were computed, or -1 if they were
+	 * not computed yet.
+	 */
+	private int width = -1;
+
+	private int[] linearOffsets;
+
+	/**
+	 * The X offsets sorted by increasing Y offset. The offsets of the row at
+	 * <code>dy</code> are between <code>rowStarts[dy + extent]</code>
+	 * (inclusive) and <code>rowStarts[dy + extent + 1]</code> (exclusive).
+	 */
+	private final int[] rowDx;
+
+	private final int[] rowStarts;
+
+	public CircleStencil( final int radius )
+	{
+		this.radius = radius;
+
+		/*
+		 * We "zig-zag" through indices, so that we reconstruct a continuous set
+		 * of of x,y coordinates, starting from the top of the circle.
+		 */
+
+		final int octantSize = ( int ) Math.floor( ( Math.sqrt( 2 ) * ( radius - 1 ) + 4 ) / 2 );
+		final int nPoints = 8 * Math.max( 0, octantSize - 2 );
+		this.dx = new int[ nPoints ];
+		this.dy = new int[ nPoints ];
+
+		int x = 0;
+		int y = radius;
+		int f = 1 - radius;
+		int ddx = 1;
+		int ddy = -2 * radius;
+		int index = 0;
+		int e = 0;
+
+		for ( int i = 2; i < octantSize; i++ )
+		{
+			// We update x & y
+			if ( f > 0 )
+			{
+				y = y - 1;
+				ddy = ddy + 2;
+				f = f + ddy;
+			}
+			x = x + 1;
+			ddx = ddx + 2;
+			f = f + ddx;
+
+			// 1st octant.
+			dx[ index ] = x;
+			dy[ index++ ] = y;
+			// 2nd octant.
+			dx[ index ] = -x;
+			dy[ index++ ] = y;
+			// 3rd octant.
+			dx[ index ] = x;
+			dy[ index++ ] = -y;
+			// 4th octant.
+			dx[ index ] = -x;
+			dy[ index++ ] = -y;
+			// 5th octant.
+			dx[ index ] = y;
+			dy[ index++ ] = x;
+			// 6th octant.
+			dx[ index ] = -y;
+			dy[ index++ ] = x;
+			// 7th octant.
+			dx[ index ] = y;
+			dy[ index++ ] = -x;
+			// 8th octant.
+			dx[ index ] = -y;
+			dy[ index++ ] = -x;
+
+			e = Math.max( e, Math.max( x, y ) );
+		}
+		this.extent = e;
+
+		// Row-sorted layout, with a counting sort on dy.
+		this.rowStarts = new int[ 2 * e + 2 ];
+		for ( int i = 0; i < nPoints; i++ )
+			rowStarts[ dy[ i ] + e + 1 ]++;
+		for ( int r = 1; r < rowStarts.length; r++ )
+			rowStarts[ r ] += rowStarts[ r - 1 ];
+		this.rowDx = new int[ nPoints ];
+		final int[] fill = Arrays.copyOf( rowStarts, rowStarts.length );
+		for ( int i = 0; i < nPoints; i++ )
+			rowDx[ fill[ dy[ i ] + e ]++ ] = dx[ i ];
+	}
+
+	public int getRadius()
+	{
+		return radius;
+	}
+
+	/**
+	 * Returns the number of pixels in this stencil.
+	 *
+	 * @return the number of pixels.
+	 */
+	public int size()
+	{
+		return dx.length;
+	}
+
+	/**
+	 * Returns the largest absolute offset of this stencil along X and Y.
+	 *
+	 * @return the stencil extent.
+	 */
+	public int getExtent()
+	{
+		return extent;
+	}
+
+	/**
+	 * Returns the X offsets of this stencil. The array must not be modified.
+	 *
+	 * @return the X offsets.
+	 */
+	public int[] getDx()
+	{
+		return dx;
+	}
+
+	/**
+	 * Returns the Y offsets of this stencil. The array must not be modified.
+	 *
+	 * @return the Y offsets.
+	 */
+	public int[] getDy()
+	{
+		return dy;
+	}
+
+	/**
+	 * Returns the linear offsets of this stencil in a plane of the specified
+	 * width, stored along X first. They are computed on the first call for a
+	 * given width.
+	 *
+	 * @param planeWidth
+	 *            the width of the plane.
+	 * @return the linear offsets. The array must not be modified.
+	 */
+	public synchronized int[] getLinearOffsets( final int planeWidth )
+	{
+		if ( planeWidth != width )
+		{
+			final int[] offsets = new int[ dx.length ];
+			for ( int i = 0; i < offsets.length; i++ )
+				offsets[ i ] = dx[ i ] + dy[ i ] * planeWidth;
+			linearOffsets = offsets;
+			width = planeWidth;
+		}
+		return linearOffsets;
+	}
+
+	/**
+	 * Returns <code>true</code> if all the pixels of this stencil centered on
+	 * the specified position fall inside a plane of the specified size.
+	 */
+	public boolean isInterior( final int x0, final int y0, final int planeWidth, final int planeHeight )
+	{
+		return x0 - extent >= 0 && x0 + extent < planeWidth && y0 - extent >= 0 && y0 + extent < planeHeight;
+	}
+
+	/**
+	 * Adds one vote to all the pixels of this stencil centered on the
+	 * specified position, in a plane stored as a flat array.
+	 *
+	 * @param x0
+	 *            the X position of the voter.
+	 * @param y0
+	 *            the Y position of the voter.
+	 * @param data
+	 *            the flat array containing the vote plane.
+	 * @param planeOffset
+	 *            the index of the first pixel of the vote plane in the array.
+	 * @param offsets
+	 *            the linear offsets returned by
+	 *            {@link #getLinearOffsets(int)} for the plane width.
+	 * @param planeWidth
+	 *            the width of the vote plane.
+	 * @param planeHeight
+	 *            the height of the vote plane.
+	 */
+	public void vote( final int x0, final int y0, final double[] data, final int planeOffset, final int[] offsets, final int planeWidth, final int planeHeight )
+	{
+		if ( isInterior( x0, y0, planeWidth, planeHeight ) )
+		{
+			final int center = planeOffset + x0 + y0 * planeWidth;
+			for ( final int offset : offsets )
+				data[ center + offset ]++;
+		}
+		else
+		{
+			for ( int i = 0; i < dx.length; i++ )
+			{
+				final int x = x0 + dx[ i ];
+				final int y = y0 + dy[ i ];
+				if ( x < 0 || x >= planeWidth || y < 0 || y >= planeHeight )
+					continue;
+				data[ planeOffset + x + y * planeWidth ]++;
+			}
+		}
+	}
+
+	/**
+	 * Adds a weighted vote to all the pixels of this stencil centered on the
+	 * specified position, in a plane stored as a flat array.
+	 *
+	 * @param weight
+	 *            the value added to each pixel.
+	 * @see #vote(int, int, double[], int, int[], int, int)
+	 */
+	public void vote( final int x0, final int y0, final double[] data, final int planeOffset, final int[] offsets, final int planeWidth, final int planeHeight, final double weight )
+	{
+		if ( isInterior( x0, y0, planeWidth, planeHeight ) )
+		{
+			final int center = planeOffset + x0 + y0 * planeWidth;
+			for ( final int offset : offsets )
+				data[ center + offset ] += weight;
+		}
+		else
+		{
+			for ( int i = 0; i < dx.length; i++ )
+			{
+				final int x = x0 + dx[ i ];
+				final int y = y0 + dy[ i ];
+				if ( x < 0 || x >= planeWidth || y < 0 || y >= planeHeight )
+					continue;
+				data[ planeOffset + x + y * planeWidth ] += weight;
+			}
+		}
+	}
+
+	/**
+	 * Adds one vote to all the pixels of this stencil centered on the
+	 * specified position, in a plane stored as a flat <code>int</code> array.
+	 *
+	 * @see #vote(int, int, double[], int, int[], int, int)
+	 */
+	public void vote( final int x0, final int y0, final int[] data, final int planeOffset, final int[] offsets, final int planeWidth, final int planeHeight )
+	{
+		if ( isInterior( x0, y0, planeWidth, planeHeight ) )
+		{
+			final int center = planeOffset + x0 + y0 * planeWidth;
+			for ( final int offset : offsets )
+				data[ center + offset ]++;
+		}
+		else
+		{
+			for ( int i = 0; i < dx.length; i++ )
+			{
+				final int x = x0 + dx[ i ];
+				final int y = y0 + dy[ i ];
+				if ( x < 0 || x >= planeWidth || y < 0 || y >= planeHeight )
+					continue;
+				data[ planeOffset + x + y * planeWidth ]++;
+			}
+		}
+	}
+
+	/**
+	 * Adds one vote to all the pixels of this stencil centered on the
+	 * specified position, in a plane stored as a flat <code>short</code>
+	 * array. Values are interpreted as unsigned, and saturate at
+	 * {@link AccumulatorType#UNSIGNED_SHORT_MAX}.
+	 *
+	 * @see #vote(int, int, double[], int, int[], int, int)
+	 */
+	public void vote( final int x0, final int y0, final short[] data, final int planeOffset, final int[] offsets, final int planeWidth, final int planeHeight )
+	{
+		if ( isInterior( x0, y0, planeWidth, planeHeight ) )
+		{
+			final int center = planeOffset + x0 + y0 * planeWidth;
+			for ( final int offset : offsets )
+				incUnsigned( data, center + offset );
+		}
+		else
+		{
+			for ( int i = 0; i < dx.length; i++ )
+			{
+				final int x = x0 + dx[ i ];
+				final int y = y0 + dy[ i ];
+				if ( x < 0 || x >= planeWidth || y < 0 || y >= planeHeight )
+					continue;
+				incUnsigned( data, planeOffset + x + y * planeWidth );
+			}
+		}
+	}
+
+	/**
+	 * Adds one vote to the pixels of this stencil centered on the specified
+	 * position that fall in the specified range of rows of a single plane,
+	 * stored as a flat <code>int</code> array. Several threads can therefore
+	 * vote in the same plane, as long as they are given disjoint row ranges.
+	 *
+	 * @param x0
+	 *            the X position of the voter.
+	 * @param y0
+	 *            the Y position of the voter.
+	 * @param plane
+	 *            the flat array containing the vote plane.
+	 * @param planeWidth
+	 *            the width of the vote plane.
+	 * @param rowMin
+	 *            the first row to vote in, inclusive.
+	 * @param rowMax
+	 *            the last row to vote in, exclusive.
+	 */
+	public void voteInRows( final int x0, final int y0, final int[] plane, final int planeWidth, final int rowMin, final int rowMax )
+	{
+		final int dyMin = Math.max( -extent, rowMin - y0 );
+		final int dyMax = Math.min( extent, rowMax - 1 - y0 );
+		for ( int ddy = dyMin; ddy <= dyMax; ddy++ )
+		{
+			final int lineOffset = ( y0 + ddy ) * planeWidth;
+			final int end = rowStarts[ ddy + extent + 1 ];
+			for ( int p = rowStarts[ ddy + extent ]; p < end; p++ )
+			{
+				final int x = x0 + rowDx[ p ];
+				if ( x < 0 || x >= planeWidth )
+					continue;
+				plane[ lineOffset + x ]++;
+			}
+		}
+	}
+
+	/**
+	 * Adds one vote to the pixels of this stencil centered on the specified
+	 * position that fall in the specified box of the current plane of a
+	 * {@link RandomAccess}. This lets the vote image be filled one cell at a
+	 * time.
+	 *
+	 * @param x0
+	 *            the X position of the voter.
+	 * @param y0
+	 *            the Y position of the voter.
+	 * @param ra
+	 *            a random access on the vote image, positioned in the plane
+	 *            to vote in.
+	 * @param xMin
+	 *            the first column of the box, inclusive.
+	 * @param yMin
+	 *            the first row of the box, inclusive.
+	 * @param xMax
+	 *            the last column of the box, inclusive.
+	 * @param yMax
+	 *            the last row of the box, inclusive.
+	 */
+	public < R extends RealType< R > > void voteInBox( final int x0, final int y0, final RandomAccess< R > ra, final int xMin, final int yMin, final int xMax, final int yMax )
+	{
+		final int dyMin = Math.max( -extent, yMin - y0 );
+		final int dyMax = Math.min( extent, yMax - y0 );
+		for ( int ddy = dyMin; ddy <= dyMax; ddy++ )
+		{
+			ra.setPosition( y0 + ddy, 1 );
+			final int end = rowStarts[ ddy + extent + 1 ];
+			for ( int p = rowStarts[ ddy + extent ]; p < end; p++ )
+			{
+				final int x = x0 + rowDx[ p ];
+				if ( x < xMin || x > xMax )
+					continue;
+				ra.setPosition( x, 0 );
+				inc( ra.get() );
+			}
+		}
+	}
+
+	private static final void incUnsigned( final short[] data, final int index )
+	{
+		final int val = data[ index ] & AccumulatorType.UNSIGNED_SHORT_MAX;
+		if ( val < AccumulatorType.UNSIGNED_SHORT_MAX )
+			data[ index ] = ( short ) ( val + 1 );
+	}
+
+	/**
+	 * Adds one vote to a pixel of a vote image accessed through a
+	 * {@link RandomAccess}. Like with the <code>short[]</code> path, integer
+	 * pixels saturate at the max value of their type instead of wrapping.
+	 */
+	static final < R extends RealType< R > > void inc( final R v )
+	{
+		if ( v.getRealDouble() < v.getMaxValue() )
+			v.inc();
+	}
+
+	/**
+	 * Adds one vote to all the pixels of this stencil centered on the
+	 * specified position, using a {@link RandomAccess} on the vote plane. This
+	 * is the fallback for vote images not backed by a single flat array.
+	 * Integer pixels saturate instead of wrapping.
+	 *
+	 * @param x0
+	 *            the X position of the voter.
+	 * @param y0
+	 *            the Y position of the voter.
+	 * @param ra
+	 *            a random access on the vote plane.
+	 * @param planeWidth
+	 *            the width of the vote plane.
+	 * @param planeHeight
+	 *            the height of the vote plane.
+	 */
+	public < R extends RealType< R > > void vote( final int x0, final int y0, final RandomAccess< R > ra, final int planeWidth, final int planeHeight )
+	{
+		final boolean interior = isInterior( x0, y0, planeWidth, planeHeight );
+		for ( int i = 0; i < dx.length; i++ )
+		{
+			final int x = x0 + dx[ i ];
+			final int y = y0 + dy[ i ];
+			if ( !interior && ( x < 0 || x >= planeWidth || y < 0 || y >= planeHeight ) )
+				continue;
+			ra.setPosition( x, 0 );
+			ra.setPosition( y, 1 );
+			inc( ra.get() );
+		}
+	}
+
+	/**
+	 * Adds a weighted vote to all the pixels of this stencil centered on the
+	 * specified position, using a {@link RandomAccess} on the vote plane.
+	 *
+	 * @param weight
+	 *            the value added to each pixel.
+	 * @see #vote(int, int, RandomAccess, int, int)
+	 */
+	public < R extends RealType< R > > void vote( final int x0, final int y0, final RandomAccess< R > ra, final int planeWidth, final int planeHeight, final double weight )
+	{
+		final boolean interior = isInterior( x0, y0, planeWidth, planeHeight );
+		for ( int i = 0; i < dx.length; i++ )
+		{
+			final int x = x0 + dx[ i ];
+			final int y = y0 + dy[ i ];
+			if ( !interior && ( x < 0 || x >= planeWidth || y < 0 || y >= planeHeight ) )
+				continue;
+			ra.setPosition( x, 0 );
+			ra.setPosition( y, 1 );
+			final R v = ra.get();
+			v.setReal( v.getRealDouble() + weight );
+		}
+	}
+}
@@ -0,0 +1,295 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner.hough;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Difference of Gaussians of a vote image, with separate sigmas along X, Y
+ * and the radius.
+ * <p>
+ * The result is the image smoothed with the smaller sigmas minus the image
+ * smoothed with the larger ones, so that rings give positive values. The
+ * two smoothings are computed and subtracted tile by tile, in each radius
+ * plane: a tile of the vote image is smoothed along the radius, then along
+ * X and Y for the first scale, and again for the second scale, and the
+ * difference is written in the result. When both scales have the same
+ * sigma along the radius, the radius smoothing is only done once. The only
+ * image allocated is the result, which is stored plane by plane so that its
+ * size is not limited by the indexing of a single array. Each task uses
+ * tile-sized scratch buffers, allocated once per call.
+ * <p>
+ * Kernels have the same size as in {@link net.imglib2.algorithm.gauss3.Gauss3},
+ * and the vote image is extended with zeros.
+ *
+ * @author agent
+ */
+final class DogFilter
+{
+
+	/**
+	 * Width and height of the tiles processed at once.
+	 */
+	private static final int TILE_SIZE = 256;
+
+	private DogFilter()
+	{}
+
+	/**
+	 * Computes the difference of Gaussians of a 3D vote image.
+	 *
+	 * @param votes
+	 *            the vote image, whose last dimension is the radius.
+	 * @param interval
+	 *            the interval over which to compute the difference of
+	 *            Gaussians.
+	 * @param sigmasSmall
+	 *            the sigmas of the smaller scale, along X, Y and the radius.
+	 *            A sigma of 0 means no smoothing along this dimension.
+	 * @param sigmasLarge
+	 *            the sigmas of the larger scale.
+	 * @param es
+	 *            the executor service that runs the tasks.
+	 * @param numThreads
+	 *            the number of tasks to use.
+	 * @return a new image with the size of the interval, whose origin is the
+	 *         min of the interval.
+	 */
+	static < T extends RealType< T > > PlanarImg< FloatType, FloatArray > compute(
+			final RandomAccessibleInterval< T > votes,
+			final Interval interval,
+			final double[] sigmasSmall,
+			final double[] sigmasLarge,
+			final ExecutorService es,
+			final int numThreads ) throws InterruptedException, ExecutionException
+	{
+		final int w = ( int ) interval.dimension( 0 );
+		final int h = ( int ) interval.dimension( 1 );
+		final int depth = ( int ) interval.dimension( 2 );
+		final PlanarImg< FloatType, FloatArray > dog = PlanarImgs.floats( w, h, depth );
+
+		final double[][] kernelsSmall = new double[ 3 ][];
+		final double[][] kernelsLarge = new double[ 3 ][];
+		for ( int d = 0; d < 3; d++ )
+		{
+			kernelsSmall[ d ] = halfKernel( sigmasSmall[ d ] );
+			kernelsLarge[ d ] = halfKernel( sigmasLarge[ d ] );
+		}
+		final boolean sameRadiusKernel = Arrays.equals( kernelsSmall[ 2 ], kernelsLarge[ 2 ] );
+
+		// Margins of the source tiles.
+		final int kx = Math.max( kernelsSmall[ 0 ].length, kernelsLarge[ 0 ].length ) - 1;
+		final int ky = Math.max( kernelsSmall[ 1 ].length, kernelsLarge[ 1 ].length ) - 1;
+
+		final int nTilesX = ( w + TILE_SIZE - 1 ) / TILE_SIZE;
+		final int nTilesY = ( h + TILE_SIZE - 1 ) / TILE_SIZE;
+		final long nUnits = ( long ) nTilesX * nTilesY * depth;
+
+		final RandomAccessible< T > extended = Views.extendZero( votes );
+		final int nTasks = ( int ) Math.max( 1, Math.min( numThreads, nUnits ) );
+		final List< Callable< Void > > tasks = new ArrayList<>( nTasks );
+		for ( int t = 0; t < nTasks; t++ )
+		{
+			final int first = t;
+			tasks.add( () -> {
+				final int tw = Math.min( TILE_SIZE, w );
+				final int th = Math.min( TILE_SIZE, h );
+				final float[] source = new float[ ( tw + 2 * kx ) * ( th + 2 * ky ) ];
+				final float[] rows = new float[ tw * ( th + 2 * ky ) ];
+				final float[] tile = new float[ tw * th ];
+
+				for ( long u = first; u < nUnits; u += nTasks )
+				{
+					final int z = ( int ) ( u / ( nTilesX * nTilesY ) );
+					final int ti = ( int ) ( u % ( nTilesX * nTilesY ) );
+					final int x0 = ( ti % nTilesX ) * TILE_SIZE;
+					final int y0 = ( ti / nTilesX ) * TILE_SIZE;
+					final int uw = Math.min( TILE_SIZE, w - x0 );
+					final int uh = Math.min( TILE_SIZE, h - y0 );
+					final long[] min = new long[] { interval.min( 0 ) + x0 - kx, interval.min( 1 ) + y0 - ky, interval.min( 2 ) + z };
+					final long[] max = new long[] { interval.min( 0 ) + x0 + uw - 1 + kx, interval.min( 1 ) + y0 + uh - 1 + ky, interval.min( 2 ) + z };
+					final Interval sourceTile = new FinalInterval( min, max );
+					final float[] plane = dog.getPlane( z ).getCurrentStorageArray();
+					final int offset = y0 * w + x0;
+
+					smoothRadius( extended, votes, sourceTile, kernelsSmall[ 2 ], source );
+					smoothTile( source, uw, uh, kx, ky, kernelsSmall[ 0 ], kernelsSmall[ 1 ], rows, tile, 0, uw );
+					if ( !sameRadiusKernel )
+						smoothRadius( extended, votes, sourceTile, kernelsLarge[ 2 ], source );
+					smoothTile( source, uw, uh, kx, ky, kernelsLarge[ 0 ], kernelsLarge[ 1 ], rows, plane, offset, w );
+
+					for ( int y = 0; y < uh; y++ )
+					{
+						final int row = offset + y * w;
+						for ( int x = 0; x < uw; x++ )
+							plane[ row + x ] = tile[ y * uw + x ] - plane[ row + x ];
+					}
+				}
+				return null;
+			} );
+		}
+
+		final List< Future< Void > > futures = es.invokeAll( tasks );
+		for ( final Future< Void > future : futures )
+			future.get();
+
+		return dog;
+	}
+
+	/**
+	 * Writes the sum of the tiles of the planes around the one of the
+	 * specified source tile, weighted by the radius kernel.
+	 */
+	private static < T extends RealType< T > > void smoothRadius(
+			final RandomAccessible< T > extended,
+			final Interval votes,
+			final Interval sourceTile,
+			final double[] kernel,
+			final float[] source )
+	{
+		final int size = ( int ) ( sourceTile.dimension( 0 ) * sourceTile.dimension( 1 ) );
+		Arrays.fill( source, 0, size, 0f );
+		final long z = sourceTile.min( 2 );
+		final int kz = kernel.length - 1;
+		for ( int dz = -kz; dz <= kz; dz++ )
+		{
+			final long zs = z + dz;
+			if ( zs < votes.min( 2 ) || zs > votes.max( 2 ) )
+				continue;
+
+			final float weight = ( float ) kernel[ Math.abs( dz ) ];
+			final Interval plane = new FinalInterval(
+					new long[] { sourceTile.min( 0 ), sourceTile.min( 1 ), zs },
+					new long[] { sourceTile.max( 0 ), sourceTile.max( 1 ), zs } );
+			final Cursor< T > cursor = Views.flatIterable( Views.interval( extended, plane ) ).cursor();
+			for ( int i = 0; i < size; i++ )
+				source[ i ] += weight * cursor.next().getRealFloat();
+		}
+	}
+
+	/**
+	 * Convolves a source tile of <code>(w + 2kx) × (h + 2ky)</code> pixels
+	 * along X then Y, and writes the <code>w × h</code> central pixels to the
+	 * target array, starting at the specified offset with the specified row
+	 * stride.
+	 */
+	private static void smoothTile(
+			final float[] source,
+			final int w,
+			final int h,
+			final int kx,
+			final int ky,
+			final double[] kernelX,
+			final double[] kernelY,
+			final float[] rows,
+			final float[] target,
+			final int offset,
+			final int stride )
+	{
+		final int sw = w + 2 * kx;
+		final int sh = h + 2 * ky;
+
+		// Along X, for all the source rows.
+		final int kkx = kernelX.length - 1;
+		for ( int y = 0; y < sh; y++ )
+		{
+			final int row = y * sw + kx;
+			for ( int x = 0; x < w; x++ )
+			{
+				final int i = row + x;
+				double sum = kernelX[ 0 ] * source[ i ];
+				for ( int j = 1; j <= kkx; j++ )
+					sum += kernelX[ j ] * ( source[ i - j ] + source[ i + j ] );
+				rows[ y * w + x ] = ( float ) sum;
+			}
+		}
+
+		// Along Y, for the central rows.
+		final int kky = kernelY.length - 1;
+		for ( int y = 0; y < h; y++ )
+		{
+			final int center = ( y + ky ) * w;
+			final int out = offset + y * stride;
+			for ( int x = 0; x < w; x++ )
+				target[ out + x ] = ( float ) ( kernelY[ 0 ] * rows[ center + x ] );
+			for ( int j = 1; j <= kky; j++ )
+			{
+				final float kj = ( float ) kernelY[ j ];
+				final int above = center - j * w;
+				final int below = center + j * w;
+				for ( int x = 0; x < w; x++ )
+					target[ out + x ] += kj * ( rows[ above + x ] + rows[ below + x ] );
+			}
+		}
+	}
+
+	/**
+	 * Returns the normalized half kernel of a Gaussian, starting from its
+	 * center, with the size used by
+	 * {@link net.imglib2.algorithm.gauss3.Gauss3}. A sigma of 0 gives the
+	 * identity kernel.
+	 */
+	private static double[] halfKernel( final double sigma )
+	{
+		if ( sigma <= 0. )
+			return new double[] { 1. };
+
+		final int size = Math.max( 2, ( int ) ( 3 * sigma + 0.5 ) + 1 );
+		final double[] kernel = new double[ size ];
+		final double twoSqSigma = 2 * sigma * sigma;
+		kernel[ 0 ] = 1.;
+		double sum = 1.;
+		for ( int x = 1; x < size; x++ )
+		{
+			kernel[ x ] = Math.exp( -( x * x ) / twoSqSigma );
+			sum += 2 * kernel[ x ];
+		}
+		for ( int x = 0; x < size; x++ )
+			kernel[ x ] /= sum;
+		return kernel;
+	}
+}
@@ -0,0 +1,203 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner.hough;
+
+/**
+ * In-place 2D complex FFT on double arrays, for power-of-two sizes.
+ * <p>
+ * Arrays store the real and imaginary parts of a row-major image separately.
+ * Instances only hold the precomputed tables and can be shared by threads.
+ *
+ * @author agent
+ */
+final class Fft2D
+{
+
+	private final int width;
+
+	private final int height;
+
+	private final Fft1D rows;
+
+	private final Fft1D columns;
+
+	Fft2D( final int width, final int height )
+	{
+		this.width = width;
+		this.height = height;
+		this.rows = new Fft1D( width );
+		this.columns = ( height == width ) ? rows : new Fft1D( height );
+	}
+
+	int getWidth()
+	{
+		return width;
+	}
+
+	int getHeight()
+	{
+		return height;
+	}
+
+	/**
+	 * Forward transform, in place.
+	 */
+	void forward( final double[] re, final double[] im )
+	{
+		transform( re, im, false );
+	}
+
+	/**
+	 * Inverse transform, in place, including the 1 / N normalization.
+	 */
+	void inverse( final double[] re, final double[] im )
+	{
+		transform( re, im, true );
+		final double scale = 1. / ( ( double ) width * height );
+		for ( int i = 0; i < re.length; i++ )
+		{
+			re[ i ] *= scale;
+			im[ i ] *= scale;
+		}
+	}
+
+	private void transform( final double[] re, final double[] im, final boolean inverse )
+	{
+		final double[] lineRe = new double[ Math.max( width, height ) ];
+		final double[] lineIm = new double[ lineRe.length ];
+		for ( int y = 0; y < height; y++ )
+		{
+			final int offset = y * width;
+			System.arraycopy( re, offset, lineRe, 0, width );
+			System.arraycopy( im, offset, lineIm, 0, width );
+			rows.transform( lineRe, lineIm, inverse );
+			System.arraycopy( lineRe, 0, re, offset, width );
+			System.arraycopy( lineIm, 0, im, offset, width );
+		}
+		for ( int x = 0; x < width; x++ )
+		{
+			for ( int y = 0; y < height; y++ )
+			{
+				lineRe[ y ] = re[ x + y * width ];
+				lineIm[ y ] = im[ x + y * width ];
+			}
+			columns.transform( lineRe, lineIm, inverse );
+			for ( int y = 0; y < height; y++ )
+			{
+				re[ x + y * width ] = lineRe[ y ];
+				im[ x + y * width ] = lineIm[ y ];
+			}
+		}
+	}
+
+	/**
+	 * Returns the smallest power of two larger than or equal to the specified
+	 * value.
+	 */
+	static long nextPowerOfTwo( final long n )
+	{
+		long p = 1;
+		while ( p < n )
+			p <<= 1;
+		return p;
+	}
+
+	/**
+	 * Iterative radix-2 FFT of a given size.
+	 */
+	private static final class Fft1D
+	{
+
+		private final int n;
+
+		private final int[] reversed;
+
+		private final double[] cos;
+
+		private final double[] sin;
+
+		private Fft1D( final int n )
+		{
+			if ( Integer.bitCount( n ) != 1 )
+				throw new IllegalArgumentException( "FFT size must be a power of two. Got " + n + "." );
+			this.n = n;
+			this.reversed = new int[ n ];
+			final int bits = Integer.numberOfTrailingZeros( n );
+			for ( int i = 0; i < n; i++ )
+				reversed[ i ] = ( bits == 0 ) ? 0 : Integer.reverse( i ) >>> ( 32 - bits );
+			this.cos = new double[ n / 2 ];
+			this.sin = new double[ n / 2 ];
+			for ( int i = 0; i < n / 2; i++ )
+			{
+				cos[ i ] = Math.cos( 2. * Math.PI * i / n );
+				sin[ i ] = Math.sin( 2. * Math.PI * i / n );
+			}
+		}
+
+		private void transform( final double[] re, final double[] im, final boolean inverse )
+		{
+			for ( int i = 0; i < n; i++ )
+			{
+				final int j = reversed[ i ];
+				if ( j > i )
+				{
+					final double tr = re[ i ];
+					re[ i ] = re[ j ];
+					re[ j ] = tr;
+					final double ti = im[ i ];
+					im[ i ] = im[ j ];
+					im[ j ] = ti;
+				}
+			}
+
+			final double sign = inverse ? 1. : -1.;
+			for ( int size = 2; size <= n; size <<= 1 )
+			{
+				final int half = size >> 1;
+				final int step = n / size;
+				for ( int start = 0; start < n; start += size )
+				{
+					for ( int k = 0; k < half; k++ )
+					{
+						final double wr = cos[ k * step ];
+						final double wi = sign * sin[ k * step ];
+						final int a = start + k;
+						final int b = a + half;
+						final double xr = re[ b ] * wr - im[ b ] * wi;
+						final double xi = re[ b ] * wi + im[ b ] * wr;
+						re[ b ] = re[ a ] - xr;
+						im[ b ] = im[ a ] - xi;
+						re[ a ] += xr;
+						im[ a ] += xi;
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,460 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner.hough;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.scijava.Cancelable;
+import org.scijava.app.StatusService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.thread.ThreadService;
+
+import ij.Prefs;
+import net.imagej.ops.special.hybrid.AbstractUnaryHybridCF;
+import net.imglib2.Cursor;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalDimensions;
+import net.imglib2.IterableInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Hough transform computed with FFTs.
+ * <p>
+ * Each radius plane of the vote image is the convolution of the mask with a
+ * ring kernel made of the offsets of the {@link CircleStencil} of this
+ * radius. The mask is transformed once, and each plane is obtained by
+ * multiplying its spectrum with the spectrum of the ring kernel and
+ * transforming back. Images are zero-padded so that the convolution is not
+ * circular, and computations are done in double precision, so that rounding
+ * the result gives exactly the vote image of {@link HoughTransformOp}. Since
+ * the mask and the kernels are real, two planes are transformed back at once,
+ * one as the real part and one as the imaginary part of the same inverse
+ * transform.
+ * <p>
+ * The cost does not depend on the number of foreground pixels, so this is
+ * faster than voting for dense masks. Each task needs its own buffers of the
+ * padded size, so the number of tasks is limited by a memory budget, and
+ * images whose padded size does not fit in a Java array are rejected. Ring
+ * kernel spectra are cached for subsequent calls with the same padded size,
+ * within a bounded amount of memory.
+ *
+ * @author agent
+ */
+@Plugin( type = FftHoughTransformOp.class )
+public class FftHoughTransformOp< T extends RealType< T >, V extends RealType< V > & NativeType< V > >
+		extends AbstractUnaryHybridCF< IterableInterval< T >, Img< V > >
+		implements Cancelable
+{
+
+	/**
+	 * The largest number of pixels of the padded image. Sizes are powers of
+	 * two, and arrays are indexed by <code>int</code>.
+	 */
+	public static final long MAX_PADDED_SIZE = 1l << 30;
+
+	/**
+	 * How much memory (in bytes) the cached ring kernel spectra can use.
+	 */
+	private static final long KERNEL_SPECTRA_BUDGET = Runtime.getRuntime().maxMemory() / 8;
+
+	/**
+	 * Cached ring kernel spectra, as real and imaginary parts, keyed by
+	 * radius and padded size, in access order. Guarded by itself.
+	 */
+	private static final Map< Long, double[][] > KERNEL_SPECTRA = new LinkedHashMap<>( 16, 0.75f, true );
+
+	/**
+	 * The memory (in bytes) used by the cached ring kernel spectra. Guarded
+	 * by {@link #KERNEL_SPECTRA}.
+	 */
+	private static long kernelSpectraBytes = 0;
+
+	@Parameter
+	private StatusService statusService;
+
+	@Parameter
+	private ThreadService threadService;
+
+	@Parameter( min = "1" )
+	private int minRadius = 1;
+
+	@Parameter( min = "1" )
+	private int maxRadius = 50;
+
+	@Parameter( min = "1" )
+	private int stepRadius = 2;
+
+	@Parameter( required = false, min = "1" )
+	private int numThreads = Prefs.getThreads();
+
+	/**
+	 * The pixel type of the vote image created by
+	 * {@link #createOutput(IterableInterval)}. Only dense accumulators are
+	 * supported.
+	 */
+	@Parameter( required = false )
+	private AccumulatorType accumulatorType = AccumulatorType.DOUBLE;
+
+	/**
+	 * Pixels of the input with a value strictly above this threshold are
+	 * voters.
+	 */
+	@Parameter( required = false )
+	private double threshold = 0.;
+
+	/**
+	 * How much memory (in MB) the transforms can use, not counting the vote
+	 * image and the cached kernel spectra. It limits the number of tasks.
+	 */
+	@Parameter( required = false, min = "1" )
+	private int memoryBudget = defaultMemoryBudget();
+
+	/**
+	 * The number of voters found in the last call to
+	 * {@link #compute(IterableInterval, Img)}.
+	 */
+	private long nVoters;
+
+	@Override
+	public Img< V > createOutput( final IterableInterval< T > input )
+	{
+		final int numDimensions = input.numDimensions();
+		if ( numDimensions != 2 ) { throw new IllegalArgumentException(
+				"Cannot compute Hough transform non-2D images. Got " + numDimensions + "D image." ); }
+
+		maxRadius = Math.max( minRadius, maxRadius );
+		minRadius = Math.min( minRadius, maxRadius );
+		final int nRadiuses = ( maxRadius - minRadius ) / stepRadius + 1;
+
+		final Dimensions dimensions = FinalDimensions.wrap( new long[] { input.dimension( 0 ), input.dimension( 1 ), nRadiuses } );
+		@SuppressWarnings( "unchecked" )
+		final V type = ( V ) ( null == accumulatorType ? AccumulatorType.DOUBLE : accumulatorType ).createType();
+		final ImgFactory< V > factory = Util.getArrayOrCellImgFactory( dimensions, type );
+		return factory.create( dimensions );
+	}
+
+	@Override
+	public void compute( final IterableInterval< T > input, final Img< V > votes )
+	{
+		final int numDimensions = input.numDimensions();
+		if ( numDimensions != 2 ) { throw new IllegalArgumentException(
+				"Cannot compute Hough transform non-2D images. Got " + numDimensions + "D image." ); }
+
+		maxRadius = Math.max( minRadius, maxRadius );
+		minRadius = Math.min( minRadius, maxRadius );
+		final int nRadiuses = ( maxRadius - minRadius ) / stepRadius + 1;
+		final int width = ( int ) votes.dimension( 0 );
+		final int height = ( int ) votes.dimension( 1 );
+
+		final CircleStencil[] stencils = new CircleStencil[ nRadiuses ];
+		int maxExtent = 0;
+		for ( int i = 0; i < nRadiuses; i++ )
+		{
+			stencils[ i ] = new CircleStencil( minRadius + i * stepRadius );
+			maxExtent = Math.max( maxExtent, stencils[ i ].getExtent() );
+		}
+
+		/*
+		 * Mask spectrum. The padding must be larger than the kernel extent so
+		 * that votes falling outside of the image do not wrap around.
+		 */
+
+		final long paddedWidth = Fft2D.nextPowerOfTwo( width + maxExtent );
+		final long paddedHeight = Fft2D.nextPowerOfTwo( height + maxExtent );
+		final long paddedSize = paddedWidth * paddedHeight;
+		if ( paddedSize > MAX_PADDED_SIZE ) { throw new IllegalArgumentException(
+				"Cannot compute the FFT Hough transform of a " + width + "x" + height + " image with radius up to " + maxRadius
+						+ ": the padded image would have " + paddedSize + " pixels, more than " + MAX_PADDED_SIZE + "." ); }
+
+		// Planes are processed in pairs, so there is no point in more tasks.
+		final int nPairs = ( nRadiuses + 1 ) / 2;
+		final long budget = memoryBudget * 1024l * 1024l;
+		final long maxTasks = ( budget - requiredMemory( paddedSize, 0 ) ) / ( requiredMemory( paddedSize, 1 ) - requiredMemory( paddedSize, 0 ) );
+		if ( maxTasks < 1 ) { throw new IllegalArgumentException(
+				"Cannot compute the FFT Hough transform of a " + width + "x" + height + " image with radius up to " + maxRadius
+						+ " within " + memoryBudget + " MB: it needs " + requiredMemory( paddedSize, 1 ) / ( 1024 * 1024 ) + " MB." ); }
+		final int nTasks = ( int ) Math.max( 1, Math.min( maxTasks, Math.min( numThreads, nPairs ) ) );
+
+		final Fft2D fft = new Fft2D( ( int ) paddedWidth, ( int ) paddedHeight );
+		final int pw = ( int ) paddedWidth;
+		final double[] maskRe = new double[ ( int ) paddedSize ];
+		final double[] maskIm = new double[ maskRe.length ];
+		long found = 0;
+		final Cursor< T > cursor = input.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			if ( cursor.get().getRealDouble() <= threshold )
+				continue;
+			maskRe[ cursor.getIntPosition( 0 ) + cursor.getIntPosition( 1 ) * pw ] = 1.;
+			found++;
+		}
+		nVoters = found;
+		fft.forward( maskRe, maskIm );
+
+		/*
+		 * Two planes per inverse transform. Since both convolutions are real,
+		 * the inverse transform of A + iB has A as real part and B as
+		 * imaginary part, where A and B are the products of the mask spectrum
+		 * with each kernel spectrum. Pairs of planes are distributed to the
+		 * tasks in an interleaved manner, and each task has its own buffers.
+		 */
+
+		final double maxValue = votes.firstElement().getMaxValue();
+		final AtomicInteger done = new AtomicInteger( 0 );
+		final List< Callable< Void > > tasks = new ArrayList<>( nTasks );
+		for ( int t = 0; t < nTasks; t++ )
+		{
+			final int firstPair = t;
+			tasks.add( () -> {
+				final double[] re = new double[ maskRe.length ];
+				final double[] im = new double[ maskRe.length ];
+				for ( int pair = firstPair; pair < nPairs; pair += nTasks )
+				{
+					final int i1 = 2 * pair;
+					final int i2 = i1 + 1;
+					final double[][] kernel1 = getKernelSpectrum( stencils[ i1 ], fft );
+					final double[] k1Re = kernel1[ 0 ];
+					final double[] k1Im = kernel1[ 1 ];
+					if ( i2 < nRadiuses )
+					{
+						final double[][] kernel2 = getKernelSpectrum( stencils[ i2 ], fft );
+						final double[] k2Re = kernel2[ 0 ];
+						final double[] k2Im = kernel2[ 1 ];
+						for ( int k = 0; k < re.length; k++ )
+						{
+							final double aRe = maskRe[ k ] * k1Re[ k ] - maskIm[ k ] * k1Im[ k ];
+							final double aIm = maskRe[ k ] * k1Im[ k ] + maskIm[ k ] * k1Re[ k ];
+							final double bRe = maskRe[ k ] * k2Re[ k ] - maskIm[ k ] * k2Im[ k ];
+							final double bIm = maskRe[ k ] * k2Im[ k ] + maskIm[ k ] * k2Re[ k ];
+							re[ k ] = aRe - bIm;
+							im[ k ] = aIm + bRe;
+						}
+					}
+					else
+					{
+						for ( int k = 0; k < re.length; k++ )
+						{
+							re[ k ] = maskRe[ k ] * k1Re[ k ] - maskIm[ k ] * k1Im[ k ];
+							im[ k ] = maskRe[ k ] * k1Im[ k ] + maskIm[ k ] * k1Re[ k ];
+						}
+					}
+					fft.inverse( re, im );
+
+					writePlane( re, pw, votes, i1, width, height, maxValue );
+					statusService.showProgress( done.incrementAndGet(), nRadiuses );
+					if ( i2 < nRadiuses )
+					{
+						writePlane( im, pw, votes, i2, width, height, maxValue );
+						statusService.showProgress( done.incrementAndGet(), nRadiuses );
+					}
+					if ( isCanceled() )
+						return null;
+				}
+				return null;
+			} );
+		}
+
+		final ExecutorService es = threadService.getExecutorService();
+		try
+		{
+			final List< Future< Void > > futures = es.invokeAll( tasks );
+			for ( final Future< Void > future : futures )
+				future.get();
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns the number of input pixels above the threshold found in the
+	 * last call to {@link #compute(IterableInterval, Img)}.
+	 *
+	 * @return the number of voters.
+	 */
+	public long getNVoters()
+	{
+		return nVoters;
+	}
+
+	/**
+	 * Returns the number of pixels of the padded image used to compute the
+	 * Hough transform of an image of the specified size, up to the specified
+	 * radius.
+	 *
+	 * @param width
+	 *            the image width.
+	 * @param height
+	 *            the image height.
+	 * @param maxRadius
+	 *            the largest radius.
+	 * @return the padded size. Sizes larger than {@link #MAX_PADDED_SIZE}
+	 *         are rejected.
+	 */
+	public static long paddedSize( final long width, final long height, final int maxRadius )
+	{
+		final int extent = new CircleStencil( maxRadius ).getExtent();
+		return Fft2D.nextPowerOfTwo( width + extent ) * Fft2D.nextPowerOfTwo( height + extent );
+	}
+
+	/**
+	 * Returns the memory (in bytes) the transforms need for the specified
+	 * padded size and number of tasks: the mask spectrum, and for each task
+	 * its buffers and the two kernel spectra it uses, in case they are not
+	 * cached.
+	 *
+	 * @param paddedSize
+	 *            the number of pixels of the padded image.
+	 * @param nTasks
+	 *            the number of tasks.
+	 * @return the memory needed, in bytes.
+	 */
+	public static long requiredMemory( final long paddedSize, final int nTasks )
+	{
+		// Real and imaginary parts of doubles.
+		final long bytesPerSpectrum = 2l * 8l * paddedSize;
+		return bytesPerSpectrum * ( 1 + 3l * nTasks );
+	}
+
+	/**
+	 * Returns the default memory budget of the transforms, in MB: half of the
+	 * max heap size.
+	 *
+	 * @return the default memory budget.
+	 */
+	public static int defaultMemoryBudget()
+	{
+		return ( int ) Math.min( Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 2 / ( 1024 * 1024 ) );
+	}
+
+	/**
+	 * Writes the specified plane of the vote image from the real values of a
+	 * padded inverse transform, rounded and saturated like the integer
+	 * accumulators of the point voting.
+	 */
+	private static final < V extends RealType< V > > void writePlane( final double[] values, final int paddedWidth, final Img< V > votes, final int plane, final int width, final int height, final double maxValue )
+	{
+		final Cursor< V > out = Views.flatIterable( Views.hyperSlice( votes, 2, plane ) ).cursor();
+		for ( int y = 0; y < height; y++ )
+			for ( int x = 0; x < width; x++ )
+				out.next().setReal( Math.min( maxValue, Math.round( values[ x + y * paddedWidth ] ) ) );
+	}
+
+	/**
+	 * Returns the spectrum of the ring kernel of the specified stencil, for
+	 * the size of the specified FFT, from the cache if possible. Least
+	 * recently used spectra are evicted from the cache when it exceeds its
+	 * budget.
+	 */
+	private static final double[][] getKernelSpectrum( final CircleStencil stencil, final Fft2D fft )
+	{
+		final int w = fft.getWidth();
+		final int h = fft.getHeight();
+		final Long key = Long.valueOf( ( ( long ) stencil.getRadius() << 42 ) | ( ( long ) w << 21 ) | h );
+		synchronized ( KERNEL_SPECTRA )
+		{
+			final double[][] cached = KERNEL_SPECTRA.get( key );
+			if ( null != cached )
+				return cached;
+		}
+
+		// Offsets are counted as many times as they appear in the stencil.
+		final double[] re = new double[ w * h ];
+		final double[] im = new double[ w * h ];
+		final int[] dx = stencil.getDx();
+		final int[] dy = stencil.getDy();
+		for ( int i = 0; i < dx.length; i++ )
+		{
+			final int x = ( dx[ i ] + w ) % w;
+			final int y = ( dy[ i ] + h ) % h;
+			re[ x + y * w ] += 1.;
+		}
+		fft.forward( re, im );
+		final double[][] spectrum = new double[][] { re, im };
+
+		final long bytes = 2l * 8l * w * h;
+		if ( bytes > KERNEL_SPECTRA_BUDGET )
+			return spectrum;
+		synchronized ( KERNEL_SPECTRA )
+		{
+			if ( null == KERNEL_SPECTRA.put( key, spectrum ) )
+				kernelSpectraBytes += bytes;
+			final Iterator< double[][] > it = KERNEL_SPECTRA.values().iterator();
+			while ( kernelSpectraBytes > KERNEL_SPECTRA_BUDGET && it.hasNext() )
+			{
+				final double[][] evicted = it.next();
+				it.remove();
+				kernelSpectraBytes -= 2l * 8l * evicted[ 0 ].length;
+			}
+		}
+		return spectrum;
+	}
+
+	// -- Cancelable methods --
+
+	/** Reason for cancelation, or null if not canceled. */
+	private String cancelReason;
+
+	@Override
+	public boolean isCanceled()
+	{
+		return cancelReason != null;
+	}
+
+	/** Cancels the command execution, with the given reason for doing so. */
+	@Override
+	public void cancel( final String reason )
+	{
+		cancelReason = reason == null ? "" : reason;
+	}
+
+	@Override
+	public String getCancelReason()
+	{
+		return cancelReason;
+	}
+
+}
@@ -0,0 +1,236 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner.hough;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * The weighted pixel offsets of an anti-aliased circle, for Hough transforms
+ * with a radius step larger than 1.
+ * <p>
+ * With a {@link CircleStencil}, a radius plane only gets the votes of the
+ * pixels that are within half a pixel of its radius, so rings whose radius
+ * falls between two planes are missed. Instead, each offset at a distance
+ * <code>d</code> from the center splits its vote between the two radius
+ * planes around <code>d</code>, in proportion to how close it is to each.
+ * Seen from one plane of radius <code>r</code>, this is a stencil made of
+ * all the offsets with <code>|d - r| &lt; step</code>, weighted by
+ * <code>1 - |d - r| / step</code>. Since the two weights of an offset sum to
+ * 1 and their mean position is <code>d</code>, the centroid of the votes
+ * along the radius is preserved, see
+ * {@link SubpixelFit#twoBinOffset(double, double, double)}.
+ *
+ * @author agent
+ */
+public class FractionalCircleStencil
+{
+
+	private final int radius;
+
+	private final int[] dx;
+
+	private final int[] dy;
+
+	private final double[] weights;
+
+	/**
+	 * The largest absolute offset of this stencil along X and Y.
+	 */
+	private final int extent;
+
+	/**
+	 * The width for which the linear offsets were computed, or -1 if they were
+	 * not computed yet.
+	 */
+	private int width = -1;
+
+	private int[] linearOffsets;
+
+	/**
+	 * Creates the stencil of the plane of the specified radius, in a vote
+	 * image whose planes are separated by the specified step.
+	 *
+	 * @param radius
+	 *            the radius of the plane.
+	 * @param step
+	 *            the radius step between two planes.
+	 */
+	public FractionalCircleStencil( final int radius, final int step )
+	{
+		this.radius = radius;
+		final int e = radius + step - 1;
+		this.extent = e;
+
+		int n = 0;
+		for ( int y = -e; y <= e; y++ )
+			for ( int x = -e; x <= e; x++ )
+				if ( Math.abs( Math.sqrt( x * x + y * y ) - radius ) < step )
+					n++;
+
+		this.dx = new int[ n ];
+		this.dy = new int[ n ];
+		this.weights = new double[ n ];
+		int index = 0;
+		for ( int y = -e; y <= e; y++ )
+		{
+			for ( int x = -e; x <= e; x++ )
+			{
+				final double distance = Math.abs( Math.sqrt( x * x + y * y ) - radius );
+				if ( distance >= step )
+					continue;
+				dx[ index ] = x;
+				dy[ index ] = y;
+				weights[ index++ ] = 1. - distance / step;
+			}
+		}
+	}
+
+	public int getRadius()
+	{
+		return radius;
+	}
+
+	/**
+	 * Returns the number of pixels in this stencil.
+	 *
+	 * @return the number of pixels.
+	 */
+	public int size()
+	{
+		return dx.length;
+	}
+
+	/**
+	 * Returns the largest absolute offset of this stencil along X and Y.
+	 *
+	 * @return the stencil extent.
+	 */
+	public int getExtent()
+	{
+		return extent;
+	}
+
+	/**
+	 * Returns the linear offsets of this stencil in a plane of the specified
+	 * width, stored along X first. They are computed on the first call for a
+	 * given width.
+	 *
+	 * @param planeWidth
+	 *            the width of the plane.
+	 * @return the linear offsets. The array must not be modified.
+	 */
+	public synchronized int[] getLinearOffsets( final int planeWidth )
+	{
+		if ( planeWidth != width )
+		{
+			final int[] offsets = new int[ dx.length ];
+			for ( int i = 0; i < offsets.length; i++ )
+				offsets[ i ] = dx[ i ] + dy[ i ] * planeWidth;
+			linearOffsets = offsets;
+			width = planeWidth;
+		}
+		return linearOffsets;
+	}
+
+	/**
+	 * Returns <code>true</code> if all the pixels of this stencil centered on
+	 * the specified position fall inside a plane of the specified size.
+	 */
+	public boolean isInterior( final int x0, final int y0, final int planeWidth, final int planeHeight )
+	{
+		return x0 - extent >= 0 && x0 + extent < planeWidth && y0 - extent >= 0 && y0 + extent < planeHeight;
+	}
+
+	/**
+	 * Adds the weighted votes of a voter to all the pixels of this stencil
+	 * centered on the specified position, in a plane stored as a flat array.
+	 *
+	 * @param x0
+	 *            the X position of the voter.
+	 * @param y0
+	 *            the Y position of the voter.
+	 * @param data
+	 *            the flat array containing the vote plane.
+	 * @param planeOffset
+	 *            the index of the first pixel of the vote plane in the array.
+	 * @param offsets
+	 *            the linear offsets returned by
+	 *            {@link #getLinearOffsets(int)} for the plane width.
+	 * @param planeWidth
+	 *            the width of the vote plane.
+	 * @param planeHeight
+	 *            the height of the vote plane.
+	 * @param weight
+	 *            the weight of the voter, multiplied by the weight of each
+	 *            offset.
+	 */
+	public void vote( final int x0, final int y0, final double[] data, final int planeOffset, final int[] offsets, final int planeWidth, final int planeHeight, final double weight )
+	{
+		if ( isInterior( x0, y0, planeWidth, planeHeight ) )
+		{
+			final int center = planeOffset + x0 + y0 * planeWidth;
+			for ( int i = 0; i < offsets.length; i++ )
+				data[ center + offsets[ i ] ] += weight * weights[ i ];
+		}
+		else
+		{
+			for ( int i = 0; i < dx.length; i++ )
+			{
+				final int x = x0 + dx[ i ];
+				final int y = y0 + dy[ i ];
+				if ( x < 0 || x >= planeWidth || y < 0 || y >= planeHeight )
+					continue;
+				data[ planeOffset + x + y * planeWidth ] += weight * weights[ i ];
+			}
+		}
+	}
+
+	/**
+	 * Adds the weighted votes of a voter to all the pixels of this stencil
+	 * centered on the specified position, in the current plane of a
+	 * {@link RandomAccess}.
+	 *
+	 * @see #vote(int, int, double[], int, int[], int, int, double)
+	 */
+	public < R extends RealType< R > > void vote( final int x0, final int y0, final RandomAccess< R > ra, final int planeWidth, final int planeHeight, final double weight )
+	{
+		for ( int i = 0; i < dx.length; i++ )
+		{
+			final int x = x0 + dx[ i ];
+			final int y = y0 + dy[ i ];
+			if ( x < 0 || x >= planeWidth || y < 0 || y >= planeHeight )
+				continue;
+			ra.setPosition( x, 0 );
+			ra.setPosition( y, 1 );
+			final R t = ra.get();
+			t.setReal( t.getRealDouble() + weight * weights[ i ] );
+		}
+	}
+}
@@ -29,23 +29,30 @@
 package net.imagej.circleskinner.hough;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 import org.scijava.thread.ThreadService;
 
+import ij.Prefs;
 import net.imagej.ops.special.function.AbstractUnaryFunctionOp;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
 import net.imglib2.Point;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealPoint;
-import net.imglib2.algorithm.dog.DogDetection;
 import net.imglib2.algorithm.localextrema.RefinedPeak;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.planar.PlanarImg;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.util.Util;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 
 @Plugin( type = HoughCircleDetectorOp.class )
@@ -56,6 +63,18 @@ public class HoughCircleDogDetectorOp< T extends RealType< T > & NativeType< T >
 
 	private static final double K = 1.6;
 
+	/**
+	 * The sigma the vote image is assumed to be already smoothed with, as in
+	 * {@link net.imglib2.algorithm.dog.DogDetection}.
+	 */
+	private static final double IMAGE_SIGMA = 0.5;
+
+	/**
+	 * The smaller sigma is at least this factor times {@link #IMAGE_SIGMA},
+	 * as in {@link net.imglib2.algorithm.dog.DogDetection}.
+	 */
+	private static final double MIN_F = 2.;
+
 	@Parameter
 	private ThreadService threadService;
 
@@ -71,6 +90,40 @@ public class HoughCircleDogDetectorOp< T extends RealType< T > & NativeType< T >
 	@Parameter( required = false, min = "0.1" )
 	private double sensitivity = 20.;
 
+	/**
+	 * If <code>true</code>, the vote image was computed with votes split
+	 * between radius planes, and the radius of circles is refined with
+	 * {@link SubpixelFit#twoBinOffset(RandomAccessibleInterval, Localizable)}.
+	 */
+	@Parameter( required = false )
+	private boolean fractionalVotes = false;
+
+	/**
+	 * The max number of circles to return. Peaks are refined by descending
+	 * DoG value, only until this number of circles pass the sensitivity.
+	 */
+	@Parameter( required = false, min = "0" )
+	private int maxNDetections = Integer.MAX_VALUE;
+
+	/**
+	 * The sigma of the DoG along the radius, in radius planes. It plays the
+	 * same role as the in-plane sigma, derived from the circle thickness. If
+	 * negative, the in-plane sigma is used along the radius too, which is
+	 * the isotropic DoG of previous versions. If 0, the vote image is only
+	 * smoothed in-plane.
+	 */
+	@Parameter( required = false )
+	private double radiusSigma = -1.;
+
+	/**
+	 * If <code>true</code>, peaks are refined with a parabola fitted
+	 * separately along each dimension, instead of
+	 * {@link net.imglib2.algorithm.localextrema.SubpixelLocalization}. This is
+	 * cheaper, but peaks cannot move to another pixel.
+	 */
+	@Parameter( required = false )
+	private boolean parabolicFit = false;
+
 	protected RandomAccessibleInterval< T > out;
 
 	@Override
@@ -78,49 +131,157 @@ public class HoughCircleDogDetectorOp< T extends RealType< T > & NativeType< T >
 	{
 		final int numDimensions = input.numDimensions();
 		final ExecutorService es = threadService.getExecutorService();
+		final int nTasks = Prefs.getThreads();
 
 		final double threshold = 2. * Math.PI * minRadius * circleThickness / sensitivity;
 		final double sigma = circleThickness / Math.sqrt( numDimensions );
-		final double[] calibration = Util.getArrayFromValue( 1., numDimensions );
-		final DogDetection< T > dog = new DogDetection<>(
-				Views.extendZero( input ),
-				input,
-				calibration,
-				sigma / K,
-				sigma,
-				DogDetection.ExtremaType.MINIMA,
-				threshold,
-				false );
-		dog.setExecutorService( es );
-		final ArrayList< RefinedPeak< Point > > refined = dog.getSubpixelPeaks();
-
-		if ( isCanceled() )
-			return Collections.emptyList();
 
 		/*
-		 * Create circles.
+		 * Same sigmas as DogDetection, along each dimension: the smaller one
+		 * is at least MIN_F times the image sigma, the larger one is K times
+		 * the smaller one, and both are corrected for the image sigma.
 		 */
 
-		final ArrayList< HoughCircle > circles = new ArrayList<>( refined.size() );
-		for ( final RefinedPeak< Point > peak : refined )
+		final double[] sigmasSmall = new double[ numDimensions ];
+		final double[] sigmasLarge = new double[ numDimensions ];
+		double maxSigma = 0.;
+		for ( int d = 0; d < numDimensions; d++ )
 		{
-			// Minima are negative.
-			final double radius = minRadius + ( peak.getDoublePosition( numDimensions - 1 ) ) * stepRadius;
-			final double ls = -2. * Math.PI * radius * circleThickness / peak.getValue();
-			if ( ls > sensitivity || ls <= 0 )
+			final double s = ( d == numDimensions - 1 && radiusSigma >= 0. ) ? radiusSigma : sigma;
+			if ( s == 0. )
 				continue;
+			final double s1 = Math.max( MIN_F * IMAGE_SIGMA, s / K );
+			final double s2 = K * s1;
+			sigmasSmall[ d ] = Math.sqrt( s1 * s1 - IMAGE_SIGMA * IMAGE_SIGMA );
+			sigmasLarge[ d ] = Math.sqrt( s2 * s2 - IMAGE_SIGMA * IMAGE_SIGMA );
+			maxSigma = Math.max( maxSigma, sigmasLarge[ d ] );
+		}
 
-			final RealPoint center = new RealPoint( numDimensions - 1 );
-			for ( int d = 0; d < numDimensions - 1; d++ )
-				center.setPosition( peak.getDoublePosition( d ), d );
+		/*
+		 * In sparse vote images, peaks can only be found in the allocated
+		 * tiles, so we restrict the detection to their bounding box.
+		 * Otherwise, the DoG is a difference of two weighted means of
+		 * non-negative votes, so its magnitude cannot exceed the largest vote
+		 * within the kernel support. We restrict the detection to the
+		 * bounding box of the tiles that reach the threshold, expanded by the
+		 * kernel support.
+		 */
+
+		final Interval interval;
+		if ( input instanceof SparseVoteImg )
+		{
+			interval = ( ( SparseVoteImg ) input ).getAllocatedBounds();
+			if ( null == interval )
+				return Collections.emptyList();
+		}
+		else
+		{
+			final Interval bounds = TileMaxima.compute( input, es, nTasks ).getBoundsAbove( threshold );
+			if ( null == bounds )
+				return Collections.emptyList();
+			final int halo = ( int ) Math.ceil( 3. * maxSigma ) + 2;
+			interval = Intervals.intersect( Intervals.expand( bounds, halo ), input );
+		}
+
+		final List< HoughCircle > circles;
+		try
+		{
+			/*
+			 * Compute the DoG over the interval, as the votes smoothed with
+			 * the smaller sigma minus the votes smoothed with the larger one.
+			 * Rings give positive values, so we look for maxima.
+			 */
+
+			final PlanarImg< FloatType, FloatArray > dog = DogFilter.compute( input, interval, sigmasSmall, sigmasLarge, es, nTasks );
 
-			circles.add( new HoughCircle( center, radius, circleThickness, ls ) );
+			if ( isCanceled() )
+				return Collections.emptyList();
+
+			final long[] min = Intervals.minAsLongArray( interval );
+			final LocalMaxScanner.Peaks found = LocalMaxScanner.scan( LocalMaxScanner.getBackingArray( dog ),
+					( int ) dog.dimension( 0 ), ( int ) dog.dimension( 1 ), ( int ) dog.dimension( 2 ),
+					threshold, es, nTasks );
+
+			// Sort by descending DoG value, then in scan order.
+			final Integer[] order = new Integer[ found.size() ];
+			for ( int i = 0; i < order.length; i++ )
+				order[ i ] = i;
+			Arrays.sort( order, ( i1, i2 ) -> Double.compare( found.getValue( i2 ), found.getValue( i1 ) ) );
+			final List< Point > peaks = new ArrayList<>( found.size() );
+			for ( final int i : order )
+				peaks.add( new Point( found.getX( i ) + min[ 0 ], found.getY( i ) + min[ 1 ], found.getZ( i ) + min[ 2 ] ) );
+
+			if ( isCanceled() )
+				return Collections.emptyList();
+
+			final RandomAccessibleInterval< FloatType > translated = Views.translate( dog, min );
+			if ( maxNDetections < peaks.size() )
+			{
+				/*
+				 * Only refine the peaks we need, by descending DoG value.
+				 * Circles can be rejected after refinement, so we take more
+				 * peaks until enough circles are created.
+				 */
+				circles = new ArrayList<>( maxNDetections );
+				int next = 0;
+				while ( circles.size() < maxNDetections && next < peaks.size() )
+				{
+					final int end = Math.min( peaks.size(), next + maxNDetections - circles.size() );
+					circles.addAll( createCircles( input, translated, peaks.subList( next, end ), es, nTasks ) );
+					next = end;
+					if ( isCanceled() )
+						return Collections.emptyList();
+				}
+			}
+			else
+			{
+				circles = createCircles( input, translated, peaks, es, nTasks );
+			}
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			e.printStackTrace();
+			return Collections.emptyList();
 		}
 
+		if ( isCanceled() )
+			return Collections.emptyList();
+
 		Collections.sort( circles );
 		return circles;
 	}
 
+	/**
+	 * Refines the specified peaks on the DoG, and creates the circles that
+	 * pass the sensitivity, in the order of the peaks.
+	 */
+	private List< HoughCircle > createCircles( final RandomAccessibleInterval< T > input, final RandomAccessibleInterval< FloatType > dog, final List< Point > peaks, final ExecutorService es, final int nTasks ) throws InterruptedException, ExecutionException
+	{
+		final int numDimensions = input.numDimensions();
+		final List< RefinedPeak< Point > > refined = parabolicFit
+				? PeakRefinement.parabolic( peaks, dog, es, nTasks )
+				: PeakRefinement.subpixelLocalization( peaks, dog, es, nTasks );
+
+		if ( isCanceled() )
+			return Collections.emptyList();
+
+		return PeakRefinement.map( refined, peak -> {
+			final double z = fractionalVotes
+					? peak.getOriginalPeak().getDoublePosition( numDimensions - 1 ) + SubpixelFit.twoBinOffset( input, peak.getOriginalPeak() )
+					: peak.getDoublePosition( numDimensions - 1 );
+			final double radius = minRadius + z * stepRadius;
+			final double ls = 2. * Math.PI * radius * circleThickness / peak.getValue();
+			if ( ls < 0 || ls > sensitivity )
+				return null;
+
+			final RealPoint center = new RealPoint( numDimensions - 1 );
+			for ( int d = 0; d < numDimensions - 1; d++ )
+				center.setPosition( peak.getDoublePosition( d ), d );
+
+			return new HoughCircle( center, radius, circleThickness, ls );
+		}, es, nTasks );
+	}
+
 	// -- Cancelable methods --
 
 	/** Reason for cancelation, or null if not canceled. */
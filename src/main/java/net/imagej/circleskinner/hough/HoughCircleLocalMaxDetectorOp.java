@@ -30,8 +30,12 @@ package net.imagej.circleskinner.hough;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.scijava.Priority;
 import org.scijava.plugin.Parameter;
@@ -40,10 +44,11 @@ import org.scijava.thread.ThreadService;
 
 import ij.Prefs;
 import net.imagej.ops.special.function.AbstractUnaryFunctionOp;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.Localizable;
 import net.imglib2.Point;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.RealLocalizable;
 import net.imglib2.RealPoint;
 import net.imglib2.Sampler;
 import net.imglib2.algorithm.localextrema.LocalExtrema;
@@ -52,9 +57,11 @@ import net.imglib2.algorithm.localextrema.RefinedPeak;
 import net.imglib2.algorithm.localextrema.SubpixelLocalization;
 import net.imglib2.algorithm.neighborhood.Neighborhood;
 import net.imglib2.algorithm.neighborhood.RectangleShape;
+import net.imglib2.cache.img.DiskCachedCellImg;
+import net.imglib2.img.cell.CellGrid;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.util.Util;
+import net.imglib2.util.Intervals;
 
 @Plugin( type = HoughCircleDetectorOp.class, priority = Priority.HIGH )
 public class HoughCircleLocalMaxDetectorOp< T extends RealType< T > & NativeType< T > >
@@ -77,6 +84,31 @@ public class HoughCircleLocalMaxDetectorOp< T extends RealType< T > & NativeType
 	@Parameter( required = false, min = "0.1" )
 	private double sensitivity = 20.;
 
+	/**
+	 * If <code>true</code>, the vote image was computed with votes split
+	 * between radius planes, and the radius of circles is refined with
+	 * {@link SubpixelFit#twoBinOffset(RandomAccessibleInterval, Localizable)}.
+	 */
+	@Parameter( required = false )
+	private boolean fractionalVotes = false;
+
+	/**
+	 * The max number of circles to return, with the lowest sensitivities.
+	 * Only the candidates needed to find them go through non-maxima
+	 * suppression and subpixel refinement.
+	 */
+	@Parameter( required = false, min = "0" )
+	private int maxNDetections = Integer.MAX_VALUE;
+
+	/**
+	 * If <code>true</code>, peaks are refined with a parabola fitted
+	 * separately along each dimension, instead of
+	 * {@link SubpixelLocalization}. This is cheaper, but peaks cannot move to
+	 * another pixel.
+	 */
+	@Parameter( required = false )
+	private boolean parabolicFit = false;
+
 	protected RandomAccessibleInterval< T > out;
 
 	@Override
@@ -89,16 +121,18 @@ public class HoughCircleLocalMaxDetectorOp< T extends RealType< T > & NativeType
 		 * Find local extrema.
 		 */
 
+		/*
+		 * The threshold is compared as a double, so that integer vote images
+		 * do not round it.
+		 */
 		final double threshold = 2. * Math.PI * minRadius * circleThickness / sensitivity;
-		final T t = Util.getTypeFromInterval( input ).createVariable();
-		t.setReal( threshold );
 		final LocalNeighborhoodCheck< Circle, T > maximumCheck = new LocalNeighborhoodCheck< Circle, T >()
 		{
 			@Override
 			public < C extends Localizable & Sampler< T > > Circle check( final C center, final Neighborhood< T > neighborhood )
 			{
 				final T c = center.get();
-				if ( t.compareTo( c ) > 0 )
+				if ( c.getRealDouble() < threshold )
 					return null;
 
 				for ( final T tt : neighborhood )
@@ -115,12 +149,32 @@ public class HoughCircleLocalMaxDetectorOp< T extends RealType< T > & NativeType
 		List< Circle > peaks;
 		try
 		{
-			peaks = LocalExtrema.findLocalExtrema(
-					input,
-					maximumCheck,
-					new RectangleShape( 1, true ),
-					threadService.getExecutorService(),
-					nTasks );
+			final Object data = LocalMaxScanner.getBackingArray( input );
+			if ( null != data )
+			{
+				// Scan the backing array directly.
+				final LocalMaxScanner.Peaks found = LocalMaxScanner.scan( data,
+						( int ) input.dimension( 0 ), ( int ) input.dimension( 1 ), ( int ) input.dimension( 2 ),
+						threshold, threadService.getExecutorService(), nTasks );
+				peaks = new ArrayList<>( found.size() );
+				for ( int i = 0; i < found.size(); i++ )
+				{
+					final double val = found.getValue( i );
+					final double radius = minRadius + found.getZ( i ) * stepRadius;
+					final double ls = 2. * Math.PI * radius * circleThickness / val;
+					peaks.add( new Circle( new Point( found.getX( i ), found.getY( i ), found.getZ( i ) ), radius, ls ) );
+				}
+			}
+			else if ( input instanceof SparseVoteImg )
+				peaks = findLocalMaximaInCells( input, ( ( SparseVoteImg ) input ).getAllocatedTiles(), maximumCheck, nTasks );
+			else if ( input instanceof DiskCachedCellImg )
+				peaks = findLocalMaximaInCells( input, getCells( ( ( DiskCachedCellImg< ?, ? > ) input ).getCellGrid() ), maximumCheck, nTasks );
+			else
+			{
+				// Skip the tiles in which no voxel reaches the threshold.
+				final TileMaxima tileMaxima = TileMaxima.compute( input, threadService.getExecutorService(), nTasks );
+				peaks = findLocalMaximaInCells( input, tileMaxima.getTilesAbove( threshold ), maximumCheck, nTasks );
+			}
 
 			if ( isCanceled() )
 				return Collections.emptyList();
@@ -132,55 +186,42 @@ public class HoughCircleLocalMaxDetectorOp< T extends RealType< T > & NativeType
 			 * the one with the highest sensitivity.
 			 */
 
-			// Sort by ascending sensitivity.
-			Collections.sort( peaks );
-
-			final List< Circle > retained = new ArrayList<>();
-			NEXT_CIRCLE: for ( final Circle tested : peaks )
+			final ExecutorService es = threadService.getExecutorService();
+			final List< HoughCircle > circles;
+			if ( maxNDetections < peaks.size() )
 			{
-				for ( final Circle kept : retained )
+				/*
+				 * Only poll the candidates we need, by ascending sensitivity.
+				 * Circles can be rejected after refinement, so we take more
+				 * candidates until enough circles are created.
+				 */
+				final Iterator< Circle > kept = NonMaximaSuppression.kept( peaks,
+						c -> c.getDoublePosition( 0 ), c -> c.getDoublePosition( 1 ), c -> c.radius );
+				circles = new ArrayList<>( maxNDetections );
+				while ( circles.size() < maxNDetections && kept.hasNext() )
 				{
-					if ( kept.contains( tested ) )
-						continue NEXT_CIRCLE;
+					final List< Circle > retained = new ArrayList<>();
+					while ( retained.size() < maxNDetections - circles.size() && kept.hasNext() )
+						retained.add( kept.next() );
+					circles.addAll( createCircles( input, retained, es, nTasks ) );
+					if ( isCanceled() )
+						return Collections.emptyList();
 				}
-
-				// Was not found in any circle, so we keep it.
-				retained.add( tested );
+			}
+			else
+			{
+				// Sort by ascending sensitivity.
+				Collections.sort( peaks );
+				final List< Circle > retained = NonMaximaSuppression.suppress( peaks,
+						c -> c.getDoublePosition( 0 ), c -> c.getDoublePosition( 1 ), c -> c.radius );
+				if ( isCanceled() )
+					return Collections.emptyList();
+				circles = createCircles( input, retained, es, nTasks );
 			}
 
 			if ( isCanceled() )
 				return Collections.emptyList();
 
-			/*
-			 * Refine local extrema.
-			 */
-
-			final SubpixelLocalization< Circle, T > spl = new SubpixelLocalization<>( numDimensions );
-			spl.setAllowMaximaTolerance( true );
-			spl.setMaxNumMoves( 10 );
-			final ArrayList< RefinedPeak< Circle > > refined = spl.process( retained, input, input );
-
-			if ( isCanceled() )
-				return Collections.emptyList();
-
-			/*
-			 * Create circles.
-			 */
-
-			final ArrayList< HoughCircle > circles = new ArrayList<>( refined.size() );
-			for ( final RefinedPeak< Circle > peak : refined )
-			{
-				final double radius = minRadius + ( peak.getDoublePosition( numDimensions - 1 ) ) * stepRadius;
-				final double ls = 2. * Math.PI * radius * circleThickness / peak.getValue();
-				if ( ls < 0 || ls > sensitivity )
-					continue;
-				final RealPoint center = new RealPoint( numDimensions - 1 );
-				for ( int d = 0; d < numDimensions - 1; d++ )
-					center.setPosition( peak.getDoublePosition( d ), d );
-
-				circles.add( new HoughCircle( center, radius, circleThickness, ls ) );
-			}
-
 			Collections.sort( circles );
 			return circles;
 		}
@@ -192,6 +233,112 @@ public class HoughCircleLocalMaxDetectorOp< T extends RealType< T > & NativeType
 
 	}
 
+	/**
+	 * Refines the specified local maxima, and creates the circles that pass
+	 * the sensitivity, in the order of the maxima.
+	 */
+	private List< HoughCircle > createCircles( final RandomAccessibleInterval< T > input, final List< Circle > retained, final ExecutorService es, final int nTasks ) throws InterruptedException, ExecutionException
+	{
+		final int numDimensions = input.numDimensions();
+
+		/*
+		 * Refine local extrema.
+		 */
+
+		final List< RefinedPeak< Circle > > refined = parabolicFit
+				? PeakRefinement.parabolic( retained, input, es, nTasks )
+				: PeakRefinement.subpixelLocalization( retained, input, es, nTasks );
+
+		if ( isCanceled() )
+			return Collections.emptyList();
+
+		/*
+		 * Create circles.
+		 */
+
+		return PeakRefinement.map( refined, peak -> {
+			final double z = fractionalVotes
+					? peak.getOriginalPeak().getDoublePosition( numDimensions - 1 ) + SubpixelFit.twoBinOffset( input, peak.getOriginalPeak() )
+					: peak.getDoublePosition( numDimensions - 1 );
+			final double radius = minRadius + z * stepRadius;
+			final double ls = 2. * Math.PI * radius * circleThickness / peak.getValue();
+			if ( ls < 0 || ls > sensitivity )
+				return null;
+			final RealPoint center = new RealPoint( numDimensions - 1 );
+			for ( int d = 0; d < numDimensions - 1; d++ )
+				center.setPosition( peak.getDoublePosition( d ), d );
+
+			return new HoughCircle( center, radius, circleThickness, ls );
+		}, es, nTasks );
+	}
+
+	/**
+	 * Finds local maxima in the specified cells of a vote image only. This is
+	 * used to skip the unallocated tiles of a sparse vote image or the tiles
+	 * below the threshold, and to process disk-cached vote images in cell
+	 * order. Border pixels of the
+	 * image are excluded, like with the dense version. Cells are distributed
+	 * to the tasks in an interleaved manner, so that cells close in the cell
+	 * order are processed at the same time, and results are collected in cell
+	 * order.
+	 */
+	private < P > List< P > findLocalMaximaInCells( final RandomAccessibleInterval< T > source, final List< Interval > cells, final LocalNeighborhoodCheck< P, T > check, final int nTasks ) throws InterruptedException, ExecutionException
+	{
+		final Interval inner = Intervals.expand( source, -1 );
+		final RectangleShape shape = new RectangleShape( 1, true );
+
+		final int n = Math.max( 1, Math.min( nTasks, cells.size() ) );
+		final List< Callable< List< List< P > > > > tasks = new ArrayList<>( n );
+		for ( int t = 0; t < n; t++ )
+		{
+			final int first = t;
+			tasks.add( () -> {
+				final List< List< P > > found = new ArrayList<>();
+				for ( int i = first; i < cells.size(); i += n )
+				{
+					final Interval interval = Intervals.intersect( cells.get( i ), inner );
+					if ( Intervals.isEmpty( interval ) )
+						found.add( Collections.emptyList() );
+					else
+						found.add( LocalExtrema.findLocalExtrema( source, interval, check, shape ) );
+				}
+				return found;
+			} );
+		}
+
+		final List< Future< List< List< P > > > > futures = threadService.getExecutorService().invokeAll( tasks );
+		final List< List< List< P > > > results = new ArrayList<>( n );
+		for ( final Future< List< List< P > > > future : futures )
+			results.add( future.get() );
+
+		final List< P > peaks = new ArrayList<>();
+		for ( int i = 0; i < cells.size(); i++ )
+			peaks.addAll( results.get( i % n ).get( i / n ) );
+		return peaks;
+	}
+
+	/**
+	 * Returns the intervals of all the cells of the specified grid, in cell
+	 * order.
+	 */
+	private static final List< Interval > getCells( final CellGrid grid )
+	{
+		final int n = grid.numDimensions();
+		final long nCells = Intervals.numElements( grid.getGridDimensions() );
+		final List< Interval > cells = new ArrayList<>();
+		final long[] min = new long[ n ];
+		final int[] dims = new int[ n ];
+		for ( long index = 0; index < nCells; index++ )
+		{
+			grid.getCellDimensions( index, min, dims );
+			final long[] max = new long[ n ];
+			for ( int d = 0; d < n; d++ )
+				max[ d ] = min[ d ] + dims[ d ] - 1;
+			cells.add( new FinalInterval( min, max ) );
+		}
+		return cells;
+	}
+
 	// -- Cancelable methods --
 
 	/** Reason for cancelation, or null if not canceled. */
@@ -240,14 +387,5 @@ public class HoughCircleLocalMaxDetectorOp< T extends RealType< T > & NativeType
 		{
 			return lSensitivity < o.lSensitivity ? -1 : lSensitivity > o.lSensitivity ? +1 : 0;
 		}
-
-		public boolean contains( final RealLocalizable point )
-		{
-			final double dx = getDoublePosition( 0 ) - point.getDoublePosition( 0 );
-			final double dy = getDoublePosition( 1 ) - point.getDoublePosition( 1 );
-			final double dr2 = dx * dx + dy * dy;
-			return dr2 <= radius * radius;
-		}
-
 	}
 }
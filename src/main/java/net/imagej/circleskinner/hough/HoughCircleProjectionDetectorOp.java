@@ -0,0 +1,408 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner.hough;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.thread.ThreadService;
+
+import ij.Prefs;
+import net.imagej.ops.special.function.AbstractUnaryFunctionOp;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealPoint;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Circle detector that searches for peaks in the maximum projection of the
+ * vote image along the radius, and only looks at the radius profile of these
+ * peaks.
+ * <p>
+ * The projection is computed in a single pass over the vote image,
+ * parallelized over stripes of rows. The
+ * local maxima of the projection above the threshold are then the candidate
+ * centers. For each of them, the local maxima of the radius profile above the
+ * threshold that are also maxima of their 3×3×3 neighborhood are kept, so
+ * that concentric circles can still be found. This costs
+ * <code>O(W·H + peaks·nRadii)</code> comparisons instead of
+ * <code>O(W·H·nRadii·27)</code> for {@link HoughCircleLocalMaxDetectorOp}.
+ * Maxima hidden under a larger maximum of another radius at the same pixel
+ * are missed, so this is best suited to images of circles that do not share
+ * their center.
+ * <p>
+ * Peaks are refined with {@link SubpixelFit} and filtered with the same
+ * non-maxima suppression as {@link HoughCircleLocalMaxDetectorOp}.
+ *
+ * @author agent
+ */
+@Plugin( type = HoughCircleDetectorOp.class )
+public class HoughCircleProjectionDetectorOp< T extends RealType< T > & NativeType< T > >
+		extends AbstractUnaryFunctionOp< RandomAccessibleInterval< T >, List< HoughCircle > >
+		implements HoughCircleDetectorOp< T >
+{
+
+	@Parameter
+	private ThreadService threadService;
+
+	@Parameter( required = true, min = "1" )
+	private double circleThickness;
+
+	@Parameter( required = true, min = "1" )
+	private double minRadius;
+
+	@Parameter( required = true, min = "1" )
+	private double stepRadius;
+
+	@Parameter( required = false, min = "0.1" )
+	private double sensitivity = 20.;
+
+	/**
+	 * If <code>true</code>, the vote image was computed with votes split
+	 * between radius planes, and the radius of circles is refined with
+	 * {@link SubpixelFit#twoBinOffset(double, double, double)}.
+	 */
+	@Parameter( required = false )
+	private boolean fractionalVotes = false;
+
+	/**
+	 * The max number of circles to return, with the lowest sensitivities.
+	 * Only the candidates needed to find them go through non-maxima
+	 * suppression and subpixel refinement.
+	 */
+	@Parameter( required = false, min = "0" )
+	private int maxNDetections = Integer.MAX_VALUE;
+
+	/**
+	 * If <code>true</code>, peaks are refined with a parabola fitted
+	 * separately along each dimension, instead of a quadratic fit of their
+	 * 3×3×3 neighborhood.
+	 */
+	@Parameter( required = false )
+	private boolean parabolicFit = false;
+
+	@Override
+	public List< HoughCircle > calculate( final RandomAccessibleInterval< T > input )
+	{
+		cancelReason = null;
+		final int rd = input.numDimensions() - 1;
+		final int width = ( int ) input.dimension( 0 );
+		final int height = ( int ) input.dimension( 1 );
+		final int nRadiuses = ( int ) input.dimension( rd );
+		final double threshold = 2. * Math.PI * minRadius * circleThickness / sensitivity;
+
+		final int nTasks = Math.max( 1, Math.min( Prefs.getThreads(), height ) );
+		final int[] stripes = new int[ nTasks + 1 ];
+		for ( int t = 0; t <= nTasks; t++ )
+			stripes[ t ] = ( int ) ( ( long ) t * height / nTasks );
+
+		/*
+		 * Max projection along the radius.
+		 */
+
+		final double[] projection = new double[ width * height ];
+		final List< Callable< Void > > projectTasks = new ArrayList<>( nTasks );
+		for ( int t = 0; t < nTasks; t++ )
+		{
+			final int rowMin = stripes[ t ];
+			final int rowMax = stripes[ t + 1 ];
+			if ( rowMin >= rowMax )
+				continue;
+			projectTasks.add( () -> {
+				project( input, rowMin, rowMax, projection );
+				return null;
+			} );
+		}
+		runAll( projectTasks );
+		if ( isCanceled() )
+			return Collections.emptyList();
+
+		/*
+		 * Peaks of the projection, then of their radius profile.
+		 */
+
+		final List< Callable< List< Peak > > > detectTasks = new ArrayList<>( nTasks );
+		for ( int t = 0; t < nTasks; t++ )
+		{
+			final int rowMin = Math.max( 1, stripes[ t ] );
+			final int rowMax = Math.min( height - 1, stripes[ t + 1 ] );
+			detectTasks.add( () -> findPeaks( input, projection, width, nRadiuses, rowMin, rowMax, threshold ) );
+		}
+		final List< Peak > peaks = new ArrayList<>();
+		for ( final List< Peak > stripePeaks : runAll( detectTasks ) )
+			peaks.addAll( stripePeaks );
+		if ( isCanceled() )
+			return Collections.emptyList();
+
+		/*
+		 * Non-maxima suppression.
+		 * 
+		 * Rule: when one circle has a center inside one another, we discard
+		 * the one with the highest sensitivity.
+		 */
+
+		final Iterator< Peak > kept;
+		if ( maxNDetections < peaks.size() )
+		{
+			// Only poll the candidates we need, by ascending sensitivity.
+			kept = NonMaximaSuppression.kept( peaks, p -> p.x, p -> p.y, p -> p.radius );
+		}
+		else
+		{
+			Collections.sort( peaks );
+			kept = NonMaximaSuppression.suppress( peaks, p -> p.x, p -> p.y, p -> p.radius ).iterator();
+		}
+
+		/*
+		 * Create circles. Refined circles can fail the sensitivity, so we
+		 * take candidates until we have enough circles.
+		 */
+
+		final ArrayList< HoughCircle > circles = new ArrayList<>();
+		while ( circles.size() < maxNDetections && kept.hasNext() )
+		{
+			final Peak peak = kept.next();
+			final double radius = minRadius + ( peak.z + peak.refined[ 2 ] ) * stepRadius;
+			final double ls = 2. * Math.PI * radius * circleThickness / peak.refined[ 3 ];
+			if ( ls < 0 || ls > sensitivity )
+				continue;
+			final RealPoint center = new RealPoint(
+					input.min( 0 ) + peak.x + peak.refined[ 0 ],
+					input.min( 1 ) + peak.y + peak.refined[ 1 ] );
+			circles.add( new HoughCircle( center, radius, circleThickness, ls ) );
+		}
+
+		Collections.sort( circles );
+		return circles;
+	}
+
+	/**
+	 * Computes the max projection along the radius for the specified range of
+	 * rows.
+	 */
+	private void project( final RandomAccessibleInterval< T > input, final int rowMin, final int rowMax, final double[] projection )
+	{
+		final int rd = input.numDimensions() - 1;
+		final int width = ( int ) input.dimension( 0 );
+		final FinalInterval stripe = new FinalInterval(
+				new long[] { input.min( 0 ), input.min( 1 ) + rowMin },
+				new long[] { input.max( 0 ), input.min( 1 ) + rowMax - 1 } );
+		for ( int z = 0; z < input.dimension( rd ); z++ )
+		{
+			final Cursor< T > cursor = Views.flatIterable( Views.interval( Views.hyperSlice( input, rd, input.min( rd ) + z ), stripe ) ).cursor();
+			int index = rowMin * width;
+			while ( cursor.hasNext() )
+			{
+				final double val = cursor.next().getRealDouble();
+				if ( z == 0 || val > projection[ index ] )
+					projection[ index ] = val;
+				index++;
+			}
+			if ( isCanceled() )
+				return;
+		}
+	}
+
+	/**
+	 * Finds the local maxima of the projection in the specified range of
+	 * rows, excluding the image border, and the maxima of the radius profile
+	 * at each of them.
+	 */
+	private List< Peak > findPeaks( final RandomAccessibleInterval< T > input, final double[] projection, final int width, final int nRadiuses, final int rowMin, final int rowMax, final double threshold )
+	{
+		final int rd = input.numDimensions() - 1;
+		final RandomAccess< T > ra = input.randomAccess();
+		final double[] profile = new double[ nRadiuses ];
+		final double[] neighborhood = new double[ 27 ];
+		final List< Peak > peaks = new ArrayList<>();
+		for ( int y = rowMin; y < rowMax; y++ )
+		{
+			NEXT_PIXEL: for ( int x = 1; x < width - 1; x++ )
+			{
+				final int index = x + y * width;
+				final double val = projection[ index ];
+				if ( val < threshold )
+					continue;
+				for ( int dy = -1; dy <= 1; dy++ )
+					for ( int dx = -1; dx <= 1; dx++ )
+						if ( projection[ index + dx + dy * width ] > val )
+							continue NEXT_PIXEL;
+
+				// Radius profile.
+				ra.setPosition( input.min( 0 ) + x, 0 );
+				ra.setPosition( input.min( 1 ) + y, 1 );
+				for ( int z = 0; z < nRadiuses; z++ )
+				{
+					ra.setPosition( input.min( rd ) + z, rd );
+					profile[ z ] = ra.get().getRealDouble();
+				}
+
+				// Exclude the first and last planes, like the other detectors.
+				for ( int z = 1; z < nRadiuses - 1; z++ )
+				{
+					final double v = profile[ z ];
+					if ( v < threshold || profile[ z - 1 ] > v || profile[ z + 1 ] > v )
+						continue;
+					if ( !fillNeighborhood( ra, input, x, y, z, v, neighborhood ) )
+						continue;
+
+					final double radius = minRadius + z * stepRadius;
+					final Peak peak = new Peak( x, y, z, radius, 2. * Math.PI * radius * circleThickness / v );
+					if ( parabolicFit )
+						SubpixelFit.parabolic( neighborhood, peak.refined );
+					else
+						SubpixelFit.quadratic( neighborhood, peak.refined );
+					if ( fractionalVotes )
+						peak.refined[ 2 ] = SubpixelFit.twoBinOffset( profile[ z - 1 ], v, profile[ z + 1 ] );
+					peaks.add( peak );
+				}
+				if ( isCanceled() )
+					return peaks;
+			}
+		}
+		return peaks;
+	}
+
+	/**
+	 * Reads the 3×3×3 neighborhood of the specified voxel, in the order of
+	 * {@link SubpixelFit#index(int, int, int)}.
+	 *
+	 * @return <code>false</code> if a neighbor has a value larger than the
+	 *         specified value.
+	 */
+	private static final < T extends RealType< T > > boolean fillNeighborhood( final RandomAccess< T > ra, final RandomAccessibleInterval< T > input, final int x, final int y, final int z, final double val, final double[] neighborhood )
+	{
+		final int rd = input.numDimensions() - 1;
+		for ( int dz = -1; dz <= 1; dz++ )
+		{
+			ra.setPosition( input.min( rd ) + z + dz, rd );
+			for ( int dy = -1; dy <= 1; dy++ )
+			{
+				ra.setPosition( input.min( 1 ) + y + dy, 1 );
+				for ( int dx = -1; dx <= 1; dx++ )
+				{
+					ra.setPosition( input.min( 0 ) + x + dx, 0 );
+					final double v = ra.get().getRealDouble();
+					if ( v > val )
+						return false;
+					neighborhood[ SubpixelFit.index( dx, dy, dz ) ] = v;
+				}
+			}
+		}
+		return true;
+	}
+
+	private < R > List< R > runAll( final List< Callable< R > > tasks )
+	{
+		final List< R > results = new ArrayList<>( tasks.size() );
+		try
+		{
+			final List< Future< R > > futures = threadService.getExecutorService().invokeAll( tasks );
+			for ( final Future< R > future : futures )
+				results.add( future.get() );
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			e.printStackTrace();
+		}
+		return results;
+	}
+
+	// -- Cancelable methods --
+
+	/** Reason for cancelation, or null if not canceled. */
+	private String cancelReason;
+
+	@Override
+	public boolean isCanceled()
+	{
+		return cancelReason != null;
+	}
+
+	/** Cancels the command execution, with the given reason for doing so. */
+	@Override
+	public void cancel( final String reason )
+	{
+		cancelReason = reason == null ? "" : reason;
+	}
+
+	@Override
+	public String getCancelReason()
+	{
+		return cancelReason;
+	}
+
+	/**
+	 * A peak of the vote image, with its subpixel refinement.
+	 */
+	private static final class Peak implements Comparable< Peak >
+	{
+		private final int x;
+
+		private final int y;
+
+		private final int z;
+
+		private final double radius;
+
+		private final double lSensitivity;
+
+		/**
+		 * X, Y, Z offsets and refined value, as computed by
+		 * {@link SubpixelFit}.
+		 */
+		private final double[] refined = new double[ 4 ];
+
+		public Peak( final int x, final int y, final int z, final double radius, final double sensitivity )
+		{
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.radius = radius;
+			this.lSensitivity = sensitivity;
+		}
+
+		@Override
+		public int compareTo( final Peak o )
+		{
+			return lSensitivity < o.lSensitivity ? -1 : lSensitivity > o.lSensitivity ? +1 : 0;
+		}
+	}
+}
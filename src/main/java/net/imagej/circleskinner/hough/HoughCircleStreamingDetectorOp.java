@@ -0,0 +1,375 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner.hough;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.scijava.Cancelable;
+import org.scijava.app.StatusService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.thread.ThreadService;
+
+import ij.Prefs;
+import net.imagej.ops.special.function.AbstractUnaryFunctionOp;
+import net.imglib2.Cursor;
+import net.imglib2.IterableInterval;
+import net.imglib2.RealPoint;
+import net.imglib2.type.BooleanType;
+
+/**
+ * Hough transform and local-maxima circle detection performed together, one
+ * radius plane at a time.
+ * <p>
+ * The full vote image is never materialized. Only the last three radius
+ * planes are kept in a ring buffer: after voting in plane <code>i</code>, the
+ * local maxima of plane <code>i-1</code> are found against its two neighbor
+ * planes and refined with {@link SubpixelFit}. The memory used for votes is
+ * therefore 3 × W × H integers, whatever the radius range. Peaks are then
+ * filtered with the same non-maxima suppression as
+ * {@link HoughCircleLocalMaxDetectorOp}.
+ * <p>
+ * Voting and detection in a plane are both parallelized over stripes of rows.
+ *
+ * @author agent
+ */
+@Plugin( type = HoughCircleStreamingDetectorOp.class )
+public class HoughCircleStreamingDetectorOp< T extends BooleanType< T > >
+		extends AbstractUnaryFunctionOp< IterableInterval< T >, List< HoughCircle > >
+		implements Cancelable
+{
+
+	@Parameter
+	private ThreadService threadService;
+
+	@Parameter
+	private StatusService statusService;
+
+	@Parameter( min = "1" )
+	private int minRadius = 1;
+
+	@Parameter( min = "1" )
+	private int maxRadius = 50;
+
+	@Parameter( min = "1" )
+	private int stepRadius = 2;
+
+	@Parameter( required = true, min = "1" )
+	private double circleThickness;
+
+	@Parameter( required = false, min = "0.1" )
+	private double sensitivity = 20.;
+
+	@Parameter( required = false, min = "1" )
+	private int numThreads = Prefs.getThreads();
+
+	@Override
+	public List< HoughCircle > calculate( final IterableInterval< T > input )
+	{
+		cancelReason = null;
+		final int numDimensions = input.numDimensions();
+
+		if ( input.numDimensions() != 2 ) { throw new IllegalArgumentException(
+				"Cannot compute Hough transform non-2D images. Got " + numDimensions + "D image." ); }
+
+		maxRadius = Math.max( minRadius, maxRadius );
+		minRadius = Math.min( minRadius, maxRadius );
+		final int nRadiuses = ( maxRadius - minRadius ) / stepRadius + 1;
+		final int width = ( int ) input.dimension( 0 );
+		final int height = ( int ) input.dimension( 1 );
+
+		/*
+		 * Collect voters, sorted by row.
+		 */
+
+		final int[][] voters = collectVotersByRow( input, height );
+		final int[] xs = voters[ 0 ];
+		final int[] ys = voters[ 1 ];
+
+		/*
+		 * Stream through radiuses.
+		 */
+
+		final double threshold = 2. * Math.PI * minRadius * circleThickness / sensitivity;
+		final int nTasks = Math.max( 1, Math.min( numThreads, height ) );
+		final int[] stripes = new int[ nTasks + 1 ];
+		for ( int t = 0; t <= nTasks; t++ )
+			stripes[ t ] = ( int ) ( ( long ) t * height / nTasks );
+
+		final int[][] ring = new int[ 3 ][ width * height ];
+		final List< Peak > peaks = new ArrayList<>();
+		for ( int i = 0; i < nRadiuses; i++ )
+		{
+			final int[] plane = ring[ i % 3 ];
+			final CircleStencil stencil = new CircleStencil( minRadius + i * stepRadius );
+			final int extent = stencil.getExtent();
+
+			final List< Callable< Void > > voteTasks = new ArrayList<>( nTasks );
+			for ( int t = 0; t < nTasks; t++ )
+			{
+				final int rowMin = stripes[ t ];
+				final int rowMax = stripes[ t + 1 ];
+				voteTasks.add( () -> {
+					Arrays.fill( plane, rowMin * width, rowMax * width, 0 );
+					final int start = lowerBound( ys, rowMin - extent );
+					final int end = lowerBound( ys, rowMax + extent );
+					for ( int v = start; v < end; v++ )
+						stencil.voteInRows( xs[ v ], ys[ v ], plane, width, rowMin, rowMax );
+					return null;
+				} );
+			}
+			runAll( voteTasks );
+
+			if ( i >= 2 )
+			{
+				final int z = i - 1;
+				final int[] prev = ring[ ( i - 2 ) % 3 ];
+				final int[] mid = ring[ z % 3 ];
+				final List< Callable< List< Peak > > > detectTasks = new ArrayList<>( nTasks );
+				for ( int t = 0; t < nTasks; t++ )
+				{
+					final int rowMin = Math.max( 1, stripes[ t ] );
+					final int rowMax = Math.min( height - 1, stripes[ t + 1 ] );
+					detectTasks.add( () -> findMaxima( prev, mid, plane, z, width, rowMin, rowMax, threshold ) );
+				}
+				for ( final List< Peak > stripePeaks : runAll( detectTasks ) )
+					peaks.addAll( stripePeaks );
+			}
+
+			statusService.showProgress( i + 1, nRadiuses );
+			if ( isCanceled() )
+				return Collections.emptyList();
+		}
+
+		/*
+		 * Non-maxima suppression.
+		 * 
+		 * Rule: when one circle has a center inside one another, we discard
+		 * the one with the highest sensitivity.
+		 */
+
+		Collections.sort( peaks );
+		final List< Peak > retained = NonMaximaSuppression.suppress( peaks, p -> p.x, p -> p.y, p -> p.radius );
+
+		/*
+		 * Create circles.
+		 */
+
+		final ArrayList< HoughCircle > circles = new ArrayList<>( retained.size() );
+		for ( final Peak peak : retained )
+		{
+			final double radius = minRadius + ( peak.z + peak.refined[ 2 ] ) * stepRadius;
+			final double ls = 2. * Math.PI * radius * circleThickness / peak.refined[ 3 ];
+			if ( ls < 0 || ls > sensitivity )
+				continue;
+			final RealPoint center = new RealPoint( peak.x + peak.refined[ 0 ], peak.y + peak.refined[ 1 ] );
+			circles.add( new HoughCircle( center, radius, circleThickness, ls ) );
+		}
+
+		Collections.sort( circles );
+		return circles;
+	}
+
+	/**
+	 * Finds the local maxima of the middle plane in the specified range of
+	 * rows, excluding the image border.
+	 */
+	private List< Peak > findMaxima( final int[] prev, final int[] mid, final int[] next, final int z, final int width, final int rowMin, final int rowMax, final double threshold )
+	{
+		final int[] offsets = new int[ 9 ];
+		for ( int dy = -1, k = 0; dy <= 1; dy++ )
+			for ( int dx = -1; dx <= 1; dx++ )
+				offsets[ k++ ] = dx + dy * width;
+		final int[][] planes = new int[][] { prev, mid, next };
+		final double[] neighborhood = new double[ 27 ];
+
+		final List< Peak > peaks = new ArrayList<>();
+		for ( int y = rowMin; y < rowMax; y++ )
+		{
+			NEXT_PIXEL: for ( int x = 1; x < width - 1; x++ )
+			{
+				final int index = x + y * width;
+				final int val = mid[ index ];
+				if ( val < threshold )
+					continue;
+
+				for ( final int offset : offsets )
+					if ( prev[ index + offset ] > val || mid[ index + offset ] > val || next[ index + offset ] > val )
+						continue NEXT_PIXEL;
+
+				for ( int p = 0; p < 3; p++ )
+					for ( int k = 0; k < 9; k++ )
+						neighborhood[ 9 * p + k ] = planes[ p ][ index + offsets[ k ] ];
+
+				final double radius = minRadius + z * stepRadius;
+				final double ls = 2. * Math.PI * radius * circleThickness / val;
+				final Peak peak = new Peak( x, y, z, radius, ls );
+				SubpixelFit.quadratic( neighborhood, peak.refined );
+				peaks.add( peak );
+			}
+		}
+		return peaks;
+	}
+
+	private < R > List< R > runAll( final List< Callable< R > > tasks )
+	{
+		final List< R > results = new ArrayList<>( tasks.size() );
+		try
+		{
+			final List< Future< R > > futures = threadService.getExecutorService().invokeAll( tasks );
+			for ( final Future< R > future : futures )
+				results.add( future.get() );
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			e.printStackTrace();
+		}
+		return results;
+	}
+
+	/**
+	 * Collects the X and Y positions of the foreground pixels, sorted by
+	 * increasing Y, whatever the iteration order of the input.
+	 */
+	private static final < T extends BooleanType< T > > int[][] collectVotersByRow( final IterableInterval< T > input, final int height )
+	{
+		final int[] rowCounts = new int[ height + 1 ];
+		final Cursor< T > cursor = input.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			if ( cursor.get().get() )
+				rowCounts[ cursor.getIntPosition( 1 ) + 1 ]++;
+		}
+		for ( int y = 1; y <= height; y++ )
+			rowCounts[ y ] += rowCounts[ y - 1 ];
+
+		final int nVoters = rowCounts[ height ];
+		final int[] xs = new int[ nVoters ];
+		final int[] ys = new int[ nVoters ];
+		cursor.reset();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			if ( !cursor.get().get() )
+				continue;
+			final int y = cursor.getIntPosition( 1 );
+			final int i = rowCounts[ y ]++;
+			xs[ i ] = cursor.getIntPosition( 0 );
+			ys[ i ] = y;
+		}
+		return new int[][] { xs, ys };
+	}
+
+	/**
+	 * Returns the index of the first element of the sorted array that is
+	 * larger than or equal to the specified value.
+	 */
+	private static final int lowerBound( final int[] sorted, final int value )
+	{
+		int lo = 0;
+		int hi = sorted.length;
+		while ( lo < hi )
+		{
+			final int m = ( lo + hi ) >>> 1;
+			if ( sorted[ m ] < value )
+				lo = m + 1;
+			else
+				hi = m;
+		}
+		return lo;
+	}
+
+	// -- Cancelable methods --
+
+	/** Reason for cancelation, or null if not canceled. */
+	private String cancelReason;
+
+	@Override
+	public boolean isCanceled()
+	{
+		return cancelReason != null;
+	}
+
+	/** Cancels the command execution, with the given reason for doing so. */
+	@Override
+	public void cancel( final String reason )
+	{
+		cancelReason = reason == null ? "" : reason;
+	}
+
+	@Override
+	public String getCancelReason()
+	{
+		return cancelReason;
+	}
+
+	/**
+	 * A local maximum of the vote image, with its subpixel refinement.
+	 */
+	private static final class Peak implements Comparable< Peak >
+	{
+		private final int x;
+
+		private final int y;
+
+		private final int z;
+
+		private final double radius;
+
+		private final double lSensitivity;
+
+		/**
+		 * X, Y, Z offsets and refined value, as computed by
+		 * {@link SubpixelFit}.
+		 */
+		private final double[] refined = new double[ 4 ];
+
+		public Peak( final int x, final int y, final int z, final double radius, final double sensitivity )
+		{
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.radius = radius;
+			this.lSensitivity = sensitivity;
+		}
+
+		@Override
+		public int compareTo( final Peak o )
+		{
+			return lSensitivity < o.lSensitivity ? -1 : lSensitivity > o.lSensitivity ? +1 : 0;
+		}
+	}
+}
@@ -28,35 +28,64 @@
  */
 package net.imagej.circleskinner.hough;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.scijava.Cancelable;
 import org.scijava.app.StatusService;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
+import org.scijava.thread.ThreadService;
 
+import ij.Prefs;
 import net.imagej.ops.special.hybrid.AbstractUnaryHybridCF;
 import net.imglib2.Cursor;
 import net.imglib2.Dimensions;
 import net.imglib2.FinalDimensions;
 import net.imglib2.IterableInterval;
-import net.imglib2.Localizable;
 import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.DiskCachedCellImgFactory;
+import net.imglib2.cache.img.DiskCachedCellImgOptions;
+import net.imglib2.cache.img.DiskCachedCellImgOptions.CacheType;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
-import net.imglib2.type.BooleanType;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
-import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
 
 @Plugin( type = HoughTransformOp.class )
-public class HoughTransformOp< T extends BooleanType< T > >
-		extends AbstractUnaryHybridCF< IterableInterval< T >, Img< DoubleType > >
+public class HoughTransformOp< T extends RealType< T >, V extends RealType< V > & NativeType< V > >
+		extends AbstractUnaryHybridCF< IterableInterval< T >, Img< V > >
 		implements Cancelable
 {
 
 	@Parameter
 	private StatusService statusService;
 
+	@Parameter
+	private ThreadService threadService;
+
 	@Parameter( min = "1" )
 	private int minRadius = 1;
 
@@ -66,8 +95,139 @@ public class HoughTransformOp< T extends BooleanType< T > >
 	@Parameter( min = "1" )
 	private int stepRadius = 2;
 
+	/**
+	 * The number of threads to use for voting. Each thread is given a disjoint
+	 * set of radius planes, so the vote image does not depend on this number.
+	 */
+	@Parameter( required = false, min = "1" )
+	private int numThreads = Prefs.getThreads();
+
+	/**
+	 * The angle of the ridge normal at each pixel, in radians, as computed by
+	 * {@link net.imagej.circleskinner.TubenessOp#getRidgeNormals()}. If not
+	 * <code>null</code>, each voter does not vote on the full circle anymore,
+	 * but only on the two arcs of this circle centered on the normal
+	 * direction, on each side of the ridge. The center of a circle still gets
+	 * about one vote per pixel of its crown, so the sensitivity values keep
+	 * their meaning.
+	 */
+	@Parameter( required = false )
+	private RandomAccessibleInterval< DoubleType > normals;
+
+	/**
+	 * The half-width of the arcs voted for around the ridge normal, in
+	 * degrees. Only used when the ridge normals are specified.
+	 */
+	@Parameter( required = false, min = "0" )
+	private double normalTolerance = 10.;
+
+	/**
+	 * The pixel type of the vote image created by
+	 * {@link #createOutput(IterableInterval)}.
+	 */
+	@Parameter( required = false )
+	private AccumulatorType accumulatorType = AccumulatorType.DOUBLE;
+
+	/**
+	 * The fraction of the foreground pixels that actually vote. The selection
+	 * of a pixel only depends on its position and on the seed, so it is
+	 * reproducible and does not depend on the number of threads. Circles then
+	 * receive this fraction of their votes, on average.
+	 */
+	@Parameter( required = false, min = "0", max = "1" )
+	private double voterFraction = 1.;
+
+	/**
+	 * If <code>true</code>, voters are selected on a low-discrepancy lattice,
+	 * so that they are evenly spread over the image, instead of independently
+	 * at random.
+	 */
+	@Parameter( required = false )
+	private boolean stratified = false;
+
+	/**
+	 * The seed of the voter selection.
+	 */
+	@Parameter( required = false )
+	private long seed = 1l;
+
+	/**
+	 * Pixels of the input with a value strictly above this threshold are
+	 * voters. With the default value, a mask can be used as input. Using a
+	 * filtered image with its threshold as input fuses the thresholding and
+	 * the voting in a single pass, without storing the mask.
+	 */
+	@Parameter( required = false )
+	private double threshold = 0.;
+
+	/**
+	 * If <code>true</code>, each voter votes with its value divided by the
+	 * threshold (or with its value if the threshold is not positive) instead
+	 * of 1. The vote image should then be of a floating point type. The mean
+	 * weight of the voters is available from {@link #getMeanWeight()}.
+	 */
+	@Parameter( required = false )
+	private boolean weighted = false;
+
+	/**
+	 * The directory in which the cells of a {@link AccumulatorType#DISK_INT}
+	 * vote image are written. If <code>null</code>, a temporary directory is
+	 * used. Cell files are deleted on exit.
+	 */
+	@Parameter( required = false )
+	private File cacheDirectory = null;
+
+	/**
+	 * How much memory (in MB) the cells of a
+	 * {@link AccumulatorType#DISK_INT} vote image can use before the least
+	 * recently used ones are written to disk and evicted.
+	 */
+	@Parameter( required = false, min = "1" )
+	private int cacheBudget = 1024;
+
+	/**
+	 * If <code>true</code>, each vote is split between the two radius planes
+	 * nearest to the distance between the voter and the center, with a
+	 * {@link FractionalCircleStencil}, so that circles whose radius falls
+	 * between two planes are not missed with large radius steps. The vote
+	 * image should then be of a floating point type. Not used with votes along
+	 * the ridge normals.
+	 */
+	@Parameter( required = false )
+	private boolean fractional = false;
+
+	/**
+	 * The size along X and Y of the cells of a disk-cached vote image. Cells
+	 * are one radius plane deep.
+	 */
+	private static final int DISK_CELL_SIZE = 256;
+
+	/**
+	 * The size along X and Y of the cells of a vote image computed on demand.
+	 * Cells are one radius plane deep.
+	 */
+	private static final int LAZY_CELL_SIZE = 32;
+
+	/**
+	 * The number of voters found in the last call to
+	 * {@link #compute(IterableInterval, Img)}, before subsampling.
+	 */
+	private long nVoters;
+
+	/**
+	 * The sum of the weights of the voters that voted in the last call to
+	 * {@link #compute(IterableInterval, Img)}.
+	 */
+	private double sumWeights;
+
+	/**
+	 * The number of voters that voted in the last call to
+	 * {@link #compute(IterableInterval, Img)}.
+	 */
+	private long nSelected;
+
 	@Override
-	public Img< DoubleType > createOutput( final IterableInterval< T > input )
+	public Img< V > createOutput( final IterableInterval< T > input )
 	{
 		final int numDimensions = input.numDimensions();
 		
@@ -78,19 +238,49 @@ public class HoughTransformOp< T extends BooleanType< T > >
 		minRadius = Math.min( minRadius, maxRadius );
 		final int nRadiuses = ( maxRadius - minRadius ) / stepRadius + 1;
 		
+		// Votes along normals, weighted and fractional votes are not computed on demand.
+		if ( accumulatorType == AccumulatorType.LAZY_INT && null == normals && !weighted && !fractional )
+			return createLazyOutput( input, nRadiuses );
+
+		if ( accumulatorType == AccumulatorType.DISK_INT )
+		{
+			final long cellBytes = 4l * DISK_CELL_SIZE * DISK_CELL_SIZE;
+			// Keep at least the cells a task needs to look at around a voxel.
+			final long maxCells = Math.max( 3l * numThreads + 1, ( cacheBudget * 1024l * 1024l ) / cellBytes );
+			DiskCachedCellImgOptions options = DiskCachedCellImgOptions.options()
+					.cellDimensions( DISK_CELL_SIZE, DISK_CELL_SIZE, 1 )
+					.cacheType( CacheType.BOUNDED )
+					.maxCacheSize( maxCells )
+					.deleteCacheDirectoryOnExit( true );
+			if ( null != cacheDirectory )
+				options = options.cacheDirectory( cacheDirectory.toPath() );
+			@SuppressWarnings( "unchecked" )
+			final V type = ( V ) accumulatorType.createType();
+			return new DiskCachedCellImgFactory<>( type, options ).create( input.dimension( 0 ), input.dimension( 1 ), nRadiuses );
+		}
+
+		if ( accumulatorType == AccumulatorType.SPARSE_INT )
+		{
+			@SuppressWarnings( "unchecked" )
+			final Img< V > votes = ( Img< V > ) new SparseVoteImg( input.dimension( 0 ), input.dimension( 1 ), nRadiuses );
+			return votes;
+		}
+
 		// Get a suitable image factory.
 		final long[] dims = new long[ numDimensions + 1 ];
 		for ( int d = 0; d < numDimensions; d++ )
 			dims[ d ] = input.dimension( d );
 		dims[ numDimensions ] = nRadiuses;
 		final Dimensions dimensions = FinalDimensions.wrap( dims );
-		final ImgFactory< DoubleType > factory = Util.getArrayOrCellImgFactory( dimensions, new DoubleType() );
-		final Img< DoubleType > votes = factory.create( dimensions );
+		@SuppressWarnings( "unchecked" )
+		final V type = ( V ) ( null == accumulatorType ? AccumulatorType.DOUBLE : accumulatorType ).createType();
+		final ImgFactory< V > factory = Util.getArrayOrCellImgFactory( dimensions, type );
+		final Img< V > votes = factory.create( dimensions );
 		return votes;
 	}
 
 	@Override
-	public void compute( final IterableInterval< T > input, final Img< DoubleType > votes )
+	public void compute( final IterableInterval< T > input, final Img< V > votes )
 	{
 		final int numDimensions = input.numDimensions();
 
@@ -103,104 +293,536 @@ public class HoughTransformOp< T extends BooleanType< T > >
 
 		/*
 		 * Hough transform.
+		 * 
+		 * Radius planes are distributed to the tasks in an interleaved manner,
+		 * so that the large radiuses (that are the most expensive ones) are
+		 * spread over all tasks. Each plane is written by one task only, and
+		 * all tasks iterate over the input in the same order, so the result is
+		 * identical to a single-threaded run.
 		 */
 
-		final double sum = ops().stats().sum( input ).getRealDouble();
-		int progress = 0;
+		final int width = ( int ) votes.dimension( 0 );
+		final int height = ( int ) votes.dimension( 1 );
+		final CircleStencil[] stencils = new CircleStencil[ nRadiuses ];
+		for ( int i = 0; i < nRadiuses; i++ )
+			stencils[ i ] = new CircleStencil( minRadius + i * stepRadius );
+
+		// Votes are computed on demand, when accessed.
+		if ( accumulatorType == AccumulatorType.LAZY_INT && votes instanceof CachedCellImg )
+			return;
 
-		final Cursor< T > cursor = input.localizingCursor();
-		while ( cursor.hasNext() )
+		if ( accumulatorType == AccumulatorType.DISK_INT && votes instanceof AbstractCellImg && null == normals && !weighted && !fractional )
 		{
-			cursor.fwd();
-			if ( !cursor.get().get() )
-				continue;
+			computeInCellOrder( input, ( AbstractCellImg< V, ?, ?, ? > ) votes, stencils );
+			return;
+		}
+
+		// Vote directly in the backing array if we can.
+		final Object backingArray = ( null == normals ) ? getBackingArray( votes ) : null;
+		final boolean splitVotes = fractional && null == normals;
+		final Object data = ( ( weighted || splitVotes ) && !( backingArray instanceof double[] ) ) ? null : backingArray;
+		final double weightScale = ( threshold > 0. ) ? 1. / threshold : 1.;
+		final SparseVoteImg sparse = ( null == normals && !weighted && !splitVotes && votes instanceof SparseVoteImg ) ? ( SparseVoteImg ) votes : null;
+		final double tolerance = Math.toRadians( normalTolerance );
+
+		final int nTasks = Math.max( 1, Math.min( numThreads, nRadiuses ) );
+		final long nPixels = input.size();
+		final List< Callable< Void > > tasks = new ArrayList<>( nTasks );
+		final long[] counts = new long[ 2 ];
+		final double[] totalWeight = new double[ 1 ];
+		for ( int t = 0; t < nTasks; t++ )
+		{
+			final int firstPlane = t;
+			// The first task also counts voters, since all tasks see the same ones.
+			final boolean reportsProgress = ( t == 0 );
+			tasks.add( () -> {
+				final int nPlanes = ( nRadiuses - firstPlane + nTasks - 1 ) / nTasks;
+				final CircleStencil[] taskStencils = new CircleStencil[ nPlanes ];
+				final FractionalCircleStencil[] splitStencils = splitVotes ? new FractionalCircleStencil[ nPlanes ] : null;
+				final int[][] offsets = new int[ nPlanes ][];
+				final int[] planeOffsets = new int[ nPlanes ];
+				@SuppressWarnings( "unchecked" )
+				final RandomAccess< V >[] ras = new RandomAccess[ nPlanes ];
+				for ( int j = 0; j < nPlanes; j++ )
+				{
+					final int i = firstPlane + j * nTasks;
+					taskStencils[ j ] = stencils[ i ];
+					if ( splitVotes )
+						splitStencils[ j ] = new FractionalCircleStencil( stencils[ i ].getRadius(), stepRadius );
+					if ( null != data )
+					{
+						offsets[ j ] = splitVotes ? splitStencils[ j ].getLinearOffsets( width ) : stencils[ i ].getLinearOffsets( width );
+						planeOffsets[ j ] = i * width * height;
+					}
+					else if ( null == sparse )
+					{
+						// Not for sparse images, it would allocate a tile.
+						ras[ j ] = Views.hyperSlice( votes, numDimensions, i ).randomAccess();
+					}
+				}
+
+				final RandomAccess< DoubleType > nra = ( null == normals ) ? null : normals.randomAccess();
+
+				long found = 0;
+				long selected = 0;
+				double sum = 0.;
+				final Voters< T > voters = new Voters<>( input, threshold );
+				while ( voters.next() )
+				{
+					++found;
+					final double value = voters.value;
+					final int x0 = voters.x;
+					final int y0 = voters.y;
+					if ( voterFraction < 1. && !isSelected( x0, y0, voterFraction, stratified, seed ) )
+						continue;
+					++selected;
+
+					final double weight = weighted ? value * weightScale : 1.;
+					sum += weight;
+					if ( null != nra )
+					{
+						nra.setPosition( x0, 0 );
+						nra.setPosition( y0, 1 );
+						final double theta = nra.get().get();
+						for ( int j = 0; j < nPlanes; j++ )
+							voteAlongNormal( x0, y0, theta, taskStencils[ j ].getRadius(), tolerance, weight, ras[ j ], width, height );
+					}
+					else if ( splitVotes && data instanceof double[] )
+						for ( int j = 0; j < nPlanes; j++ )
+							splitStencils[ j ].vote( x0, y0, ( double[] ) data, planeOffsets[ j ], offsets[ j ], width, height, weight );
+					else if ( splitVotes )
+						for ( int j = 0; j < nPlanes; j++ )
+							splitStencils[ j ].vote( x0, y0, ras[ j ], width, height, weight );
+					else if ( null != sparse )
+						for ( int j = 0; j < nPlanes; j++ )
+							sparse.vote( taskStencils[ j ], x0, y0, firstPlane + j * nTasks );
+					else if ( weighted && data instanceof double[] )
+						for ( int j = 0; j < nPlanes; j++ )
+							taskStencils[ j ].vote( x0, y0, ( double[] ) data, planeOffsets[ j ], offsets[ j ], width, height, weight );
+					else if ( weighted )
+						for ( int j = 0; j < nPlanes; j++ )
+							taskStencils[ j ].vote( x0, y0, ras[ j ], width, height, weight );
+					else if ( data instanceof double[] )
+						for ( int j = 0; j < nPlanes; j++ )
+							taskStencils[ j ].vote( x0, y0, ( double[] ) data, planeOffsets[ j ], offsets[ j ], width, height );
+					else if ( data instanceof int[] )
+						for ( int j = 0; j < nPlanes; j++ )
+							taskStencils[ j ].vote( x0, y0, ( int[] ) data, planeOffsets[ j ], offsets[ j ], width, height );
+					else if ( data instanceof short[] )
+						for ( int j = 0; j < nPlanes; j++ )
+							taskStencils[ j ].vote( x0, y0, ( short[] ) data, planeOffsets[ j ], offsets[ j ], width, height );
+					else
+						for ( int j = 0; j < nPlanes; j++ )
+							taskStencils[ j ].vote( x0, y0, ras[ j ], width, height );
+
+					if ( isCanceled() )
+						return null;
+					if ( reportsProgress && ( found & 0xffff ) == 0 )
+						statusService.showProgress( ( int ) ( 1000. * voters.getNScanned() / nPixels ), 1000 );
+				}
+				if ( reportsProgress )
+				{
+					counts[ 0 ] = found;
+					counts[ 1 ] = selected;
+					totalWeight[ 0 ] = sum;
+				}
+				return null;
+			} );
+		}
+
+		final ExecutorService es = threadService.getExecutorService();
+		try
+		{
+			final List< Future< Void > > futures = es.invokeAll( tasks );
+			for ( final Future< Void > future : futures )
+				future.get();
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			e.printStackTrace();
+		}
+		if ( votes instanceof SparseVoteImg )
+			( ( SparseVoteImg ) votes ).freeze();
+		nVoters = counts[ 0 ];
+		nSelected = counts[ 1 ];
+		sumWeights = totalWeight[ 0 ];
+		statusService.showProgress( 1, 1 );
+	}
 
-			for ( int i = 0; i < nRadiuses; i++ )
+	/**
+	 * Fills the vote image one cell at a time, in cell order, so that each
+	 * cell is written once and can then be evicted for good. This keeps disk
+	 * accesses sequential for disk-cached vote images. Voters are sorted by
+	 * row first, so that the voters that can reach a cell are quickly found.
+	 */
+	private void computeInCellOrder( final IterableInterval< T > input, final AbstractCellImg< V, ?, ?, ? > votes, final CircleStencil[] stencils )
+	{
+		final int height = ( int ) votes.dimension( 1 );
+		final int[][] voters = collectVotersByRow( input, height );
+		final int[] xs = voters[ 0 ];
+		final int[] ys = voters[ 1 ];
+
+		final CellGrid grid = votes.getCellGrid();
+		final long nCells = Intervals.numElements( grid.getGridDimensions() );
+		final int nTasks = ( int ) Math.max( 1, Math.min( numThreads, nCells ) );
+
+		// Tasks take the next cell in order, so that cells are filled roughly in order.
+		final AtomicLong nextCell = new AtomicLong( 0 );
+		final List< Callable< Void > > tasks = new ArrayList<>( nTasks );
+		for ( int t = 0; t < nTasks; t++ )
+		{
+			final boolean reportsProgress = ( t == 0 );
+			tasks.add( () -> {
+				final RandomAccess< V > ra = votes.randomAccess();
+				final long[] min = new long[ 3 ];
+				final int[] dims = new int[ 3 ];
+				long index;
+				while ( ( index = nextCell.getAndIncrement() ) < nCells )
+				{
+					grid.getCellDimensions( index, min, dims );
+					fillCell( ra, min, dims, xs, ys, stencils );
+					if ( isCanceled() )
+						return null;
+					if ( reportsProgress )
+						statusService.showProgress( ( int ) ( 1000. * index / nCells ), 1000 );
+				}
+				return null;
+			} );
+		}
+
+		final ExecutorService es = threadService.getExecutorService();
+		try
+		{
+			final List< Future< Void > > futures = es.invokeAll( tasks );
+			for ( final Future< Void > future : futures )
+				future.get();
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			e.printStackTrace();
+		}
+		statusService.showProgress( 1, 1 );
+	}
+
+	/**
+	 * Computes all the votes received by the specified cell of the vote image,
+	 * from the voters sorted by row.
+	 */
+	private static final < R extends RealType< R > > void fillCell( final RandomAccess< R > ra, final long[] min, final int[] dims, final int[] xs, final int[] ys, final CircleStencil[] stencils )
+	{
+		final int xMin = ( int ) min[ 0 ];
+		final int yMin = ( int ) min[ 1 ];
+		final int xMax = xMin + dims[ 0 ] - 1;
+		final int yMax = yMin + dims[ 1 ] - 1;
+		for ( int z = ( int ) min[ 2 ]; z < min[ 2 ] + dims[ 2 ]; z++ )
+		{
+			final CircleStencil stencil = stencils[ z ];
+			final int extent = stencil.getExtent();
+			ra.setPosition( z, 2 );
+			final int start = lowerBound( ys, yMin - extent );
+			final int end = lowerBound( ys, yMax + extent + 1 );
+			for ( int v = start; v < end; v++ )
 			{
-				final IntervalView< DoubleType > slice = Views.hyperSlice( votes, numDimensions, i );
-				final RandomAccess< DoubleType > ra = Views.extendZero( slice ).randomAccess();
-				final int r = minRadius + i * stepRadius;
-				midPointAlgorithm( cursor, r, ra );
+				final int x0 = xs[ v ];
+				if ( x0 < xMin - extent || x0 > xMax + extent )
+					continue;
+				stencil.voteInBox( x0, ys[ v ], ra, xMin, yMin, xMax, yMax );
 			}
+		}
+	}
+
+	/**
+	 * Creates a vote image whose cells are only computed when they are
+	 * accessed, from the voters of the input. Cells are softly cached, so
+	 * they are recomputed if they were garbage collected.
+	 */
+	private Img< V > createLazyOutput( final IterableInterval< T > input, final int nRadiuses )
+	{
+		final int height = ( int ) input.dimension( 1 );
+		final int[][] voters = collectVotersByRow( input, height );
+		final int[] xs = voters[ 0 ];
+		final int[] ys = voters[ 1 ];
+		final CircleStencil[] stencils = new CircleStencil[ nRadiuses ];
+		for ( int i = 0; i < nRadiuses; i++ )
+			stencils[ i ] = new CircleStencil( minRadius + i * stepRadius );
+
+		final CellLoader< V > loader = cell -> {
+			final long[] min = new long[ 3 ];
+			final int[] dims = new int[ 3 ];
+			cell.min( min );
+			for ( int d = 0; d < 3; d++ )
+				dims[ d ] = ( int ) cell.dimension( d );
+			fillCell( cell.randomAccess(), min, dims, xs, ys, stencils );
+		};
+		final ReadOnlyCachedCellImgOptions options = ReadOnlyCachedCellImgOptions.options()
+				.cellDimensions( LAZY_CELL_SIZE, LAZY_CELL_SIZE, 1 );
+		@SuppressWarnings( "unchecked" )
+		final V type = ( V ) accumulatorType.createType();
+		return new ReadOnlyCachedCellImgFactory( options ).create(
+				new long[] { input.dimension( 0 ), height, nRadiuses },
+				type,
+				loader );
+	}
+
+	/**
+	 * Returns the X and Y positions of the voters of the input, sorted by
+	 * row with a counting sort. Also counts the voters.
+	 */
+	private int[][] collectVotersByRow( final IterableInterval< T > input, final int height )
+	{
+		final int[] rowCounts = new int[ height + 1 ];
+		long found = 0;
+		Voters< T > voters = new Voters<>( input, threshold );
+		while ( voters.next() )
+		{
+			++found;
+			final int x = voters.x;
+			final int y = voters.y;
+			if ( voterFraction < 1. && !isSelected( x, y, voterFraction, stratified, seed ) )
+				continue;
+			rowCounts[ y + 1 ]++;
+		}
+		for ( int y = 1; y <= height; y++ )
+			rowCounts[ y ] += rowCounts[ y - 1 ];
+
+		final int nSelected = rowCounts[ height ];
+		final int[] xs = new int[ nSelected ];
+		final int[] ys = new int[ nSelected ];
+		voters = new Voters<>( input, threshold );
+		while ( voters.next() )
+		{
+			final int x = voters.x;
+			final int y = voters.y;
+			if ( voterFraction < 1. && !isSelected( x, y, voterFraction, stratified, seed ) )
+				continue;
+			final int i = rowCounts[ y ]++;
+			xs[ i ] = x;
+			ys[ i ] = y;
+		}
+
+		this.nVoters = found;
+		this.nSelected = nSelected;
+		this.sumWeights = nSelected;
+		return new int[][] { xs, ys };
+	}
 
-			statusService.showProgress( ++progress, ( int ) sum );
-			if ( isCanceled() )
-				return;
+	/**
+	 * Returns the index of the first element of the sorted array that is not
+	 * smaller than the specified value.
+	 */
+	private static final int lowerBound( final int[] sorted, final int value )
+	{
+		int lo = 0;
+		int hi = sorted.length;
+		while ( lo < hi )
+		{
+			final int m = ( lo + hi ) >>> 1;
+			if ( sorted[ m ] < value )
+				lo = m + 1;
+			else
+				hi = m;
 		}
+		return lo;
 	}
 
-	private static final void midPointAlgorithm( final Localizable position, final int radius, final RandomAccess< DoubleType > ra )
+	/**
+	 * Returns the number of input pixels above the threshold found in the
+	 * last call to {@link #compute(IterableInterval, Img)}, before voter
+	 * subsampling.
+	 *
+	 * @return the number of voters.
+	 */
+	public long getNVoters()
 	{
-		final int x0 = position.getIntPosition( 0 );
-		final int y0 = position.getIntPosition( 1 );
+		return nVoters;
+	}
 
-		/*
-		 * We "zig-zag" through indices, so that we reconstruct a continuous set
-		 * of of x,y coordinates, starting from the top of the circle.
-		 */
+	/**
+	 * Returns the mean weight of the votes cast in the last call to
+	 * {@link #compute(IterableInterval, Img)}. This is 1 if votes are not
+	 * weighted.
+	 *
+	 * @return the mean vote weight.
+	 */
+	public double getMeanWeight()
+	{
+		return ( nSelected == 0 ) ? 1. : sumWeights / nSelected;
+	}
 
-		final int octantSize = ( int ) Math.floor( ( Math.sqrt( 2 ) * ( radius - 1 ) + 4 ) / 2 );
+	/**
+	 * Votes for the centers located at the specified radius from the voter,
+	 * along the normal direction, on both sides, within the specified angular
+	 * tolerance. Arcs are sampled so that there is about one pixel between
+	 * two samples, and a pixel is not voted for twice in a row.
+	 */
+	private static final < V extends RealType< V > > void voteAlongNormal( final int x0, final int y0, final double theta, final int radius, final double tolerance, final double weight, final RandomAccess< V > ra, final int width, final int height )
+	{
+		final int nHalf = ( int ) Math.ceil( tolerance * radius );
+		final double step = ( nHalf == 0 ) ? 0. : tolerance / nHalf;
+		final double cosStep = Math.cos( step );
+		final double sinStep = Math.sin( step );
+		double c = Math.cos( theta - nHalf * step );
+		double s = Math.sin( theta - nHalf * step );
+		int lastPlus = -1;
+		int lastMinus = -1;
+		for ( int k = -nHalf; k <= nHalf; k++ )
+		{
+			final int dx = ( int ) Math.round( radius * c );
+			final int dy = ( int ) Math.round( radius * s );
+			lastPlus = voteAt( x0 + dx, y0 + dy, lastPlus, weight, ra, width, height );
+			lastMinus = voteAt( x0 - dx, y0 - dy, lastMinus, weight, ra, width, height );
+
+			final double nc = c * cosStep - s * sinStep;
+			s = s * cosStep + c * sinStep;
+			c = nc;
+		}
+	}
 
-		int x = 0;
-		int y = radius;
-		int f = 1 - radius;
-		int dx = 1;
-		int dy = -2 * radius;
+	private static final < V extends RealType< V > > int voteAt( final int x, final int y, final int last, final double weight, final RandomAccess< V > ra, final int width, final int height )
+	{
+		if ( x < 0 || x >= width || y < 0 || y >= height )
+			return last;
+		final int index = x + y * width;
+		if ( index == last )
+			return last;
+		ra.setPosition( x, 0 );
+		ra.setPosition( y, 1 );
+		if ( weight == 1. )
+			CircleStencil.inc( ra.get() );
+		else
+			ra.get().setReal( ra.get().getRealDouble() + weight );
+		return index;
+	}
 
-		for ( int i = 2; i < octantSize; i++ )
+	/**
+	 * Returns whether the foreground pixel at the specified position votes,
+	 * when only a fraction of them does.
+	 */
+	private static final boolean isSelected( final int x, final int y, final double fraction, final boolean stratified, final long seed )
+	{
+		if ( stratified )
 		{
-			// We update x & y
-			if ( f > 0 )
+			// R2 lattice: neighbor pixels get well spread values.
+			final double v = x * 0.7548776662466927 + y * 0.5698402909980532 + ( seed & 0xffffl ) * 0.6180339887498949;
+			return v - Math.floor( v ) < fraction;
+		}
+
+		// SplitMix64 hash of the position.
+		long h = seed ^ ( x * 0x9E3779B97F4A7C15l ) ^ ( y * 0xC2B2AE3D27D4EB4Fl );
+		h = ( h ^ ( h >>> 30 ) ) * 0xBF58476D1CE4E5B9l;
+		h = ( h ^ ( h >>> 27 ) ) * 0x94D049BB133111EBl;
+		h = h ^ ( h >>> 31 );
+		return ( h >>> 11 ) * 0x1.0p-53 < fraction;
+	}
+
+	/**
+	 * Returns the array backing the specified vote image, or
+	 * <code>null</code> if it is not stored in a single flat array of a type
+	 * we can vote in directly. Short arrays are only returned for unsigned
+	 * short images.
+	 */
+	private static final Object getBackingArray( final Img< ? > votes )
+	{
+		if ( !( votes instanceof ArrayImg ) )
+			return null;
+		final Object access = ( ( ArrayImg< ?, ? > ) votes ).update( null );
+		if ( access instanceof DoubleArray )
+			return ( ( DoubleArray ) access ).getCurrentStorageArray();
+		if ( access instanceof IntArray )
+			return ( ( IntArray ) access ).getCurrentStorageArray();
+		if ( access instanceof ShortArray && votes.firstElement() instanceof UnsignedShortType )
+			return ( ( ShortArray ) access ).getCurrentStorageArray();
+		return null;
+	}
+
+	/**
+	 * Iterates over the voters of the input, that is the pixels strictly above
+	 * the threshold. If the input is a packed mask, voters are enumerated one
+	 * word at a time, and empty words are skipped in one test. The words are
+	 * only read, so the voters of a mask can be iterated by several threads at
+	 * once.
+	 */
+	private static final class Voters< T extends RealType< T > >
+	{
+
+		private final double threshold;
+
+		private final long[] words;
+
+		private final long width;
+
+		private final Cursor< T > cursor;
+
+		private int wordIndex = -1;
+
+		private long word;
+
+		private long nScanned;
+
+		/** X position of the current voter. */
+		private int x;
+
+		/** Y position of the current voter. */
+		private int y;
+
+		/** Value of the current voter. */
+		private double value;
+
+		private Voters( final IterableInterval< T > input, final double threshold )
+		{
+			this.threshold = threshold;
+			// Mask pixels are 0 or 1, so a threshold in [0, 1[ keeps the set bits.
+			this.words = ( threshold >= 0. && threshold < 1. ) ? BitMask.getWords( input ) : null;
+			this.width = input.dimension( 0 );
+			this.cursor = ( null == words ) ? input.localizingCursor() : null;
+		}
+
+		/**
+		 * Moves to the next voter.
+		 *
+		 * @return <code>false</code> if there are no more voters.
+		 */
+		private boolean next()
+		{
+			if ( null != words )
 			{
-				y = y - 1;
-				dy = dy + 2;
-				f = f + dy;
+				while ( word == 0l )
+				{
+					if ( ++wordIndex >= words.length )
+						return false;
+					word = words[ wordIndex ];
+					nScanned += 64;
+				}
+				final long index = ( ( long ) wordIndex << 6 ) + Long.numberOfTrailingZeros( word );
+				word &= word - 1l;
+				x = ( int ) ( index % width );
+				y = ( int ) ( index / width );
+				value = 1.;
+				return true;
 			}
-			x = x + 1;
-			dx = dx + 2;
-			f = f + dx;
-
-			// 1st octant.
-			ra.setPosition( x0 + x, 0 );
-			ra.setPosition( y0 + y, 1 );
-			ra.get().inc();
-
-			// 2nd octant.
-			ra.setPosition( x0 - x, 0 );
-//			ra.setPosition( y0 + y, 1 );
-			ra.get().inc();
-
-			// 3rd octant.
-			ra.setPosition( x0 + x, 0 );
-			ra.setPosition( y0 - y, 1 );
-			ra.get().inc();
-
-			// 4th octant.
-			ra.setPosition( x0 - x, 0 );
-//			ra.setPosition( y0 - y, 1 );
-			ra.get().inc();
-
-			// 5th octant.
-			ra.setPosition( x0 + y, 0 );
-			ra.setPosition( y0 + x, 1 );
-			ra.get().inc();
-
-			// 6th octant.
-			ra.setPosition( x0 - y, 0 );
-//			ra.setPosition( y0 + x, 1 );
-			ra.get().inc();
-
-			// 7th octant.
-			ra.setPosition( x0 + y, 0 );
-			ra.setPosition( y0 - x, 1 );
-			ra.get().inc();
-
-			// 8th octant.
-			ra.setPosition( x0 - y, 0 );
-//			ra.setPosition( y0 - x, 1 );
-			ra.get().inc();
+
+			while ( cursor.hasNext() )
+			{
+				cursor.fwd();
+				++nScanned;
+				final double v = cursor.get().getRealDouble();
+				if ( v <= threshold )
+					continue;
+				x = cursor.getIntPosition( 0 );
+				y = cursor.getIntPosition( 1 );
+				value = v;
+				return true;
+			}
+			return false;
 		}
 
+		/**
+		 * Returns the number of input pixels scanned so far.
+		 */
+		private long getNScanned()
+		{
+			return nScanned;
+		}
 	}
 
 	// -- Cancelable methods --
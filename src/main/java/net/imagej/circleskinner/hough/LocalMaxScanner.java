@@ -0,0 +1,409 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner.hough;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Finds the local maxima of a 3D vote image stored in a flat
+ * <code>double</code>, <code>float</code>, <code>int</code> or unsigned
+ * <code>short</code> array, or in one <code>float</code> array per radius
+ * plane.
+ * <p>
+ * This is the same search as
+ * {@link net.imglib2.algorithm.localextrema.LocalExtrema} with a 3×3×3
+ * neighborhood: voxels on the image border are excluded, and a voxel is a
+ * maximum if it reaches the threshold and none of its 26 neighbors is
+ * strictly larger. Neighbors are read at precomputed offsets in the array,
+ * and rows whose maximum is below the threshold are skipped without looking
+ * at their neighbors. Peaks are written in primitive arrays.
+ * <p>
+ * The image is split in slabs of radius planes, one per task, and the peaks
+ * are returned ordered by radius plane, then Y, then X, whatever the number
+ * of tasks.
+ *
+ * @author agent
+ */
+final class LocalMaxScanner
+{
+
+	private LocalMaxScanner()
+	{}
+
+	/**
+	 * Returns the array backing the specified vote image, if we can scan it
+	 * directly.
+	 *
+	 * @return a <code>double[]</code>, <code>float[]</code>,
+	 *         <code>int[]</code> or <code>short[]</code> array, or a
+	 *         <code>float[][]</code> array with one array per plane, or
+	 *         <code>null</code> if the vote image is not a 3D
+	 *         {@link ArrayImg} or float {@link PlanarImg} of a supported
+	 *         type. Short arrays are only returned for unsigned short images.
+	 */
+	static Object getBackingArray( final Object votes )
+	{
+		if ( votes instanceof PlanarImg && ( ( PlanarImg< ?, ? > ) votes ).numDimensions() == 3 )
+		{
+			final PlanarImg< ?, ? > img = ( PlanarImg< ?, ? > ) votes;
+			if ( !( img.getPlane( 0 ) instanceof FloatArray ) )
+				return null;
+			final float[][] planes = new float[ img.numSlices() ][];
+			for ( int z = 0; z < planes.length; z++ )
+				planes[ z ] = ( ( FloatArray ) img.getPlane( z ) ).getCurrentStorageArray();
+			return planes;
+		}
+		if ( !( votes instanceof ArrayImg ) || ( ( ArrayImg< ?, ? > ) votes ).numDimensions() != 3 )
+			return null;
+		final ArrayImg< ?, ? > img = ( ArrayImg< ?, ? > ) votes;
+		final Object access = img.update( null );
+		if ( access instanceof DoubleArray )
+			return ( ( DoubleArray ) access ).getCurrentStorageArray();
+		if ( access instanceof FloatArray )
+			return ( ( FloatArray ) access ).getCurrentStorageArray();
+		if ( access instanceof IntArray )
+			return ( ( IntArray ) access ).getCurrentStorageArray();
+		if ( access instanceof ShortArray && img.firstElement() instanceof UnsignedShortType )
+			return ( ( ShortArray ) access ).getCurrentStorageArray();
+		return null;
+	}
+
+	/**
+	 * Finds the local maxima of a vote image.
+	 *
+	 * @param data
+	 *            the array returned by {@link #getBackingArray(Object)}.
+	 * @param width
+	 *            the width of the vote image.
+	 * @param height
+	 *            the height of the vote image.
+	 * @param depth
+	 *            the number of radius planes of the vote image.
+	 * @param threshold
+	 *            the min value of a maximum.
+	 * @param es
+	 *            the executor service that runs the tasks.
+	 * @param numThreads
+	 *            the number of tasks to use.
+	 * @return the peaks found.
+	 */
+	static Peaks scan( final Object data, final int width, final int height, final int depth, final double threshold, final ExecutorService es, final int numThreads )
+	{
+		final Peaks peaks = new Peaks();
+		if ( width < 3 || height < 3 || depth < 3 )
+			return peaks;
+
+		final boolean planar = data instanceof float[][];
+		final int[] offsets = new int[ planar ? 9 : 26 ];
+		final int planeSize = planar ? 0 : width * height;
+		int k = 0;
+		for ( int dz = planar ? 0 : -1; dz <= ( planar ? 0 : 1 ); dz++ )
+			for ( int dy = -1; dy <= 1; dy++ )
+				for ( int dx = -1; dx <= 1; dx++ )
+					if ( planar || dx != 0 || dy != 0 || dz != 0 )
+						offsets[ k++ ] = dx + dy * width + dz * planeSize;
+
+		final int nInner = depth - 2;
+		final int nTasks = Math.max( 1, Math.min( numThreads, nInner ) );
+		final List< Callable< Peaks > > tasks = new ArrayList<>( nTasks );
+		for ( int t = 0; t < nTasks; t++ )
+		{
+			final int zMin = 1 + ( int ) ( ( long ) t * nInner / nTasks );
+			final int zMax = 1 + ( int ) ( ( long ) ( t + 1 ) * nInner / nTasks );
+			tasks.add( () -> {
+				final Peaks found = new Peaks();
+				if ( planar )
+					scan( ( float[][] ) data, width, height, zMin, zMax, offsets, threshold, found );
+				else if ( data instanceof double[] )
+					scan( ( double[] ) data, width, height, zMin, zMax, offsets, threshold, found );
+				else if ( data instanceof float[] )
+					scan( ( float[] ) data, width, height, zMin, zMax, offsets, threshold, found );
+				else if ( data instanceof int[] )
+					scan( ( int[] ) data, width, height, zMin, zMax, offsets, threshold, found );
+				else
+					scan( ( short[] ) data, width, height, zMin, zMax, offsets, threshold, found );
+				return found;
+			} );
+		}
+
+		try
+		{
+			final List< Future< Peaks > > futures = es.invokeAll( tasks );
+			for ( final Future< Peaks > future : futures )
+				peaks.addAll( future.get() );
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			e.printStackTrace();
+		}
+		return peaks;
+	}
+
+	/**
+	 * Planes are separate arrays, so the offsets are the 9 in-plane ones, and
+	 * the neighbors in the planes below and above are read at the same
+	 * offsets.
+	 */
+	private static void scan( final float[][] planes, final int width, final int height, final int zMin, final int zMax, final int[] offsets, final double threshold, final Peaks peaks )
+	{
+		for ( int z = zMin; z < zMax; z++ )
+		{
+			final float[] below = planes[ z - 1 ];
+			final float[] data = planes[ z ];
+			final float[] above = planes[ z + 1 ];
+			for ( int y = 1; y < height - 1; y++ )
+			{
+				final int row = y * width;
+				float rowMax = Float.NEGATIVE_INFINITY;
+				for ( int i = row + 1; i < row + width - 1; i++ )
+					if ( data[ i ] > rowMax )
+						rowMax = data[ i ];
+				if ( rowMax < threshold )
+					continue;
+
+				NEXT_VOXEL: for ( int x = 1; x < width - 1; x++ )
+				{
+					final int i = row + x;
+					final float val = data[ i ];
+					if ( val < threshold )
+						continue;
+					for ( final int offset : offsets )
+						if ( data[ i + offset ] > val || below[ i + offset ] > val || above[ i + offset ] > val )
+							continue NEXT_VOXEL;
+					peaks.add( x, y, z, val );
+				}
+			}
+		}
+	}
+
+	private static void scan( final double[] data, final int width, final int height, final int zMin, final int zMax, final int[] offsets, final double threshold, final Peaks peaks )
+	{
+		for ( int z = zMin; z < zMax; z++ )
+		{
+			for ( int y = 1; y < height - 1; y++ )
+			{
+				final int row = ( z * height + y ) * width;
+				double rowMax = Double.NEGATIVE_INFINITY;
+				for ( int i = row + 1; i < row + width - 1; i++ )
+					if ( data[ i ] > rowMax )
+						rowMax = data[ i ];
+				if ( rowMax < threshold )
+					continue;
+
+				NEXT_VOXEL: for ( int x = 1; x < width - 1; x++ )
+				{
+					final int i = row + x;
+					final double val = data[ i ];
+					if ( val < threshold )
+						continue;
+					for ( final int offset : offsets )
+						if ( data[ i + offset ] > val )
+							continue NEXT_VOXEL;
+					peaks.add( x, y, z, val );
+				}
+			}
+		}
+	}
+
+	private static void scan( final float[] data, final int width, final int height, final int zMin, final int zMax, final int[] offsets, final double threshold, final Peaks peaks )
+	{
+		for ( int z = zMin; z < zMax; z++ )
+		{
+			for ( int y = 1; y < height - 1; y++ )
+			{
+				final int row = ( z * height + y ) * width;
+				float rowMax = Float.NEGATIVE_INFINITY;
+				for ( int i = row + 1; i < row + width - 1; i++ )
+					if ( data[ i ] > rowMax )
+						rowMax = data[ i ];
+				if ( rowMax < threshold )
+					continue;
+
+				NEXT_VOXEL: for ( int x = 1; x < width - 1; x++ )
+				{
+					final int i = row + x;
+					final float val = data[ i ];
+					if ( val < threshold )
+						continue;
+					for ( final int offset : offsets )
+						if ( data[ i + offset ] > val )
+							continue NEXT_VOXEL;
+					peaks.add( x, y, z, val );
+				}
+			}
+		}
+	}
+
+	private static void scan( final int[] data, final int width, final int height, final int zMin, final int zMax, final int[] offsets, final double threshold, final Peaks peaks )
+	{
+		for ( int z = zMin; z < zMax; z++ )
+		{
+			for ( int y = 1; y < height - 1; y++ )
+			{
+				final int row = ( z * height + y ) * width;
+				int rowMax = Integer.MIN_VALUE;
+				for ( int i = row + 1; i < row + width - 1; i++ )
+					if ( data[ i ] > rowMax )
+						rowMax = data[ i ];
+				if ( rowMax < threshold )
+					continue;
+
+				NEXT_VOXEL: for ( int x = 1; x < width - 1; x++ )
+				{
+					final int i = row + x;
+					final int val = data[ i ];
+					if ( val < threshold )
+						continue;
+					for ( final int offset : offsets )
+						if ( data[ i + offset ] > val )
+							continue NEXT_VOXEL;
+					peaks.add( x, y, z, val );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Values are read as unsigned shorts.
+	 */
+	private static void scan( final short[] data, final int width, final int height, final int zMin, final int zMax, final int[] offsets, final double threshold, final Peaks peaks )
+	{
+		for ( int z = zMin; z < zMax; z++ )
+		{
+			for ( int y = 1; y < height - 1; y++ )
+			{
+				final int row = ( z * height + y ) * width;
+				int rowMax = 0;
+				for ( int i = row + 1; i < row + width - 1; i++ )
+					rowMax = Math.max( rowMax, data[ i ] & 0xffff );
+				if ( rowMax < threshold )
+					continue;
+
+				NEXT_VOXEL: for ( int x = 1; x < width - 1; x++ )
+				{
+					final int i = row + x;
+					final int val = data[ i ] & 0xffff;
+					if ( val < threshold )
+						continue;
+					for ( final int offset : offsets )
+						if ( ( data[ i + offset ] & 0xffff ) > val )
+							continue NEXT_VOXEL;
+					peaks.add( x, y, z, val );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Peak positions and values, in growable primitive arrays.
+	 */
+	static final class Peaks
+	{
+
+		private int size = 0;
+
+		private int[] xs = new int[ 16 ];
+
+		private int[] ys = new int[ 16 ];
+
+		private int[] zs = new int[ 16 ];
+
+		private double[] values = new double[ 16 ];
+
+		private void add( final int x, final int y, final int z, final double value )
+		{
+			if ( size == xs.length )
+				grow( size + 1 );
+			xs[ size ] = x;
+			ys[ size ] = y;
+			zs[ size ] = z;
+			values[ size ] = value;
+			size++;
+		}
+
+		private void addAll( final Peaks other )
+		{
+			if ( size + other.size > xs.length )
+				grow( size + other.size );
+			System.arraycopy( other.xs, 0, xs, size, other.size );
+			System.arraycopy( other.ys, 0, ys, size, other.size );
+			System.arraycopy( other.zs, 0, zs, size, other.size );
+			System.arraycopy( other.values, 0, values, size, other.size );
+			size += other.size;
+		}
+
+		private void grow( final int minCapacity )
+		{
+			final int capacity = Math.max( minCapacity, 2 * xs.length );
+			xs = Arrays.copyOf( xs, capacity );
+			ys = Arrays.copyOf( ys, capacity );
+			zs = Arrays.copyOf( zs, capacity );
+			values = Arrays.copyOf( values, capacity );
+		}
+
+		int size()
+		{
+			return size;
+		}
+
+		int getX( final int i )
+		{
+			return xs[ i ];
+		}
+
+		int getY( final int i )
+		{
+			return ys[ i ];
+		}
+
+		int getZ( final int i )
+		{
+			return zs[ i ];
+		}
+
+		double getValue( final int i )
+		{
+			return values[ i ];
+		}
+	}
+}
@@ -0,0 +1,259 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner.hough;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Non-maxima suppression of circles, with a uniform grid index on the
+ * centers of the circles already kept.
+ * <p>
+ * Rule: when one circle has a center inside one another, we discard the one
+ * with the highest sensitivity. Candidates are processed by increasing
+ * sensitivity, and each candidate is discarded if its center is inside a
+ * circle kept before it. The grid cells are as large as the largest radius,
+ * so the circles that can contain a center are in the 3×3 cells around it,
+ * and each candidate is only compared to its neighbors instead of to all the
+ * circles kept so far.
+ *
+ * @author agent
+ */
+public final class NonMaximaSuppression
+{
+
+	private NonMaximaSuppression()
+	{}
+
+	/**
+	 * Returns the circles of the specified list that are kept by the
+	 * non-maxima suppression.
+	 *
+	 * @param candidates
+	 *            the candidate circles, sorted by increasing sensitivity.
+	 * @param x
+	 *            returns the X position of the center of a circle.
+	 * @param y
+	 *            returns the Y position of the center of a circle.
+	 * @param radius
+	 *            returns the radius of a circle.
+	 * @return a new list containing the circles kept, in the order of the
+	 *         candidates.
+	 */
+	public static < C > List< C > suppress( final List< C > candidates, final ToDoubleFunction< C > x, final ToDoubleFunction< C > y, final ToDoubleFunction< C > radius )
+	{
+		return suppress( candidates.iterator(), maxRadius( candidates, radius ), x, y, radius, Integer.MAX_VALUE );
+	}
+
+	/**
+	 * Returns the first circles kept by the non-maxima suppression, at most
+	 * the specified number.
+	 *
+	 * @param candidates
+	 *            the candidate circles, in any order. They are compared by
+	 *            their natural ordering, which must be by increasing
+	 *            sensitivity. Candidates with the same sensitivity are
+	 *            processed in the order of the list.
+	 * @param x
+	 *            returns the X position of the center of a circle.
+	 * @param y
+	 *            returns the Y position of the center of a circle.
+	 * @param radius
+	 *            returns the radius of a circle.
+	 * @param maxCount
+	 *            the max number of circles to keep.
+	 * @return a new list containing the circles kept, by increasing
+	 *         sensitivity.
+	 * @see #kept(List, ToDoubleFunction, ToDoubleFunction, ToDoubleFunction)
+	 */
+	public static < C extends Comparable< ? super C > > List< C > suppress( final List< C > candidates, final ToDoubleFunction< C > x, final ToDoubleFunction< C > y, final ToDoubleFunction< C > radius, final int maxCount )
+	{
+		final Iterator< C > kept = kept( candidates, x, y, radius );
+		final List< C > retained = new ArrayList<>();
+		while ( retained.size() < maxCount && kept.hasNext() )
+			retained.add( kept.next() );
+		return retained;
+	}
+
+	/**
+	 * Returns the circles kept by the non-maxima suppression one by one, by
+	 * increasing sensitivity, so that callers can stop when they have enough
+	 * of them, or take more when some are rejected afterwards.
+	 * <p>
+	 * Since candidates are processed by increasing sensitivity, the first
+	 * circles kept only depend on the candidates before them. Candidates are
+	 * therefore not sorted, but put in a priority queue, and only polled until
+	 * enough circles are kept. This costs <code>O(n + m log(n))</code> for
+	 * <code>m</code> polled candidates instead of <code>O(n log(n))</code>.
+	 * Ties are broken by the position in the list, so the circles come in the
+	 * same order as with a stable sort of the list followed by
+	 * {@link #suppress(List, ToDoubleFunction, ToDoubleFunction, ToDoubleFunction)}.
+	 *
+	 * @param candidates
+	 *            the candidate circles, in any order. They are compared by
+	 *            their natural ordering, which must be by increasing
+	 *            sensitivity.
+	 * @param x
+	 *            returns the X position of the center of a circle.
+	 * @param y
+	 *            returns the Y position of the center of a circle.
+	 * @param radius
+	 *            returns the radius of a circle.
+	 * @return an iterator over the circles kept.
+	 */
+	public static < C extends Comparable< ? super C > > Iterator< C > kept( final List< C > candidates, final ToDoubleFunction< C > x, final ToDoubleFunction< C > y, final ToDoubleFunction< C > radius )
+	{
+		final PriorityQueue< Integer > queue = new PriorityQueue<>( Math.max( 1, candidates.size() ), ( a, b ) -> {
+			final int c = candidates.get( a ).compareTo( candidates.get( b ) );
+			return c != 0 ? c : Integer.compare( a, b );
+		} );
+		for ( int i = 0; i < candidates.size(); i++ )
+			queue.add( Integer.valueOf( i ) );
+		final Iterator< C > polling = new Iterator< C >()
+		{
+			@Override
+			public boolean hasNext()
+			{
+				return !queue.isEmpty();
+			}
+
+			@Override
+			public C next()
+			{
+				return candidates.get( queue.poll() );
+			}
+		};
+		return new Suppressor<>( polling, maxRadius( candidates, radius ), x, y, radius );
+	}
+
+	private static < C > double maxRadius( final Collection< C > candidates, final ToDoubleFunction< C > radius )
+	{
+		double maxRadius = 0.;
+		for ( final C candidate : candidates )
+			maxRadius = Math.max( maxRadius, radius.applyAsDouble( candidate ) );
+		return maxRadius;
+	}
+
+	private static < C > List< C > suppress( final Iterator< C > candidates, final double maxRadius, final ToDoubleFunction< C > x, final ToDoubleFunction< C > y, final ToDoubleFunction< C > radius, final int maxCount )
+	{
+		final Suppressor< C > kept = new Suppressor<>( candidates, maxRadius, x, y, radius );
+		final List< C > retained = new ArrayList<>();
+		while ( retained.size() < maxCount && kept.hasNext() )
+			retained.add( kept.next() );
+		return retained;
+	}
+
+	/**
+	 * Iterates over the candidates that are not inside a circle returned
+	 * before them.
+	 */
+	private static final class Suppressor< C > implements Iterator< C >
+	{
+
+		private final Iterator< C > candidates;
+
+		private final double cellSize;
+
+		private final ToDoubleFunction< C > x;
+
+		private final ToDoubleFunction< C > y;
+
+		private final ToDoubleFunction< C > radius;
+
+		private final Map< Long, List< C > > grid = new HashMap<>();
+
+		private C next;
+
+		private Suppressor( final Iterator< C > candidates, final double maxRadius, final ToDoubleFunction< C > x, final ToDoubleFunction< C > y, final ToDoubleFunction< C > radius )
+		{
+			this.candidates = candidates;
+			this.cellSize = Math.max( 1., maxRadius );
+			this.x = x;
+			this.y = y;
+			this.radius = radius;
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			NEXT_CIRCLE: while ( null == next && candidates.hasNext() )
+			{
+				final C tested = candidates.next();
+				final double tx = x.applyAsDouble( tested );
+				final double ty = y.applyAsDouble( tested );
+				final long cx = ( long ) Math.floor( tx / cellSize );
+				final long cy = ( long ) Math.floor( ty / cellSize );
+				for ( long j = cy - 1; j <= cy + 1; j++ )
+				{
+					for ( long i = cx - 1; i <= cx + 1; i++ )
+					{
+						final List< C > cell = grid.get( key( i, j ) );
+						if ( null == cell )
+							continue;
+						for ( final C kept : cell )
+						{
+							final double dx = x.applyAsDouble( kept ) - tx;
+							final double dy = y.applyAsDouble( kept ) - ty;
+							final double r = radius.applyAsDouble( kept );
+							if ( dx * dx + dy * dy <= r * r )
+								continue NEXT_CIRCLE;
+						}
+					}
+				}
+
+				// Was not found in any circle, so we keep it.
+				grid.computeIfAbsent( key( cx, cy ), k -> new ArrayList<>() ).add( tested );
+				next = tested;
+			}
+			return null != next;
+		}
+
+		@Override
+		public C next()
+		{
+			if ( !hasNext() )
+				throw new NoSuchElementException();
+			final C kept = next;
+			next = null;
+			return kept;
+		}
+	}
+
+	private static final Long key( final long i, final long j )
+	{
+		return Long.valueOf( ( i << 32 ) ^ ( j & 0xffffffffl ) );
+	}
+}
@@ -0,0 +1,191 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner.hough;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealPoint;
+import net.imglib2.algorithm.localextrema.RefinedPeak;
+import net.imglib2.algorithm.localextrema.SubpixelLocalization;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Refines detected peaks and builds circles from them with several tasks.
+ * <p>
+ * The peaks are split in contiguous chunks, several per task so that the
+ * tasks stay busy when some chunks are slower than others, and the results
+ * of the chunks are concatenated in order. The output is therefore in the
+ * same order as the peaks, whatever the number of tasks.
+ *
+ * @author agent
+ */
+final class PeakRefinement
+{
+
+	/**
+	 * Below this number of peaks per chunk, the chunks are not worth a task.
+	 */
+	private static final int MIN_CHUNK_SIZE = 64;
+
+	private static final int CHUNKS_PER_TASK = 4;
+
+	private PeakRefinement()
+	{}
+
+	/**
+	 * Refines peaks with {@link SubpixelLocalization}, with the settings the
+	 * detectors use: at most 10 moves, and moves allowed at maxima tolerance.
+	 *
+	 * @param peaks
+	 *            the peaks to refine.
+	 * @param img
+	 *            the image in which they were found.
+	 * @param es
+	 *            the executor service that runs the tasks.
+	 * @param nTasks
+	 *            the number of tasks to use.
+	 * @return the refined peaks, in the order of the peaks.
+	 */
+	static < P extends Localizable, T extends RealType< T > > List< RefinedPeak< P > > subpixelLocalization(
+			final List< P > peaks,
+			final RandomAccessibleInterval< T > img,
+			final ExecutorService es,
+			final int nTasks ) throws InterruptedException, ExecutionException
+	{
+		final boolean[] allowedToMoveInDim = new boolean[ img.numDimensions() ];
+		Arrays.fill( allowedToMoveInDim, true );
+		return inChunks( peaks, chunk -> SubpixelLocalization.refinePeaks(
+				chunk, img, img, true, 10, true, 0.01f, allowedToMoveInDim ), es, nTasks );
+	}
+
+	/**
+	 * Refines peaks with
+	 * {@link SubpixelFit#parabolic(RandomAccessibleInterval, RandomAccess, Localizable, double[])}.
+	 * Peaks do not move to another pixel, and are all valid.
+	 *
+	 * @param peaks
+	 *            the peaks to refine.
+	 * @param img
+	 *            the image in which they were found.
+	 * @param es
+	 *            the executor service that runs the tasks.
+	 * @param nTasks
+	 *            the number of tasks to use.
+	 * @return the refined peaks, in the order of the peaks.
+	 */
+	static < P extends Localizable, T extends RealType< T > > List< RefinedPeak< P > > parabolic(
+			final List< P > peaks,
+			final RandomAccessibleInterval< T > img,
+			final ExecutorService es,
+			final int nTasks ) throws InterruptedException, ExecutionException
+	{
+		final int n = img.numDimensions();
+		return inChunks( peaks, chunk -> {
+			final RandomAccess< T > ra = img.randomAccess();
+			final double[] fit = new double[ n + 1 ];
+			final List< RefinedPeak< P > > refined = new ArrayList<>( chunk.size() );
+			for ( final P peak : chunk )
+			{
+				SubpixelFit.parabolic( img, ra, peak, fit );
+				final RealPoint position = new RealPoint( Arrays.copyOf( fit, n ) );
+				refined.add( new RefinedPeak<>( peak, position, fit[ n ], true ) );
+			}
+			return refined;
+		}, es, nTasks );
+	}
+
+	/**
+	 * Applies a function to each element of a list, and returns the non-null
+	 * results, in the order of the list.
+	 *
+	 * @param elements
+	 *            the list.
+	 * @param function
+	 *            the function.
+	 * @param es
+	 *            the executor service that runs the tasks.
+	 * @param nTasks
+	 *            the number of tasks to use.
+	 * @return a new list.
+	 */
+	static < A, B > List< B > map(
+			final List< A > elements,
+			final Function< A, B > function,
+			final ExecutorService es,
+			final int nTasks ) throws InterruptedException, ExecutionException
+	{
+		return inChunks( elements, chunk -> {
+			final List< B > results = new ArrayList<>( chunk.size() );
+			for ( final A element : chunk )
+			{
+				final B result = function.apply( element );
+				if ( null != result )
+					results.add( result );
+			}
+			return results;
+		}, es, nTasks );
+	}
+
+	private static < A, B > List< B > inChunks(
+			final List< A > elements,
+			final Function< List< A >, List< B > > function,
+			final ExecutorService es,
+			final int nTasks ) throws InterruptedException, ExecutionException
+	{
+		final int size = elements.size();
+		final int nChunks = Math.max( 1, Math.min( nTasks * CHUNKS_PER_TASK, size / MIN_CHUNK_SIZE ) );
+		if ( nChunks == 1 )
+			return new ArrayList<>( function.apply( elements ) );
+
+		final List< Callable< List< B > > > tasks = new ArrayList<>( nChunks );
+		for ( int c = 0; c < nChunks; c++ )
+		{
+			final List< A > chunk = elements.subList(
+					( int ) ( ( long ) c * size / nChunks ),
+					( int ) ( ( long ) ( c + 1 ) * size / nChunks ) );
+			tasks.add( () -> function.apply( chunk ) );
+		}
+
+		final List< Future< List< B > > > futures = es.invokeAll( tasks );
+		final List< B > results = new ArrayList<>( size );
+		for ( final Future< List< B > > future : futures )
+			results.addAll( future.get() );
+		return results;
+	}
+}
@@ -0,0 +1,433 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner.hough;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.scijava.Cancelable;
+import org.scijava.app.StatusService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import net.imagej.ops.special.function.AbstractUnaryFunctionOp;
+import net.imglib2.Cursor;
+import net.imglib2.IterableInterval;
+import net.imglib2.RealPoint;
+import net.imglib2.type.BooleanType;
+
+/**
+ * Randomized Hough transform circle detector.
+ * <p>
+ * Instead of building the dense vote image, this detector repeatedly samples
+ * triplets of foreground pixels, computes the circle passing through them,
+ * and accumulates it in a sparse hash-based accumulator binned on the pixel
+ * grid. When a bin collects enough hits, the candidate circle is verified on
+ * the mask: we count the foreground pixels on its rasterized circle, which is
+ * exactly the vote it would have received in the standard Hough transform,
+ * so that sensitivity values have the same meaning. Verified circles are
+ * refined with {@link SubpixelFit} on the counts of their 3×3×3 neighborhood,
+ * and their crown pixels are removed from the pool of pixels we sample from.
+ * The accumulator is then cleared, so that bins filled by the pixels of this
+ * circle do not trigger it again. It is also cleared when it holds too many
+ * bins. Detected circles go through {@link NonMaximaSuppression}, like with
+ * the other detectors.
+ * <p>
+ * This is much faster than the standard transform when the mask contains few
+ * foreground pixels. The random generator is seeded, so results are
+ * reproducible. Sampling stops when there are less than 3 pixels left, after
+ * a max number of iterations, or after a number of consecutive iterations
+ * without any new detection.
+ *
+ * @author agent
+ */
+@Plugin( type = RandomizedHoughCircleDetectorOp.class )
+public class RandomizedHoughCircleDetectorOp< T extends BooleanType< T > >
+		extends AbstractUnaryFunctionOp< IterableInterval< T >, List< HoughCircle > >
+		implements Cancelable
+{
+
+	@Parameter
+	private StatusService statusService;
+
+	@Parameter( required = true, min = "1" )
+	private double circleThickness;
+
+	@Parameter( min = "1" )
+	private int minRadius = 1;
+
+	@Parameter( min = "1" )
+	private int maxRadius = 50;
+
+	@Parameter( required = false, min = "0.1" )
+	private double sensitivity = 20.;
+
+	/**
+	 * Seed of the random generator.
+	 */
+	@Parameter( required = false )
+	private long seed = 1l;
+
+	/**
+	 * Max number of triplets to sample.
+	 */
+	@Parameter( required = false, min = "1" )
+	private int maxIterations = 1000000;
+
+	/**
+	 * Sampling stops after this number of consecutive iterations that did not
+	 * yield a new detection.
+	 */
+	@Parameter( required = false, min = "1" )
+	private int convergenceIterations = 50000;
+
+	/**
+	 * Number of hits in an accumulator bin that triggers the verification of
+	 * the candidate circle.
+	 */
+	@Parameter( required = false, min = "1" )
+	private int accumulatorThreshold = 3;
+
+	/**
+	 * Max number of bins in the accumulator. It is cleared when a new bin
+	 * would exceed it.
+	 */
+	@Parameter( required = false, min = "1" )
+	private int maxAccumulatorSize = 1 << 16;
+
+	@Override
+	public List< HoughCircle > calculate( final IterableInterval< T > input )
+	{
+		cancelReason = null;
+		final int numDimensions = input.numDimensions();
+		if ( numDimensions != 2 ) { throw new IllegalArgumentException(
+				"Cannot compute Hough transform non-2D images. Got " + numDimensions + "D image." ); }
+
+		maxRadius = Math.max( minRadius, maxRadius );
+		minRadius = Math.min( minRadius, maxRadius );
+		final int width = ( int ) input.dimension( 0 );
+		final int height = ( int ) input.dimension( 1 );
+
+		/*
+		 * Mask and pool of pixels to sample from, sorted by row.
+		 */
+
+		final BitSet mask = new BitSet( width * height );
+		final Cursor< T > cursor = input.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			if ( !cursor.get().get() )
+				continue;
+			final int x = cursor.getIntPosition( 0 );
+			final int y = cursor.getIntPosition( 1 );
+			mask.set( x + y * width );
+		}
+		final BitSet active = ( BitSet ) mask.clone();
+		int[][] pool = pool( active, width, height );
+
+		/*
+		 * Sample.
+		 */
+
+		final double threshold = 2. * Math.PI * minRadius * circleThickness / sensitivity;
+		final double maxDistance = 2. * maxRadius;
+		final Random random = new Random( seed );
+		final BinCounter accumulator = new BinCounter( maxAccumulatorSize );
+		final double[] neighborhood = new double[ 27 ];
+		final double[] refined = new double[ 4 ];
+		final List< HoughCircle > circles = new ArrayList<>();
+		int nRemoved = 0;
+		int sinceLastDetection = 0;
+		for ( int iteration = 0; iteration < maxIterations && sinceLastDetection < convergenceIterations; iteration++ )
+		{
+			final int[] xs = pool[ 0 ];
+			final int[] ys = pool[ 1 ];
+			if ( xs.length - nRemoved < 3 )
+				break;
+
+			if ( ( iteration & 0xffff ) == 0 )
+			{
+				statusService.showProgress( iteration, maxIterations );
+				if ( isCanceled() )
+					return Collections.emptyList();
+			}
+
+			sinceLastDetection++;
+
+			// First point anywhere, the two others close enough to it.
+			final int i1 = random.nextInt( xs.length );
+			final int i2 = sampleNear( xs, ys, i1, maxDistance, random );
+			final int i3 = sampleNear( xs, ys, i1, maxDistance, random );
+			if ( i2 < 0 || i3 < 0 || i2 == i3 )
+				continue;
+			if ( !active.get( xs[ i1 ] + ys[ i1 ] * width )
+					|| !active.get( xs[ i2 ] + ys[ i2 ] * width )
+					|| !active.get( xs[ i3 ] + ys[ i3 ] * width ) )
+				continue;
+
+			// Circumscribed circle.
+			final double x1 = xs[ i1 ], y1 = ys[ i1 ];
+			final double x2 = xs[ i2 ], y2 = ys[ i2 ];
+			final double x3 = xs[ i3 ], y3 = ys[ i3 ];
+			final double d = 2. * ( x1 * ( y2 - y3 ) + x2 * ( y3 - y1 ) + x3 * ( y1 - y2 ) );
+			if ( Math.abs( d ) < 1e-6 )
+				continue;
+			final double s1 = x1 * x1 + y1 * y1;
+			final double s2 = x2 * x2 + y2 * y2;
+			final double s3 = x3 * x3 + y3 * y3;
+			final double cx = ( s1 * ( y2 - y3 ) + s2 * ( y3 - y1 ) + s3 * ( y1 - y2 ) ) / d;
+			final double cy = ( s1 * ( x3 - x2 ) + s2 * ( x1 - x3 ) + s3 * ( x2 - x1 ) ) / d;
+			final double r = Math.sqrt( ( x1 - cx ) * ( x1 - cx ) + ( y1 - cy ) * ( y1 - cy ) );
+
+			final int icx = ( int ) Math.round( cx );
+			final int icy = ( int ) Math.round( cy );
+			final int ir = ( int ) Math.round( r );
+			if ( ir < minRadius || ir > maxRadius || icx < 0 || icx >= width || icy < 0 || icy >= height )
+				continue;
+
+			// Accumulate.
+			final long key = ( ( long ) ir << 42 ) | ( ( long ) icy << 21 ) | icx;
+			final int count = accumulator.increment( key );
+			if ( count < accumulatorThreshold )
+				continue;
+			accumulator.remove( key );
+
+			/*
+			 * Verify: find the best vote around the candidate and check it
+			 * against the threshold.
+			 */
+
+			// Planes below radius 1 count as empty.
+			Arrays.fill( neighborhood, 0. );
+			int bestVotes = -1;
+			int bx = icx, by = icy, br = ir;
+			for ( int dr = -1; dr <= 1; dr++ )
+			{
+				if ( ir + dr < 1 )
+					continue;
+				final CircleStencil stencil = new CircleStencil( ir + dr );
+				for ( int dy = -1; dy <= 1; dy++ )
+					for ( int dx = -1; dx <= 1; dx++ )
+					{
+						final int votes = countVotes( mask, icx + dx, icy + dy, stencil, width, height );
+						neighborhood[ SubpixelFit.index( dx, dy, dr ) ] = votes;
+						if ( votes > bestVotes )
+						{
+							bestVotes = votes;
+							bx = icx + dx;
+							by = icy + dy;
+							br = ir + dr;
+						}
+					}
+			}
+			if ( bestVotes < threshold )
+				continue;
+
+			// Refine around the best position, if it is the center one.
+			if ( bx == icx && by == icy && br == ir )
+				SubpixelFit.quadratic( neighborhood, refined );
+			else
+			{
+				refined[ 0 ] = 0.;
+				refined[ 1 ] = 0.;
+				refined[ 2 ] = 0.;
+				refined[ 3 ] = bestVotes;
+			}
+			final double radius = br + refined[ 2 ];
+			final double ls = 2. * Math.PI * radius * circleThickness / refined[ 3 ];
+			if ( ls < 0 || ls > sensitivity )
+				continue;
+			final RealPoint center = new RealPoint( bx + refined[ 0 ], by + refined[ 1 ] );
+			circles.add( new HoughCircle( center, radius, circleThickness, ls ) );
+			sinceLastDetection = 0;
+			accumulator.clear();
+
+			/*
+			 * Remove the crown from the pool.
+			 */
+
+			nRemoved += removeCrown( active, center, radius, circleThickness, width, height );
+			if ( nRemoved > xs.length / 2 )
+			{
+				pool = pool( active, width, height );
+				nRemoved = 0;
+			}
+		}
+
+		/*
+		 * Non-maxima suppression. Crown removal does not prevent a circle
+		 * from being detected again from the pixels left around it.
+		 */
+
+		Collections.sort( circles );
+		return NonMaximaSuppression.suppress( circles,
+				c -> c.getDoublePosition( 0 ), c -> c.getDoublePosition( 1 ), c -> c.getRadius() );
+	}
+
+	/**
+	 * Returns the index of a random voter within the specified distance of
+	 * the voter at the specified index, or -1 if none was found after a few
+	 * attempts. Voters are sorted by row.
+	 */
+	private static final int sampleNear( final int[] xs, final int[] ys, final int index, final double maxDistance, final Random random )
+	{
+		final int x0 = xs[ index ];
+		final int y0 = ys[ index ];
+		final int start = lowerBound( ys, ( int ) Math.floor( y0 - maxDistance ) );
+		final int end = lowerBound( ys, ( int ) Math.ceil( y0 + maxDistance ) + 1 );
+		for ( int attempt = 0; attempt < 10; attempt++ )
+		{
+			final int i = start + random.nextInt( end - start );
+			if ( i == index )
+				continue;
+			final double dx = xs[ i ] - x0;
+			final double dy = ys[ i ] - y0;
+			if ( dx * dx + dy * dy <= maxDistance * maxDistance )
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Counts the foreground pixels on the specified stencil centered on the
+	 * specified position. This is the vote the Hough transform would give to
+	 * this position.
+	 */
+	private static final int countVotes( final BitSet mask, final int x0, final int y0, final CircleStencil stencil, final int width, final int height )
+	{
+		final int[] dx = stencil.getDx();
+		final int[] dy = stencil.getDy();
+		int votes = 0;
+		for ( int i = 0; i < dx.length; i++ )
+		{
+			final int x = x0 + dx[ i ];
+			final int y = y0 + dy[ i ];
+			if ( x < 0 || x >= width || y < 0 || y >= height )
+				continue;
+			if ( mask.get( x + y * width ) )
+				votes++;
+		}
+		return votes;
+	}
+
+	/**
+	 * Clears the pixels of the crown of the specified circle from the active
+	 * set, and returns how many were cleared.
+	 */
+	private static final int removeCrown( final BitSet active, final RealPoint center, final double radius, final double thickness, final int width, final int height )
+	{
+		final double cx = center.getDoublePosition( 0 );
+		final double cy = center.getDoublePosition( 1 );
+		final double rMin = Math.max( 0., radius - thickness / 2. );
+		final double rMax = radius + thickness / 2.;
+		final int yStart = Math.max( 0, ( int ) Math.floor( cy - rMax ) );
+		final int yEnd = Math.min( height - 1, ( int ) Math.ceil( cy + rMax ) );
+		final int xStart = Math.max( 0, ( int ) Math.floor( cx - rMax ) );
+		final int xEnd = Math.min( width - 1, ( int ) Math.ceil( cx + rMax ) );
+		int removed = 0;
+		for ( int y = yStart; y <= yEnd; y++ )
+		{
+			for ( int x = xStart; x <= xEnd; x++ )
+			{
+				final double r2 = ( x - cx ) * ( x - cx ) + ( y - cy ) * ( y - cy );
+				if ( r2 < rMin * rMin || r2 > rMax * rMax )
+					continue;
+				final int index = x + y * width;
+				if ( active.get( index ) )
+				{
+					active.clear( index );
+					removed++;
+				}
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Builds the X and Y positions of the active pixels, sorted by row.
+	 */
+	private static final int[][] pool( final BitSet active, final int width, final int height )
+	{
+		final int n = active.cardinality();
+		final int[] xs = new int[ n ];
+		final int[] ys = new int[ n ];
+		int i = 0;
+		for ( int index = active.nextSetBit( 0 ); index >= 0; index = active.nextSetBit( index + 1 ) )
+		{
+			xs[ i ] = index % width;
+			ys[ i ] = index / width;
+			i++;
+		}
+		return new int[][] { xs, ys };
+	}
+
+	private static final int lowerBound( final int[] sorted, final int value )
+	{
+		int lo = 0;
+		int hi = sorted.length;
+		while ( lo < hi )
+		{
+			final int m = ( lo + hi ) >>> 1;
+			if ( sorted[ m ] < value )
+				lo = m + 1;
+			else
+				hi = m;
+		}
+		return lo;
+	}
+
+	// -- Cancelable methods --
+
+	/** Reason for cancelation, or null if not canceled. */
+	private String cancelReason;
+
+	@Override
+	public boolean isCanceled()
+	{
+		return cancelReason != null;
+	}
+
+	/** Cancels the command execution, with the given reason for doing so. */
+	@Override
+	public void cancel( final String reason )
+	{
+		cancelReason = reason == null ? "" : reason;
+	}
+
+	@Override
+	public String getCancelReason()
+	{
+		return cancelReason;
+	}
+}
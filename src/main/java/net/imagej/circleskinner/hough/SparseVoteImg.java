@@ -0,0 +1,282 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner.hough;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.cell.LazyCellImg;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Intervals;
+
+/**
+ * A vote image made of tiles that are only allocated when they receive their
+ * first vote.
+ * <p>
+ * Tiles are {@value #TILE_SIZE} x {@value #TILE_SIZE} pixels large, and one
+ * radius plane deep, and are stored as primitive <code>int</code> arrays in a
+ * tile directory. Since the Hough transform writes each radius plane from one
+ * thread only, tiles are never allocated concurrently.
+ * <p>
+ * Once voting is over, the image must be frozen with {@link #freeze()}.
+ * Unallocated tiles are then seen as read-only zero tiles, and detectors can
+ * skip them by only iterating over {@link #getAllocatedTiles()}. Memory then
+ * scales with the extent of the foreground instead of with the image size.
+ *
+ * @author agent
+ */
+public class SparseVoteImg extends LazyCellImg< IntType, IntArray >
+{
+
+	public static final int TILE_SIZE = 64;
+
+	private static final int TILE_SHIFT = 6;
+
+	private static final int TILE_MASK = TILE_SIZE - 1;
+
+	private final TileDirectory directory;
+
+	public SparseVoteImg( final long width, final long height, final long nPlanes )
+	{
+		this( new CellGrid( new long[] { width, height, nPlanes }, new int[] { TILE_SIZE, TILE_SIZE, 1 } ) );
+	}
+
+	private SparseVoteImg( final CellGrid grid )
+	{
+		this( grid, new TileDirectory( grid ) );
+	}
+
+	private SparseVoteImg( final CellGrid grid, final TileDirectory directory )
+	{
+		super( grid, new IntType(), directory );
+		this.directory = directory;
+	}
+
+	/**
+	 * Adds one vote to all the pixels of the specified stencil centered on the
+	 * specified position, in the specified radius plane. Votes falling outside
+	 * of the plane are discarded.
+	 *
+	 * @param stencil
+	 *            the circle stencil.
+	 * @param x0
+	 *            the X position of the voter.
+	 * @param y0
+	 *            the Y position of the voter.
+	 * @param plane
+	 *            the index of the radius plane.
+	 */
+	public void vote( final CircleStencil stencil, final int x0, final int y0, final int plane )
+	{
+		final int[] dx = stencil.getDx();
+		final int[] dy = stencil.getDy();
+		final int width = directory.width;
+		final int height = directory.height;
+		int lastIndex = -1;
+		int[] tile = null;
+		int tileWidth = 0;
+		for ( int i = 0; i < dx.length; i++ )
+		{
+			final int x = x0 + dx[ i ];
+			final int y = y0 + dy[ i ];
+			if ( x < 0 || x >= width || y < 0 || y >= height )
+				continue;
+
+			final int tx = x >> TILE_SHIFT;
+			final int index = directory.tileIndex( tx, y >> TILE_SHIFT, plane );
+			if ( index != lastIndex )
+			{
+				tile = directory.getOrCreateTile( index );
+				tileWidth = directory.tileWidth( tx );
+				lastIndex = index;
+			}
+			tile[ ( x & TILE_MASK ) + ( y & TILE_MASK ) * tileWidth ]++;
+		}
+	}
+
+	/**
+	 * Freezes this image. Tiles that were not allocated yet will not be
+	 * allocated anymore, and are seen as zero tiles, that must not be written
+	 * to.
+	 */
+	public void freeze()
+	{
+		directory.frozen = true;
+	}
+
+	/**
+	 * Returns the number of tiles allocated so far.
+	 *
+	 * @return the number of allocated tiles.
+	 */
+	public int getNAllocatedTiles()
+	{
+		int n = 0;
+		for ( final int[] tile : directory.tiles )
+			if ( null != tile )
+				n++;
+		return n;
+	}
+
+	/**
+	 * Returns the intervals of the allocated tiles, in tile order.
+	 *
+	 * @return a new list of intervals.
+	 */
+	public List< Interval > getAllocatedTiles()
+	{
+		final List< Interval > intervals = new ArrayList<>();
+		final long[] min = new long[ 3 ];
+		final int[] dims = new int[ 3 ];
+		for ( int index = 0; index < directory.tiles.length; index++ )
+		{
+			if ( null == directory.tiles[ index ] )
+				continue;
+			getCellGrid().getCellDimensions( index, min, dims );
+			final long[] max = new long[ 3 ];
+			for ( int d = 0; d < 3; d++ )
+				max[ d ] = min[ d ] + dims[ d ] - 1;
+			intervals.add( new FinalInterval( min, max ) );
+		}
+		return intervals;
+	}
+
+	/**
+	 * Returns the bounding box of the allocated tiles.
+	 *
+	 * @return the bounding box, or <code>null</code> if no tile is allocated.
+	 */
+	public Interval getAllocatedBounds()
+	{
+		Interval bounds = null;
+		for ( final Interval tile : getAllocatedTiles() )
+			bounds = ( null == bounds ) ? tile : Intervals.union( bounds, tile );
+		return bounds;
+	}
+
+	@Override
+	public ImgFactory< IntType > factory()
+	{
+		return new CellImgFactory<>( new IntType(), TILE_SIZE, TILE_SIZE, 1 );
+	}
+
+	/**
+	 * The tile directory, which also gives the cells of the image.
+	 */
+	private static final class TileDirectory implements LazyCellImg.Get< Cell< IntArray > >
+	{
+
+		private final CellGrid grid;
+
+		private final int width;
+
+		private final int height;
+
+		private final int nTilesX;
+
+		private final int nTilesY;
+
+		private final int[][] tiles;
+
+		private final Cell< IntArray >[] cells;
+
+		/**
+		 * Shared data of the unallocated tiles, once frozen.
+		 */
+		private final IntArray zeros = new IntArray( TILE_SIZE * TILE_SIZE );
+
+		private volatile boolean frozen = false;
+
+		@SuppressWarnings( "unchecked" )
+		private TileDirectory( final CellGrid grid )
+		{
+			this.grid = grid;
+			this.width = ( int ) grid.imgDimension( 0 );
+			this.height = ( int ) grid.imgDimension( 1 );
+			final long[] gridDims = grid.getGridDimensions();
+			this.nTilesX = ( int ) gridDims[ 0 ];
+			this.nTilesY = ( int ) gridDims[ 1 ];
+			final int nTiles = ( int ) ( gridDims[ 0 ] * gridDims[ 1 ] * gridDims[ 2 ] );
+			this.tiles = new int[ nTiles ][];
+			this.cells = new Cell[ nTiles ];
+		}
+
+		private int tileIndex( final int tx, final int ty, final int plane )
+		{
+			return tx + nTilesX * ( ty + nTilesY * plane );
+		}
+
+		private int tileWidth( final int tx )
+		{
+			return Math.min( TILE_SIZE, width - tx * TILE_SIZE );
+		}
+
+		private int[] getOrCreateTile( final int index )
+		{
+			if ( null == tiles[ index ] )
+				createCell( index, true );
+			return tiles[ index ];
+		}
+
+		private Cell< IntArray > createCell( final int index, final boolean allocate )
+		{
+			final long[] min = new long[ 3 ];
+			final int[] dims = new int[ 3 ];
+			grid.getCellDimensions( index, min, dims );
+			final Cell< IntArray > cell;
+			if ( allocate )
+			{
+				tiles[ index ] = new int[ dims[ 0 ] * dims[ 1 ] ];
+				cell = new Cell<>( dims, min, new IntArray( tiles[ index ] ) );
+			}
+			else
+			{
+				cell = new Cell<>( dims, min, zeros );
+			}
+			cells[ index ] = cell;
+			return cell;
+		}
+
+		@Override
+		public Cell< IntArray > get( final long index )
+		{
+			final Cell< IntArray > cell = cells[ ( int ) index ];
+			if ( null != cell )
+				return cell;
+			return createCell( ( int ) index, !frozen );
+		}
+	}
+}
@@ -0,0 +1,283 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner.hough;
+
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Closed-form subpixel refinement of a local maximum of the vote image, from
+ * the values of its 3×3×3 neighborhood only. This is what we use when the
+ * whole vote image is not available for
+ * {@link net.imglib2.algorithm.localextrema.SubpixelLocalization}.
+ *
+ * @author agent
+ */
+public final class SubpixelFit
+{
+
+	private SubpixelFit()
+	{}
+
+	/**
+	 * Returns the index of a pixel in a 3×3×3 neighborhood array, stored with
+	 * X varying fastest, then Y, then Z.
+	 *
+	 * @param dx
+	 *            the X offset from the center, in -1, 0, 1.
+	 * @param dy
+	 *            the Y offset from the center, in -1, 0, 1.
+	 * @param dz
+	 *            the Z offset from the center, in -1, 0, 1.
+	 * @return the index in the neighborhood array.
+	 */
+	public static int index( final int dx, final int dy, final int dz )
+	{
+		return ( dx + 1 ) + 3 * ( dy + 1 ) + 9 * ( dz + 1 );
+	}
+
+	/**
+	 * Fits a quadratic function to the 3×3×3 neighborhood of a local maximum,
+	 * using finite differences for the gradient and the Hessian, and moves to
+	 * its extremum with a single Newton step. This is the same step that
+	 * {@link net.imglib2.algorithm.localextrema.SubpixelLocalization} takes,
+	 * but since we cannot move to another pixel, the fit is rejected if the
+	 * extremum is more than half a pixel away from the center.
+	 *
+	 * @param n
+	 *            the 27 values of the neighborhood, ordered as in
+	 *            {@link #index(int, int, int)}.
+	 * @param out
+	 *            an array of at least 4 elements, in which the X, Y and Z
+	 *            offsets of the extremum and its interpolated value are
+	 *            written. If the fit is rejected, the offsets are 0 and the
+	 *            value is the center value.
+	 * @return <code>true</code> if the fit was accepted.
+	 */
+	public static boolean quadratic( final double[] n, final double[] out )
+	{
+		final double c = n[ 13 ];
+		out[ 0 ] = 0.;
+		out[ 1 ] = 0.;
+		out[ 2 ] = 0.;
+		out[ 3 ] = c;
+
+		final double gx = 0.5 * ( n[ index( 1, 0, 0 ) ] - n[ index( -1, 0, 0 ) ] );
+		final double gy = 0.5 * ( n[ index( 0, 1, 0 ) ] - n[ index( 0, -1, 0 ) ] );
+		final double gz = 0.5 * ( n[ index( 0, 0, 1 ) ] - n[ index( 0, 0, -1 ) ] );
+
+		final double hxx = n[ index( 1, 0, 0 ) ] - 2. * c + n[ index( -1, 0, 0 ) ];
+		final double hyy = n[ index( 0, 1, 0 ) ] - 2. * c + n[ index( 0, -1, 0 ) ];
+		final double hzz = n[ index( 0, 0, 1 ) ] - 2. * c + n[ index( 0, 0, -1 ) ];
+		final double hxy = 0.25 * ( n[ index( 1, 1, 0 ) ] - n[ index( 1, -1, 0 ) ] - n[ index( -1, 1, 0 ) ] + n[ index( -1, -1, 0 ) ] );
+		final double hxz = 0.25 * ( n[ index( 1, 0, 1 ) ] - n[ index( 1, 0, -1 ) ] - n[ index( -1, 0, 1 ) ] + n[ index( -1, 0, -1 ) ] );
+		final double hyz = 0.25 * ( n[ index( 0, 1, 1 ) ] - n[ index( 0, 1, -1 ) ] - n[ index( 0, -1, 1 ) ] + n[ index( 0, -1, -1 ) ] );
+
+		// Inverse of the symmetric Hessian from its adjugate.
+		final double a00 = hyy * hzz - hyz * hyz;
+		final double a01 = hxz * hyz - hxy * hzz;
+		final double a02 = hxy * hyz - hxz * hyy;
+		final double a11 = hxx * hzz - hxz * hxz;
+		final double a12 = hxy * hxz - hxx * hyz;
+		final double a22 = hxx * hyy - hxy * hxy;
+		final double det = hxx * a00 + hxy * a01 + hxz * a02;
+		if ( det == 0. )
+			return false;
+
+		final double ox = -( a00 * gx + a01 * gy + a02 * gz ) / det;
+		final double oy = -( a01 * gx + a11 * gy + a12 * gz ) / det;
+		final double oz = -( a02 * gx + a12 * gy + a22 * gz ) / det;
+		if ( Math.abs( ox ) > 0.5 || Math.abs( oy ) > 0.5 || Math.abs( oz ) > 0.5 )
+			return false;
+
+		out[ 0 ] = ox;
+		out[ 1 ] = oy;
+		out[ 2 ] = oz;
+		out[ 3 ] = c + 0.5 * ( gx * ox + gy * oy + gz * oz );
+		return true;
+	}
+
+	/**
+	 * Returns the offset of the vertex of the parabola through three
+	 * consecutive values from the center one. This is the separable version
+	 * of {@link #quadratic(double[], double[])}, which ignores the cross
+	 * terms of the Hessian and does not need to invert it.
+	 *
+	 * @param below
+	 *            the value before the center.
+	 * @param center
+	 *            the center value.
+	 * @param above
+	 *            the value after the center.
+	 * @return the offset from the center, between -0.5 and 0.5, or 0 if the
+	 *         parabola is not concave.
+	 */
+	public static double parabolic( final double below, final double center, final double above )
+	{
+		final double curvature = below - 2. * center + above;
+		if ( curvature >= 0. )
+			return 0.;
+		final double offset = 0.5 * ( below - above ) / curvature;
+		return Math.max( -0.5, Math.min( 0.5, offset ) );
+	}
+
+	/**
+	 * Refines a local maximum from its 3×3×3 neighborhood with
+	 * {@link #parabolic(double, double, double)} along each dimension. This is
+	 * cheaper than {@link #quadratic(double[], double[])}, and never rejected.
+	 *
+	 * @param n
+	 *            the 27 values of the neighborhood, ordered as in
+	 *            {@link #index(int, int, int)}.
+	 * @param out
+	 *            an array of at least 4 elements, in which the X, Y and Z
+	 *            offsets of the maximum and its interpolated value are
+	 *            written.
+	 */
+	public static void parabolic( final double[] n, final double[] out )
+	{
+		final double c = n[ 13 ];
+		double value = c;
+		for ( int d = 0; d < 3; d++ )
+		{
+			final double below = n[ index( d == 0 ? -1 : 0, d == 1 ? -1 : 0, d == 2 ? -1 : 0 ) ];
+			final double above = n[ index( d == 0 ? 1 : 0, d == 1 ? 1 : 0, d == 2 ? 1 : 0 ) ];
+			out[ d ] = parabolic( below, c, above );
+			value += 0.25 * ( above - below ) * out[ d ];
+		}
+		out[ 3 ] = value;
+	}
+
+	/**
+	 * Refines the position of a local maximum of an image with
+	 * {@link #parabolic(double, double, double)} along each dimension. Along
+	 * dimensions where the maximum is on the border of the image, the offset
+	 * is 0.
+	 *
+	 * @param img
+	 *            the image.
+	 * @param ra
+	 *            a random access on the image, used to read the values.
+	 * @param peak
+	 *            the position of the maximum.
+	 * @param out
+	 *            an array of at least <code>n + 1</code> elements, in which
+	 *            the <code>n</code> refined coordinates and the interpolated
+	 *            value are written.
+	 */
+	public static < T extends RealType< T > > void parabolic( final RandomAccessibleInterval< T > img, final RandomAccess< T > ra, final Localizable peak, final double[] out )
+	{
+		final int n = img.numDimensions();
+		ra.setPosition( peak );
+		final double center = ra.get().getRealDouble();
+		double value = center;
+		for ( int d = 0; d < n; d++ )
+		{
+			final long p = peak.getLongPosition( d );
+			out[ d ] = p;
+			if ( p <= img.min( d ) || p >= img.max( d ) )
+				continue;
+
+			ra.setPosition( p - 1, d );
+			final double below = ra.get().getRealDouble();
+			ra.setPosition( p + 1, d );
+			final double above = ra.get().getRealDouble();
+			ra.setPosition( p, d );
+
+			final double offset = parabolic( below, center, above );
+			out[ d ] += offset;
+			value += 0.25 * ( above - below ) * offset;
+		}
+		out[ n ] = value;
+	}
+
+	/**
+	 * Returns the offset of the radius of a circle from its radius plane, for
+	 * vote images computed with a {@link FractionalCircleStencil}.
+	 * <p>
+	 * There, each vote is split between two neighbor planes in proportion to
+	 * their distance to the vote radius, so the centroid of the votes along the
+	 * radius is the mean radius of the voters. The centroid of the three
+	 * planes around a maximum is therefore the matching estimator. A parabola
+	 * fitted through these values is biased towards the center plane, since
+	 * the radius profile of a thin ring is a triangle one plane wide.
+	 *
+	 * @param below
+	 *            the votes in the plane below the maximum.
+	 * @param center
+	 *            the votes in the plane of the maximum.
+	 * @param above
+	 *            the votes in the plane above the maximum.
+	 * @return the offset from the center plane, in planes, between -0.5 and
+	 *         0.5.
+	 */
+	public static double twoBinOffset( final double below, final double center, final double above )
+	{
+		final double sum = below + center + above;
+		if ( sum <= 0. )
+			return 0.;
+		final double offset = ( above - below ) / sum;
+		return Math.max( -0.5, Math.min( 0.5, offset ) );
+	}
+
+	/**
+	 * Returns {@link #twoBinOffset(double, double, double)} for the maximum at
+	 * the specified position of a vote image, whose last dimension is the
+	 * radius. Planes outside of the vote image count as empty.
+	 *
+	 * @param votes
+	 *            the vote image.
+	 * @param peak
+	 *            the position of the maximum.
+	 * @return the offset from the plane of the maximum, in planes.
+	 */
+	public static < T extends RealType< T > > double twoBinOffset( final RandomAccessibleInterval< T > votes, final Localizable peak )
+	{
+		final int rd = votes.numDimensions() - 1;
+		final long z = peak.getLongPosition( rd );
+		final RandomAccess< T > ra = votes.randomAccess();
+		ra.setPosition( peak );
+		final double center = ra.get().getRealDouble();
+		double below = 0.;
+		if ( z > votes.min( rd ) )
+		{
+			ra.setPosition( z - 1, rd );
+			below = ra.get().getRealDouble();
+		}
+		double above = 0.;
+		if ( z < votes.max( rd ) )
+		{
+			ra.setPosition( z + 1, rd );
+			above = ra.get().getRealDouble();
+		}
+		return twoBinOffset( below, center, above );
+	}
+}
@@ -0,0 +1,214 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner.hough;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * The maximum of a vote image over each of its tiles, so that detectors can
+ * skip the tiles in which no voxel reaches their threshold.
+ * <p>
+ * Tiles are {@value #TILE_SIZE} × {@value #TILE_SIZE} pixels, one radius
+ * plane deep. The maxima are computed in a single reduction pass over the
+ * vote image, with radius planes distributed to the tasks in an interleaved
+ * manner, so that each task writes its own maxima.
+ *
+ * @author agent
+ */
+public final class TileMaxima
+{
+
+	/**
+	 * The size of the tiles along X and Y.
+	 */
+	public static final int TILE_SIZE = 32;
+
+	private final Interval interval;
+
+	private final int nx;
+
+	private final int ny;
+
+	/**
+	 * The tile maxima, stored with X varying fastest, then Y, then the
+	 * radius.
+	 */
+	private final double[] maxima;
+
+	private TileMaxima( final Interval interval, final double[] maxima, final int nx, final int ny )
+	{
+		this.interval = interval;
+		this.maxima = maxima;
+		this.nx = nx;
+		this.ny = ny;
+	}
+
+	/**
+	 * Computes the tile maxima of the specified 3D vote image.
+	 *
+	 * @param votes
+	 *            the vote image, with the radius as last dimension.
+	 * @param es
+	 *            the executor service that runs the tasks.
+	 * @param numThreads
+	 *            the number of tasks to use.
+	 * @return the tile maxima.
+	 */
+	public static < T extends RealType< T > > TileMaxima compute( final RandomAccessibleInterval< T > votes, final ExecutorService es, final int numThreads )
+	{
+		final int width = ( int ) votes.dimension( 0 );
+		final int height = ( int ) votes.dimension( 1 );
+		final int nx = ( width + TILE_SIZE - 1 ) / TILE_SIZE;
+		final int ny = ( height + TILE_SIZE - 1 ) / TILE_SIZE;
+		final int nz = ( int ) votes.dimension( 2 );
+		final double[] maxima = new double[ nx * ny * nz ];
+		Arrays.fill( maxima, Double.NEGATIVE_INFINITY );
+
+		final int nTasks = Math.max( 1, Math.min( numThreads, nz ) );
+		final List< Callable< Void > > tasks = new ArrayList<>( nTasks );
+		for ( int t = 0; t < nTasks; t++ )
+		{
+			final int firstPlane = t;
+			tasks.add( () -> {
+				for ( int z = firstPlane; z < nz; z += nTasks )
+				{
+					final int planeOffset = z * nx * ny;
+					final Cursor< T > cursor = Views.flatIterable( Views.hyperSlice( votes, 2, votes.min( 2 ) + z ) ).cursor();
+					for ( int y = 0; y < height; y++ )
+					{
+						final int rowOffset = planeOffset + ( y / TILE_SIZE ) * nx;
+						for ( int x = 0; x < width; x++ )
+						{
+							final double val = cursor.next().getRealDouble();
+							final int index = rowOffset + x / TILE_SIZE;
+							if ( val > maxima[ index ] )
+								maxima[ index ] = val;
+						}
+					}
+				}
+				return null;
+			} );
+		}
+
+		try
+		{
+			final List< Future< Void > > futures = es.invokeAll( tasks );
+			for ( final Future< Void > future : futures )
+				future.get();
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			e.printStackTrace();
+		}
+		return new TileMaxima( new FinalInterval( votes ), maxima, nx, ny );
+	}
+
+	/**
+	 * Returns the tiles whose maximum is larger than or equal to the
+	 * specified threshold, in tile order.
+	 *
+	 * @param threshold
+	 *            the threshold.
+	 * @return the list of tile intervals, in the coordinates of the vote
+	 *         image.
+	 */
+	public List< Interval > getTilesAbove( final double threshold )
+	{
+		final List< Interval > tiles = new ArrayList<>();
+		for ( int i = 0; i < maxima.length; i++ )
+			if ( maxima[ i ] >= threshold )
+				tiles.add( getTile( i ) );
+		return tiles;
+	}
+
+	/**
+	 * Returns the bounding box of the tiles whose maximum is larger than or
+	 * equal to the specified threshold.
+	 *
+	 * @param threshold
+	 *            the threshold.
+	 * @return the bounding box, or <code>null</code> if no tile reaches the
+	 *         threshold.
+	 */
+	public Interval getBoundsAbove( final double threshold )
+	{
+		final long[] min = new long[] { Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE };
+		final long[] max = new long[] { Long.MIN_VALUE, Long.MIN_VALUE, Long.MIN_VALUE };
+		boolean found = false;
+		for ( int i = 0; i < maxima.length; i++ )
+		{
+			if ( maxima[ i ] < threshold )
+				continue;
+			found = true;
+			final Interval tile = getTile( i );
+			for ( int d = 0; d < 3; d++ )
+			{
+				min[ d ] = Math.min( min[ d ], tile.min( d ) );
+				max[ d ] = Math.max( max[ d ], tile.max( d ) );
+			}
+		}
+		return found ? new FinalInterval( min, max ) : null;
+	}
+
+	/**
+	 * Returns the number of tiles.
+	 *
+	 * @return the number of tiles.
+	 */
+	public int size()
+	{
+		return maxima.length;
+	}
+
+	private Interval getTile( final int index )
+	{
+		final int tx = index % nx;
+		final int ty = ( index / nx ) % ny;
+		final int z = index / ( nx * ny );
+		final long x0 = interval.min( 0 ) + ( long ) tx * TILE_SIZE;
+		final long y0 = interval.min( 1 ) + ( long ) ty * TILE_SIZE;
+		final long zz = interval.min( 2 ) + z;
+		return new FinalInterval(
+				new long[] { x0, y0, zz },
+				new long[] { Math.min( x0 + TILE_SIZE - 1, interval.max( 0 ) ), Math.min( y0 + TILE_SIZE - 1, interval.max( 1 ) ), zz } );
+	}
+}
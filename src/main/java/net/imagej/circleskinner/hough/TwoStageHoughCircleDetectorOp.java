@@ -0,0 +1,444 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner.hough;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.scijava.Cancelable;
+import org.scijava.app.StatusService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.thread.ThreadService;
+
+import ij.Prefs;
+import net.imagej.ops.special.function.AbstractUnaryFunctionOp;
+import net.imglib2.Cursor;
+import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealPoint;
+import net.imglib2.type.BooleanType;
+import net.imglib2.type.numeric.real.DoubleType;
+
+/**
+ * Two-stage (2-1) Hough transform circle detector.
+ * <p>
+ * Circle centers are first accumulated in a single 2D image: each foreground
+ * pixel votes along its ridge normal, on both sides, for all the radiuses of
+ * the range at once. Center candidates are the local maxima of the 3×3 sums
+ * of this accumulator. In a second stage, the radius of each candidate is
+ * found from the histogram of the distances between the candidate center and
+ * the foreground pixels. A bin of this histogram counts the pixels on the
+ * circle of this radius, which is exactly the vote the circle would receive
+ * in the standard Hough transform, so that sensitivity values have the same
+ * meaning.
+ * <p>
+ * Memory scales with the image area only, and the radius resolution is 1
+ * pixel whatever the radius step.
+ *
+ * @author agent
+ */
+@Plugin( type = TwoStageHoughCircleDetectorOp.class )
+public class TwoStageHoughCircleDetectorOp< T extends BooleanType< T > >
+		extends AbstractUnaryFunctionOp< IterableInterval< T >, List< HoughCircle > >
+		implements Cancelable
+{
+
+	@Parameter
+	private StatusService statusService;
+
+	@Parameter
+	private ThreadService threadService;
+
+	@Parameter( required = true, min = "1" )
+	private double circleThickness;
+
+	@Parameter( min = "1" )
+	private int minRadius = 1;
+
+	@Parameter( min = "1" )
+	private int maxRadius = 50;
+
+	@Parameter( required = false, min = "0.1" )
+	private double sensitivity = 20.;
+
+	/**
+	 * The angle of the ridge normal at each pixel, in radians, as computed by
+	 * {@link net.imagej.circleskinner.TubenessOp#getRidgeNormals()}.
+	 */
+	@Parameter
+	private RandomAccessibleInterval< DoubleType > normals;
+
+	@Parameter( required = false, min = "1" )
+	private int numThreads = Prefs.getThreads();
+
+	@Override
+	public List< HoughCircle > calculate( final IterableInterval< T > input )
+	{
+		cancelReason = null;
+		final int numDimensions = input.numDimensions();
+		if ( numDimensions != 2 ) { throw new IllegalArgumentException(
+				"Cannot compute Hough transform non-2D images. Got " + numDimensions + "D image." ); }
+		if ( null == normals ) { throw new IllegalArgumentException(
+				"The two-stage Hough transform needs the ridge normals." ); }
+
+		maxRadius = Math.max( minRadius, maxRadius );
+		minRadius = Math.min( minRadius, maxRadius );
+		final int width = ( int ) input.dimension( 0 );
+		final int height = ( int ) input.dimension( 1 );
+
+		/*
+		 * Voters sorted by row then by X, with their normal.
+		 */
+
+		final int[] rowCounts = new int[ height + 1 ];
+		final Cursor< T > cursor = input.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			if ( cursor.get().get() )
+				rowCounts[ cursor.getIntPosition( 1 ) + 1 ]++;
+		}
+		for ( int y = 1; y <= height; y++ )
+			rowCounts[ y ] += rowCounts[ y - 1 ];
+
+		final int nVoters = rowCounts[ height ];
+		final int[] rowStarts = rowCounts.clone();
+		final int[] xs = new int[ nVoters ];
+		final int[] ys = new int[ nVoters ];
+		cursor.reset();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			if ( !cursor.get().get() )
+				continue;
+			final int y = cursor.getIntPosition( 1 );
+			final int i = rowCounts[ y ]++;
+			xs[ i ] = cursor.getIntPosition( 0 );
+			ys[ i ] = y;
+		}
+		// Not all images iterate in raster order.
+		for ( int y = 0; y < height; y++ )
+			Arrays.sort( xs, rowStarts[ y ], rowStarts[ y + 1 ] );
+
+		final double[] thetas = new double[ nVoters ];
+		final RandomAccess< DoubleType > nra = normals.randomAccess();
+		for ( int i = 0; i < nVoters; i++ )
+		{
+			nra.setPosition( xs[ i ], 0 );
+			nra.setPosition( ys[ i ], 1 );
+			thetas[ i ] = nra.get().get();
+		}
+
+		/*
+		 * Stage 1: center accumulation, in a single accumulator. Each task
+		 * only writes in its own stripe of rows, with the votes of the voters
+		 * close enough to reach it, so the result does not depend on the
+		 * number of threads. Stripes are at least as high as the vote range,
+		 * so that each voter is processed by at most 3 tasks.
+		 */
+
+		statusService.showStatus( "Accumulating circle centers..." );
+
+		final int[] acc = new int[ width * height ];
+		final int nTasks = Math.max( 1, Math.min( numThreads, height / ( 2 * maxRadius + 1 ) ) );
+		final List< Callable< Void > > voteTasks = new ArrayList<>( nTasks );
+		for ( int t = 0; t < nTasks; t++ )
+		{
+			final int rowMin = ( int ) ( ( long ) t * height / nTasks );
+			final int rowMax = ( int ) ( ( long ) ( t + 1 ) * height / nTasks );
+			final int start = rowStarts[ Math.max( 0, rowMin - maxRadius ) ];
+			final int end = rowStarts[ Math.min( height, rowMax + maxRadius ) ];
+			voteTasks.add( () -> {
+				for ( int v = start; v < end; v++ )
+				{
+					voteAlongNormal( xs[ v ], ys[ v ], thetas[ v ], acc, width, rowMin, rowMax );
+					if ( isCanceled() )
+						return null;
+				}
+				return null;
+			} );
+		}
+		runAll( voteTasks );
+		if ( isCanceled() )
+			return Collections.emptyList();
+
+		/*
+		 * Center candidates: local maxima of the 3x3 sums, which absorb the
+		 * rasterization of the normal lines. On a plateau, only the first
+		 * pixel in raster order is a candidate.
+		 */
+
+		final int[] score = new int[ width * height ];
+		for ( int y = 1; y < height - 1; y++ )
+			for ( int x = 1; x < width - 1; x++ )
+			{
+				int sum = 0;
+				for ( int dy = -1; dy <= 1; dy++ )
+				{
+					final int row = ( y + dy ) * width + x;
+					sum += acc[ row - 1 ] + acc[ row ] + acc[ row + 1 ];
+				}
+				score[ x + y * width ] = sum;
+			}
+
+		final double threshold = 2. * Math.PI * minRadius * circleThickness / sensitivity;
+		final List< double[] > centers = new ArrayList<>();
+		for ( int y = 2; y < height - 2; y++ )
+			NEXT_PIXEL: for ( int x = 2; x < width - 2; x++ )
+			{
+				final int index = x + y * width;
+				final int c = score[ index ];
+				if ( c < threshold )
+					continue;
+				for ( int dy = -1; dy <= 1; dy++ )
+					for ( int dx = -1; dx <= 1; dx++ )
+					{
+						final int neighbor = index + dx + dy * width;
+						if ( score[ neighbor ] > c || ( score[ neighbor ] == c && neighbor < index ) )
+							continue NEXT_PIXEL;
+					}
+
+				final double ox = parabolicOffset( score[ index - 1 ], c, score[ index + 1 ] );
+				final double oy = parabolicOffset( score[ index - width ], c, score[ index + width ] );
+				centers.add( new double[] { x + ox, y + oy } );
+			}
+
+		if ( isCanceled() )
+			return Collections.emptyList();
+
+		/*
+		 * Stage 2: radius histogram of each candidate.
+		 */
+
+		statusService.showStatus( "Estimating circle radiuses..." );
+
+		final int nCenterTasks = Math.max( 1, Math.min( numThreads, centers.size() ) );
+		final List< Callable< List< HoughCircle > > > radiusTasks = new ArrayList<>( nCenterTasks );
+		for ( int t = 0; t < nCenterTasks; t++ )
+		{
+			final int start = ( int ) ( ( long ) t * centers.size() / nCenterTasks );
+			final int end = ( int ) ( ( long ) ( t + 1 ) * centers.size() / nCenterTasks );
+			radiusTasks.add( () -> {
+				final List< HoughCircle > found = new ArrayList<>();
+				final double[] histogram = new double[ maxRadius + 2 ];
+				for ( int i = start; i < end; i++ )
+				{
+					final HoughCircle circle = fitRadius( centers.get( i ), xs, rowStarts, height, histogram );
+					if ( null != circle )
+						found.add( circle );
+					if ( isCanceled() )
+						break;
+				}
+				return found;
+			} );
+		}
+		final List< HoughCircle > candidates = new ArrayList<>();
+		for ( final List< HoughCircle > found : runAll( radiusTasks ) )
+			candidates.addAll( found );
+
+		if ( isCanceled() )
+			return Collections.emptyList();
+
+		/*
+		 * Non-maxima suppression.
+		 * 
+		 * Rule: when one circle has a center inside one another, we discard
+		 * the one with the highest sensitivity.
+		 */
+
+		Collections.sort( candidates );
+		final List< HoughCircle > retained = NonMaximaSuppression.suppress( candidates,
+				c -> c.getDoublePosition( 0 ), c -> c.getDoublePosition( 1 ), HoughCircle::getRadius );
+
+		statusService.showProgress( 1, 1 );
+		return retained;
+	}
+
+	/**
+	 * Votes for the centers located along the normal of the voter, on both
+	 * sides, for all the radiuses of the range. A pixel is not voted for twice
+	 * in a row. Only the rows from <code>rowMin</code>, inclusive, to
+	 * <code>rowMax</code>, exclusive, are written.
+	 */
+	private void voteAlongNormal( final int x0, final int y0, final double theta, final int[] acc, final int width, final int rowMin, final int rowMax )
+	{
+		final double c = Math.cos( theta );
+		final double s = Math.sin( theta );
+		for ( int sign = -1; sign <= 1; sign += 2 )
+		{
+			int last = -1;
+			for ( int r = minRadius; r <= maxRadius; r++ )
+			{
+				final int x = ( int ) Math.round( x0 + sign * r * c );
+				final int y = ( int ) Math.round( y0 + sign * r * s );
+				if ( x < 0 || x >= width || y < rowMin || y >= rowMax )
+					continue;
+				final int index = x + y * width;
+				if ( index == last )
+					continue;
+				acc[ index ]++;
+				last = index;
+			}
+		}
+	}
+
+	/**
+	 * Builds the histogram of the distances between the specified center and
+	 * the voters, and returns the circle of the radius with the best
+	 * sensitivity, or <code>null</code> if it does not pass the sensitivity.
+	 * Only the voters of each row within reach of the max radius are visited,
+	 * found by binary search since voters are sorted by X in each row. The
+	 * histogram is filled from <code>minRadius - 1</code> to
+	 * <code>maxRadius + 1</code>, so that the radius can be refined on the
+	 * bounds of the range.
+	 */
+	private HoughCircle fitRadius( final double[] center, final int[] xs, final int[] rowStarts, final int height, final double[] histogram )
+	{
+		final double cx = center[ 0 ];
+		final double cy = center[ 1 ];
+		Arrays.fill( histogram, 0. );
+		final int rLow = Math.max( 0, minRadius - 1 );
+		final int rHigh = maxRadius + 1;
+		final double reach = rHigh + 0.5;
+		final int yStart = Math.max( 0, ( int ) Math.ceil( cy - reach ) );
+		final int yEnd = Math.min( height - 1, ( int ) Math.floor( cy + reach ) );
+		for ( int y = yStart; y <= yEnd; y++ )
+		{
+			final double dy = y - cy;
+			final double halfWidth = Math.sqrt( Math.max( 0., reach * reach - dy * dy ) );
+			final int from = rowStarts[ y ];
+			final int to = rowStarts[ y + 1 ];
+			final int start = lowerBound( xs, from, to, ( int ) Math.ceil( cx - halfWidth ) );
+			final int end = lowerBound( xs, start, to, ( int ) Math.floor( cx + halfWidth ) + 1 );
+			for ( int v = start; v < end; v++ )
+			{
+				final double dx = xs[ v ] - cx;
+				final int r = ( int ) Math.round( Math.sqrt( dx * dx + dy * dy ) );
+				if ( r >= rLow && r <= rHigh )
+					histogram[ r ]++;
+			}
+		}
+
+		// Best sensitivity is for the largest ratio of votes over radius.
+		int best = -1;
+		for ( int r = minRadius; r <= maxRadius; r++ )
+			if ( histogram[ r ] > 0 && ( best < 0 || histogram[ r ] / r > histogram[ best ] / best ) )
+				best = r;
+		if ( best < 0 )
+			return null;
+
+		final double ls = 2. * Math.PI * best * circleThickness / histogram[ best ];
+		if ( ls > sensitivity )
+			return null;
+
+		final double radius = best + parabolicOffset( histogram[ best - 1 ], histogram[ best ], histogram[ best + 1 ] );
+		return new HoughCircle( new RealPoint( cx, cy ), radius, circleThickness, ls );
+	}
+
+	/**
+	 * Returns the position of the extremum of the parabola passing through
+	 * the 3 specified values, relative to the center one, clamped to ±0.5.
+	 */
+	private static final double parabolicOffset( final double before, final double center, final double after )
+	{
+		final double denom = before - 2. * center + after;
+		if ( denom >= 0. )
+			return 0.;
+		final double offset = 0.5 * ( before - after ) / denom;
+		return Math.max( -0.5, Math.min( 0.5, offset ) );
+	}
+
+	/**
+	 * Returns the index of the first element of the sorted range of the array,
+	 * from <code>from</code> inclusive to <code>to</code> exclusive, that is
+	 * larger than or equal to the specified value.
+	 */
+	private static final int lowerBound( final int[] sorted, final int from, final int to, final int value )
+	{
+		int lo = from;
+		int hi = to;
+		while ( lo < hi )
+		{
+			final int m = ( lo + hi ) >>> 1;
+			if ( sorted[ m ] < value )
+				lo = m + 1;
+			else
+				hi = m;
+		}
+		return lo;
+	}
+
+	private < R > List< R > runAll( final List< Callable< R > > tasks )
+	{
+		final List< R > results = new ArrayList<>( tasks.size() );
+		try
+		{
+			final List< Future< R > > futures = threadService.getExecutorService().invokeAll( tasks );
+			for ( final Future< R > future : futures )
+				results.add( future.get() );
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			e.printStackTrace();
+		}
+		return results;
+	}
+
+	// -- Cancelable methods --
+
+	/** Reason for cancelation, or null if not canceled. */
+	private String cancelReason;
+
+	@Override
+	public boolean isCanceled()
+	{
+		return cancelReason != null;
+	}
+
+	/** Cancels the command execution, with the given reason for doing so. */
+	@Override
+	public void cancel( final String reason )
+	{
+		cancelReason = reason == null ? "" : reason;
+	}
+
+	@Override
+	public String getCancelReason()
+	{
+		return cancelReason;
+	}
+
+}
@@ -0,0 +1,271 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.app.StatusService;
+import org.scijava.thread.ThreadService;
+import org.scijava.ui.UIService;
+
+import ij.measure.ResultsTable;
+import net.imagej.Dataset;
+import net.imagej.DefaultDataset;
+import net.imagej.ImgPlus;
+import net.imagej.circleskinner.CircleSkinnerOp.DetectionMethod;
+import net.imagej.circleskinner.hough.AccumulatorType;
+import net.imagej.circleskinner.hough.HoughCircle;
+import net.imagej.ops.OpService;
+import net.imagej.ops.special.computer.Computers;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.cache.img.DiskCachedCellImg;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
+
+/**
+ * Runs {@link CircleSkinnerOp} on an image of thick rings, with the different
+ * Hough transform strategies.
+ *
+ * @author agent
+ */
+public class CircleSkinnerOpTest
+{
+
+	private static final int WIDTH = 256;
+
+	private static final int HEIGHT = 224;
+
+	private static final int THICKNESS = 6;
+
+	private static final int MIN_RADIUS = 24;
+
+	private static final int MAX_RADIUS = 48;
+
+	/**
+	 * The X, Y and radius of the rings in the image.
+	 */
+	private static final double[][] RINGS = new double[][] {
+			{ 80, 80, 32 },
+			{ 176, 112, 40 },
+			{ 88, 168, 28 } };
+
+	/**
+	 * The names of the parameters of {@link CircleSkinnerOp}, in the order in
+	 * which they are passed to it.
+	 */
+	private static final List< String > PARAMETERS = Arrays.asList(
+			"segmentationChannel", "circleThickness", "thresholdFactor", "sensitivity",
+			"minRadius", "maxRadius", "stepRadius", "maxNDetections",
+			"detectionMethod", "showResultsTable", "doKeepVoteImg",
+			"voteAlongNormals", "normalTolerance", "accumulatorType",
+			"streamVotes", "coarseToFine", "thinRidges",
+			"voterFraction", "stratifiedSubsampling", "subsamplingSeed", "refineAtFullDensity",
+			"weightVotes", "cacheDirectory", "cacheBudget", "roi",
+			"allowFftHoughTransform", "splitRadiusVotes",
+			"coarseRadiusSweep", "coarseRadiusStep", "dogRadiusSigma", "parabolicFit" );
+
+	private static final Object[] DEFAULTS = new Object[] {
+			0l, THICKNESS, 100., 20.,
+			MIN_RADIUS, MAX_RADIUS, 2, Integer.MAX_VALUE,
+			DetectionMethod.FAST, false, false,
+			false, 10., null,
+			false, false, false,
+			1., false, 1l, true,
+			false, null, 1024, null,
+			false, false,
+			false, 0, -1., false };
+
+	private static Context context;
+
+	private static OpService ops;
+
+	private static Dataset dataset;
+
+	@BeforeClass
+	public static void setUp()
+	{
+		context = new Context( OpService.class, ThreadService.class, StatusService.class, UIService.class );
+		ops = context.service( OpService.class );
+		dataset = new DefaultDataset( context, new ImgPlus<>( rings() ) );
+	}
+
+	@AfterClass
+	public static void tearDown()
+	{
+		context.dispose();
+	}
+
+	@Test
+	public void testCoarseToFineFindsTheRings()
+	{
+		assertRingsFound( "Standard", detect() );
+		assertRingsFound( "Coarse-to-fine", detect( "coarseToFine", true ) );
+	}
+
+	@Test
+	public void testThinnedRidgesFindTheRings()
+	{
+		assertRingsFound( "Thinned ridges", detect( "thinRidges", true ) );
+	}
+
+	@Test
+	public void testCoarseRadiusSweepFindsTheRings()
+	{
+		assertRingsFound( "Coarse radius sweep", detect( "coarseRadiusSweep", true ) );
+		assertRingsFound( "Coarse radius sweep with a step of 8", detect( "coarseRadiusSweep", true, "coarseRadiusStep", 8 ) );
+	}
+
+	@Test
+	public void testParabolicFitFindsTheRings()
+	{
+		for ( final DetectionMethod method : new DetectionMethod[] { DetectionMethod.FAST, DetectionMethod.ACCURATE, DetectionMethod.PROJECTION } )
+		{
+			// The DoG is lower than the votes.
+			final double sensitivity = ( method == DetectionMethod.ACCURATE ) ? 100. : 20.;
+			assertRingsFound( method + " with parabolic fit", detect( "detectionMethod", method, "sensitivity", sensitivity, "parabolicFit", true ) );
+		}
+	}
+
+	@Test
+	public void testDiskCacheIsOptIn()
+	{
+		final Img< ? > automatic = run( "doKeepVoteImg", true ).getVoteImg();
+		assertTrue( "Automatic accumulator: " + automatic.getClass(), automatic instanceof ArrayImg );
+
+		final CircleSkinnerOp< DoubleType > diskCached = run( "doKeepVoteImg", true, "accumulatorType", AccumulatorType.DISK_INT );
+		assertTrue( "Disk-cached accumulator: " + diskCached.getVoteImg().getClass(), diskCached.getVoteImg() instanceof DiskCachedCellImg );
+		assertRingsFound( "Disk-cached accumulator", diskCached.getCircles() );
+	}
+
+	@Test
+	public void testRegionOfInterestOnlyHasItsCircles()
+	{
+		final double[] ring = RINGS[ 1 ];
+		final Interval roi = Intervals.createMinMax(
+				( long ) ring[ 0 ] - 10, ( long ) ring[ 1 ] - 10,
+				( long ) ring[ 0 ] + 10, ( long ) ring[ 1 ] + 10 );
+		final List< HoughCircle > circles = detect( "roi", roi );
+		assertTrue( "Found " + circles.size() + " circles", circles.size() >= 1 );
+		for ( final HoughCircle circle : circles )
+			assertTrue( "Circle outside of the ROI: " + circle, Intervals.contains( roi, circle ) );
+
+		final HoughCircle best = circles.get( 0 );
+		assertEquals( "X", ring[ 0 ], best.getDoublePosition( 0 ), 1. );
+		assertEquals( "Y", ring[ 1 ], best.getDoublePosition( 1 ), 1. );
+		assertEquals( "Radius", ring[ 2 ], best.getRadius(), 1. );
+	}
+
+	/**
+	 * Runs {@link CircleSkinnerOp} on the ring image and returns the circles
+	 * it found.
+	 *
+	 * @see #run(Object...)
+	 */
+	private static List< HoughCircle > detect( final Object... namesAndValues )
+	{
+		return run( namesAndValues ).getCircles();
+	}
+
+	/**
+	 * Runs {@link CircleSkinnerOp} on the ring image, with the default
+	 * parameters of this test except the specified ones, given as name and
+	 * value pairs.
+	 */
+	private static CircleSkinnerOp< DoubleType > run( final Object... namesAndValues )
+	{
+		final Object[] args = DEFAULTS.clone();
+		for ( int i = 0; i < namesAndValues.length; i += 2 )
+		{
+			final int index = PARAMETERS.indexOf( namesAndValues[ i ] );
+			assertTrue( "Unknown parameter: " + namesAndValues[ i ], index >= 0 );
+			args[ index ] = namesAndValues[ i + 1 ];
+		}
+		final ResultsTable table = CircleSkinnerOp.createResulsTable();
+		@SuppressWarnings( "unchecked" )
+		final CircleSkinnerOp< DoubleType > op = ( CircleSkinnerOp< DoubleType > ) Computers.unary( ops, CircleSkinnerOp.class, table, dataset, args );
+		op.compute( dataset, table );
+		return op;
+	}
+
+	/**
+	 * Checks that the best circles of the specified list are the rings, to
+	 * one pixel on the position and on the radius.
+	 */
+	private static void assertRingsFound( final String message, final List< HoughCircle > circles )
+	{
+		assertTrue( message + ": found " + circles.size() + " circles", circles.size() >= RINGS.length );
+		for ( final double[] ring : RINGS )
+		{
+			int found = 0;
+			for ( final HoughCircle circle : circles.subList( 0, RINGS.length ) )
+				if ( Math.abs( circle.getDoublePosition( 0 ) - ring[ 0 ] ) <= 1.
+						&& Math.abs( circle.getDoublePosition( 1 ) - ring[ 1 ] ) <= 1.
+						&& Math.abs( circle.getRadius() - ring[ 2 ] ) <= 1. )
+					found++;
+			assertEquals( message + ": ring at " + ring[ 0 ] + ", " + ring[ 1 ] + " with radius " + ring[ 2 ] + " in " + circles, 1, found );
+		}
+	}
+
+	/**
+	 * Creates an image of bright rings with a Gaussian profile across their
+	 * crown, on a dark background.
+	 */
+	private static Img< DoubleType > rings()
+	{
+		final Img< DoubleType > img = ArrayImgs.doubles( WIDTH, HEIGHT );
+		final double sigma = THICKNESS / 4.;
+		final Cursor< DoubleType > cursor = img.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			double value = 0.;
+			for ( final double[] ring : RINGS )
+			{
+				final double dx = cursor.getDoublePosition( 0 ) - ring[ 0 ];
+				final double dy = cursor.getDoublePosition( 1 ) - ring[ 1 ];
+				final double dist = Math.sqrt( dx * dx + dy * dy ) - ring[ 2 ];
+				value = Math.max( value, 255. * Math.exp( -dist * dist / ( 2. * sigma * sigma ) ) );
+			}
+			cursor.get().set( value );
+		}
+		return img;
+	}
+}
@@ -0,0 +1,124 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner;
+
+import static net.imagej.circleskinner.hough.SyntheticRings.CIRCLES;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.scijava.Context;
+
+import net.imagej.circleskinner.hough.SyntheticRings;
+import net.imagej.ops.OpService;
+import net.imagej.ops.special.function.Functions;
+import net.imagej.ops.special.function.UnaryFunctionOp;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Util;
+
+/**
+ * Checks that {@link RidgeThinningOp} keeps a one pixel thick centerline of
+ * the rings.
+ *
+ * @author agent
+ */
+public class RidgeThinningOpTest
+{
+
+	private static Context context;
+
+	private static OpService ops;
+
+	@BeforeClass
+	public static void setUp()
+	{
+		context = SyntheticRings.context();
+		ops = context.service( OpService.class );
+	}
+
+	@AfterClass
+	public static void tearDown()
+	{
+		context.dispose();
+	}
+
+	@Test
+	public void testThinnedRidgesAreCenterlines()
+	{
+		final Img< DoubleType > ridges = SyntheticRings.ridges();
+		final Img< BitType > mask = SyntheticRings.mask();
+
+		@SuppressWarnings( { "rawtypes", "unchecked" } )
+		final UnaryFunctionOp< RandomAccessibleInterval< DoubleType >, Img< BitType > > thinningOp =
+				( UnaryFunctionOp ) Functions.unary( ops, RidgeThinningOp.class, Img.class,
+						ridges, SyntheticRings.normals(), 1. );
+		final Img< BitType > thinned = thinningOp.calculate( ridges );
+
+		final int[] nKept = new int[ CIRCLES.length ];
+		final RandomAccess< BitType > ra = mask.randomAccess();
+		final Cursor< BitType > cursor = thinned.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			if ( !cursor.get().get() )
+				continue;
+
+			ra.setPosition( cursor );
+			assertTrue( "Thinned pixel outside of the mask at " + Util.printCoordinates( cursor ), ra.get().get() );
+
+			// Each kept pixel is within one pixel of the centerline of a ring.
+			boolean onCenterline = false;
+			for ( int i = 0; i < CIRCLES.length; i++ )
+			{
+				final double dx = cursor.getDoublePosition( 0 ) - CIRCLES[ i ][ 0 ];
+				final double dy = cursor.getDoublePosition( 1 ) - CIRCLES[ i ][ 1 ];
+				if ( Math.abs( Math.sqrt( dx * dx + dy * dy ) - CIRCLES[ i ][ 2 ] ) < 1. )
+				{
+					onCenterline = true;
+					nKept[ i ]++;
+				}
+			}
+			assertTrue( "Thinned pixel off the centerlines at " + Util.printCoordinates( cursor ), onCenterline );
+		}
+
+		// About one pixel per unit length of the circles.
+		for ( int i = 0; i < CIRCLES.length; i++ )
+		{
+			final double perimeter = 2. * Math.PI * CIRCLES[ i ][ 2 ];
+			assertEquals( "Pixels kept on ring " + i, perimeter, nKept[ i ], 0.3 * perimeter );
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner.hough;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares {@link BinCounter} with a map of boxed counts.
+ *
+ * @author agent
+ */
+public class BinCounterTest
+{
+
+	@Test
+	public void testCountsMatchMap()
+	{
+		final BinCounter counter = new BinCounter( 1 << 12 );
+		final Map< Long, Integer > expected = new HashMap<>();
+		final Random random = new Random( 1l );
+		for ( int i = 0; i < 100000; i++ )
+		{
+			// Few distinct keys, so that they collide and get removed often.
+			final long key = ( ( long ) random.nextInt( 8 ) << 42 ) | ( random.nextInt( 16 ) << 21 ) | random.nextInt( 16 );
+			if ( random.nextInt( 4 ) == 0 )
+			{
+				counter.remove( key );
+				expected.remove( key );
+				continue;
+			}
+			final int count = counter.increment( key );
+			assertEquals( "Count of key " + key, expected.merge( key, 1, Integer::sum ).intValue(), count );
+			assertEquals( "Number of bins", expected.size(), counter.size() );
+		}
+	}
+
+	@Test
+	public void testClearsWhenFull()
+	{
+		final BinCounter counter = new BinCounter( 3 );
+		counter.increment( 1l );
+		counter.increment( 1l );
+		counter.increment( 2l );
+		counter.increment( 3l );
+		assertEquals( 3, counter.size() );
+		assertEquals( 3, counter.increment( 1l ) );
+
+		// A fourth bin does not fit: the previous ones are dropped.
+		assertEquals( 1, counter.increment( 4l ) );
+		assertEquals( 1, counter.size() );
+		assertEquals( 1, counter.increment( 1l ) );
+	}
+}
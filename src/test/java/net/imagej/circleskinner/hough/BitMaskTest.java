@@ -0,0 +1,104 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner.hough;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
+
+/**
+ * Compares the packed masks of {@link BitMask} with a pixel-wise threshold.
+ *
+ * @author agent
+ */
+public class BitMaskTest
+{
+
+	private static final int[] THREADS = new int[] { 1, 3, 8 };
+
+	@Test
+	public void testThresholdMatchesPixelwiseThreshold()
+	{
+		// Offset crop, so that the last word is not full.
+		final RandomAccessibleInterval< DoubleType > ridges = Views.interval( SyntheticRings.ridges(), new long[] { 3, 5 }, new long[] { 103, 54 } );
+		final ExecutorService es = Executors.newFixedThreadPool( 8 );
+		try
+		{
+			for ( final int numThreads : THREADS )
+			{
+				final ArrayImg< BitType, LongArray > mask = BitMask.threshold( ridges, 1., numThreads, es );
+				final long[] words = BitMask.getWords( mask );
+				assertEquals( "Number of words with " + numThreads + " threads", ( 101 * 50 + 63 ) / 64, words.length );
+
+				final Cursor< DoubleType > source = Views.flatIterable( ridges ).cursor();
+				final Cursor< BitType > target = mask.cursor();
+				long i = 0;
+				long expectedCount = 0;
+				while ( source.hasNext() )
+				{
+					final boolean expected = source.next().get() > 1.;
+					final String message = "Pixel " + i + " with " + numThreads + " threads";
+					assertEquals( message, expected, target.next().get() );
+					assertEquals( message, expected, ( words[ ( int ) ( i >>> 6 ) ] & ( 1l << ( i & 63 ) ) ) != 0 );
+					if ( expected )
+						expectedCount++;
+					i++;
+				}
+				assertEquals( "Padding bits with " + numThreads + " threads", 0l, words[ words.length - 1 ] >>> ( i & 63 ) );
+				assertEquals( "Count with " + numThreads + " threads", expectedCount, BitMask.count( mask ) );
+			}
+		}
+		finally
+		{
+			es.shutdown();
+		}
+	}
+
+	@Test
+	public void testCountOfUnpackedMask()
+	{
+		final ExecutorService es = Executors.newSingleThreadExecutor();
+		final ArrayImg< BitType, LongArray > packed = BitMask.threshold( SyntheticRings.ridges(), 1., 1, es );
+		es.shutdown();
+		assertEquals( "Words of a view", null, BitMask.getWords( Views.iterable( Views.interval( packed, packed ) ) ) );
+		final long expected = BitMask.count( packed );
+		assertEquals( "Count of a view", expected, BitMask.count( Views.iterable( Views.interval( packed, packed ) ) ) );
+	}
+}
@@ -0,0 +1,130 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner.hough;
+
+import static net.imagej.circleskinner.hough.SyntheticRings.assertSameVotes;
+
+import org.junit.Test;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
+
+/**
+ * Compares the votes of a {@link CircleStencil} with the ones of the midpoint
+ * algorithm of the original Hough transform, for a single voter.
+ *
+ * @author agent
+ */
+public class CircleStencilTest
+{
+
+	private static final int SIZE = 64;
+
+	/**
+	 * Voter positions: in the middle of the plane, and close to a corner so
+	 * that the circle is clipped.
+	 */
+	private static final int[][] VOTERS = new int[][] { { 32, 30 }, { 2, 5 } };
+
+	@Test
+	public void testArrayVotesMatchMidpointAlgorithm()
+	{
+		for ( int radius = 1; radius <= 40; radius++ )
+		{
+			final CircleStencil stencil = new CircleStencil( radius );
+			for ( final int[] voter : VOTERS )
+			{
+				final ArrayImg< DoubleType, DoubleArray > votes = ArrayImgs.doubles( SIZE, SIZE, 1 );
+				stencil.vote( voter[ 0 ], voter[ 1 ], votes.update( null ).getCurrentStorageArray(), 0, stencil.getLinearOffsets( SIZE ), SIZE, SIZE );
+				assertSameVotes( "Radius " + radius + " at " + voter[ 0 ] + ", " + voter[ 1 ], reference( voter, radius ), votes, 0. );
+			}
+		}
+	}
+
+	@Test
+	public void testRandomAccessVotesMatchMidpointAlgorithm()
+	{
+		for ( int radius = 1; radius <= 40; radius++ )
+		{
+			final CircleStencil stencil = new CircleStencil( radius );
+			for ( final int[] voter : VOTERS )
+			{
+				final Img< DoubleType > votes = ArrayImgs.doubles( SIZE, SIZE, 1 );
+				stencil.vote( voter[ 0 ], voter[ 1 ], Views.hyperSlice( votes, 2, 0 ).randomAccess(), SIZE, SIZE );
+				assertSameVotes( "Radius " + radius + " at " + voter[ 0 ] + ", " + voter[ 1 ], reference( voter, radius ), votes, 0. );
+			}
+		}
+	}
+
+	@Test
+	public void testUnsignedShortVotesSaturate()
+	{
+		final int radius = 12;
+		final int nVotes = AccumulatorType.UNSIGNED_SHORT_MAX + 100;
+		final CircleStencil stencil = new CircleStencil( radius );
+		final int[] voter = VOTERS[ 0 ];
+
+		// Through the backing array.
+		final ArrayImg< UnsignedShortType, ShortArray > arrayVotes = ArrayImgs.unsignedShorts( SIZE, SIZE, 1 );
+		final short[] data = arrayVotes.update( null ).getCurrentStorageArray();
+		final int[] offsets = stencil.getLinearOffsets( SIZE );
+		for ( int i = 0; i < nVotes; i++ )
+			stencil.vote( voter[ 0 ], voter[ 1 ], data, 0, offsets, SIZE, SIZE );
+
+		// Through a random access.
+		final Img< UnsignedShortType > cellVotes = new CellImgFactory<>( new UnsignedShortType(), 16 ).create( SIZE, SIZE, 1 );
+		final RandomAccess< UnsignedShortType > ra = Views.hyperSlice( cellVotes, 2, 0 ).randomAccess();
+		for ( int i = 0; i < nVotes; i++ )
+			stencil.vote( voter[ 0 ], voter[ 1 ], ra, SIZE, SIZE );
+
+		final Img< DoubleType > expected = reference( voter, radius );
+		for ( final DoubleType v : expected )
+			v.set( Math.min( AccumulatorType.UNSIGNED_SHORT_MAX, nVotes * v.get() ) );
+		assertSameVotes( "Votes in the backing array", expected, arrayVotes, 0. );
+		assertSameVotes( "Votes through a random access", expected, cellVotes, 0. );
+	}
+
+	private static Img< DoubleType > reference( final int[] voter, final int radius )
+	{
+		final Img< BitType > mask = ArrayImgs.bits( SIZE, SIZE );
+		final RandomAccess< BitType > ra = mask.randomAccess();
+		ra.setPosition( voter );
+		ra.get().set( true );
+		return SyntheticRings.referenceVotes( mask, radius, radius, 1 );
+	}
+}
@@ -0,0 +1,126 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner.hough;
+
+import static net.imagej.circleskinner.hough.SyntheticRings.MAX_RADIUS;
+import static net.imagej.circleskinner.hough.SyntheticRings.MIN_RADIUS;
+import static net.imagej.circleskinner.hough.SyntheticRings.STEP_RADIUS;
+import static net.imagej.circleskinner.hough.SyntheticRings.assertSameVotes;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.scijava.Context;
+
+import net.imagej.ops.OpService;
+import net.imagej.ops.special.function.Functions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+
+/**
+ * Compares the votes of {@link FftHoughTransformOp} with the ones of the
+ * original Hough transform.
+ *
+ * @author agent
+ */
+public class FftHoughTransformOpTest
+{
+
+	private static Context context;
+
+	private static OpService ops;
+
+	private static Img< BitType > mask;
+
+	@BeforeClass
+	public static void setUp()
+	{
+		context = SyntheticRings.context();
+		ops = context.service( OpService.class );
+		mask = SyntheticRings.mask();
+	}
+
+	@AfterClass
+	public static void tearDown()
+	{
+		context.dispose();
+	}
+
+	@Test
+	public void testVotesMatchBaseline()
+	{
+		// With 3 radius steps there is an odd number of planes.
+		for ( final int step : new int[] { STEP_RADIUS, 3 } )
+		{
+			final Img< DoubleType > reference = SyntheticRings.referenceVotes( mask, MIN_RADIUS, MAX_RADIUS, step );
+			for ( final AccumulatorType type : new AccumulatorType[] { AccumulatorType.DOUBLE, AccumulatorType.INT } )
+				for ( final int numThreads : new int[] { 1, 3 } )
+					assertSameVotes( type + ", step " + step + ", " + numThreads + " threads",
+							reference, transform( step, numThreads, type, FftHoughTransformOp.defaultMemoryBudget() ), 0. );
+		}
+	}
+
+	@Test
+	public void testMemoryBudgetLimitsTasks()
+	{
+		// 256 x 256 padded pixels: 1 MB per spectrum, 4 MB for one task.
+		final Img< DoubleType > reference = SyntheticRings.referenceVotes( mask, MIN_RADIUS, MAX_RADIUS, STEP_RADIUS );
+		assertSameVotes( "4 MB", reference, transform( STEP_RADIUS, 8, AccumulatorType.INT, 4 ), 0. );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testRejectsTooSmallBudget()
+	{
+		transform( STEP_RADIUS, 1, AccumulatorType.INT, 3 );
+	}
+
+	@Test
+	public void testRejectsTooLargePaddedSizes()
+	{
+		final long paddedSize = FftHoughTransformOp.paddedSize( 40000, 40000, MAX_RADIUS );
+		assertTrue( "Padded size " + paddedSize, paddedSize > FftHoughTransformOp.MAX_PADDED_SIZE );
+		assertTrue( "Padded size does not overflow", paddedSize > 0 );
+	}
+
+	private static < V extends RealType< V > & NativeType< V > > Img< V > transform( final int step, final int numThreads, final AccumulatorType type, final int memoryBudget )
+	{
+		@SuppressWarnings( { "rawtypes", "unchecked" } )
+		final FftHoughTransformOp< BitType, V > op =
+				( FftHoughTransformOp ) Functions.unary( ops, FftHoughTransformOp.class, RandomAccessibleInterval.class,
+						mask, MIN_RADIUS, MAX_RADIUS, step, numThreads, type, 0., memoryBudget );
+		final Img< V > votes = op.createOutput( mask );
+		op.compute( mask, votes );
+		return votes;
+	}
+}
@@ -0,0 +1,136 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner.hough;
+
+import static net.imagej.circleskinner.hough.SyntheticRings.CIRCLES;
+import static net.imagej.circleskinner.hough.SyntheticRings.MIN_RADIUS;
+import static net.imagej.circleskinner.hough.SyntheticRings.STEP_RADIUS;
+import static net.imagej.circleskinner.hough.SyntheticRings.THICKNESS;
+import static net.imagej.circleskinner.hough.SyntheticRings.assertRingsFound;
+import static net.imagej.circleskinner.hough.SyntheticRings.assertSameCircles;
+import static net.imagej.circleskinner.hough.SyntheticRings.assertSortedSubset;
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.scijava.Context;
+
+import net.imagej.ops.OpService;
+import net.imagej.ops.special.function.Functions;
+import net.imagej.ops.special.function.UnaryFunctionOp;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.real.DoubleType;
+
+/**
+ * Tests {@link HoughCircleDogDetectorOp} on the votes of the synthetic rings.
+ *
+ * @author agent
+ */
+public class HoughCircleDogDetectorOpTest
+{
+
+	/**
+	 * The DoG is lower than the votes, so the rings have a higher
+	 * sensitivity than with the other detectors.
+	 */
+	private static final double DOG_SENSITIVITY = 100.;
+
+	private static Context context;
+
+	private static OpService ops;
+
+	private static Img< DoubleType > votes;
+
+	@BeforeClass
+	public static void setUp()
+	{
+		context = SyntheticRings.context();
+		ops = context.service( OpService.class );
+		votes = SyntheticRings.transform( ops, SyntheticRings.mask() );
+	}
+
+	@AfterClass
+	public static void tearDown()
+	{
+		context.dispose();
+	}
+
+	@Test
+	public void testRadiusSigmasFindTheRings()
+	{
+		// Isotropic, in-plane only, and a narrow sigma along the radius.
+		for ( final double radiusSigma : new double[] { -1., 0., 1. } )
+		{
+			final List< HoughCircle > circles = dog( votes, Integer.MAX_VALUE, radiusSigma );
+			assertRingsFound( "Radius sigma " + radiusSigma, circles, 1. );
+			// Calls do not share state.
+			assertSameCircles( "Radius sigma " + radiusSigma + ", second call", circles, dog( votes, Integer.MAX_VALUE, radiusSigma ), 0. );
+		}
+	}
+
+	@Test
+	public void testMaxNDetectionsKeepsTheBestCircles()
+	{
+		final List< HoughCircle > all = dog( votes, Integer.MAX_VALUE );
+		for ( final int k : new int[] { 1, CIRCLES.length, all.size() - 1, all.size() + 1 } )
+		{
+			final List< HoughCircle > best = dog( votes, k );
+			assertEquals( k + " detections: number of circles", Math.min( k, all.size() ), best.size() );
+			assertSortedSubset( k + " detections", all, best, 1e-6 );
+		}
+		assertRingsFound( CIRCLES.length + " detections", dog( votes, CIRCLES.length ), 1. );
+	}
+
+	@Test
+	public void testParabolicFitFindsTheRings()
+	{
+		assertRingsFound( "Parabolic fit", dog( votes, Integer.MAX_VALUE, -1., true ), 1. );
+	}
+
+	private static List< HoughCircle > dog( final RandomAccessibleInterval< DoubleType > input, final int maxNDetections, final Object... args )
+	{
+		final Object[] allArgs = new Object[ args.length + 6 ];
+		allArgs[ 0 ] = THICKNESS;
+		allArgs[ 1 ] = ( double ) MIN_RADIUS;
+		allArgs[ 2 ] = ( double ) STEP_RADIUS;
+		allArgs[ 3 ] = DOG_SENSITIVITY;
+		allArgs[ 4 ] = false;
+		allArgs[ 5 ] = maxNDetections;
+		System.arraycopy( args, 0, allArgs, 6, args.length );
+		@SuppressWarnings( { "rawtypes", "unchecked" } )
+		final UnaryFunctionOp< RandomAccessibleInterval< DoubleType >, List< HoughCircle > > op =
+				( UnaryFunctionOp ) Functions.unary( ops, HoughCircleDogDetectorOp.class, List.class,
+						input, allArgs );
+		return op.calculate( input );
+	}
+}
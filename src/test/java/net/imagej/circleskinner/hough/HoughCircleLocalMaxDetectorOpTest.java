@@ -0,0 +1,111 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner.hough;
+
+import static net.imagej.circleskinner.hough.SyntheticRings.CIRCLES;
+import static net.imagej.circleskinner.hough.SyntheticRings.assertRingsFound;
+import static net.imagej.circleskinner.hough.SyntheticRings.assertSameCircles;
+import static net.imagej.circleskinner.hough.SyntheticRings.assertSortedSubset;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.scijava.Context;
+
+import net.imagej.ops.OpService;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
+
+/**
+ * Tests {@link HoughCircleLocalMaxDetectorOp} on the votes of the synthetic
+ * rings.
+ *
+ * @author agent
+ */
+public class HoughCircleLocalMaxDetectorOpTest
+{
+
+	private static Context context;
+
+	private static OpService ops;
+
+	private static Img< DoubleType > votes;
+
+	@BeforeClass
+	public static void setUp()
+	{
+		context = SyntheticRings.context();
+		ops = context.service( OpService.class );
+		votes = SyntheticRings.transform( ops, SyntheticRings.mask() );
+	}
+
+	@AfterClass
+	public static void tearDown()
+	{
+		context.dispose();
+	}
+
+	@Test
+	public void testArrayScannerMatchesGenericScanner()
+	{
+		final Img< BitType > mask = SyntheticRings.mask();
+		for ( final AccumulatorType type : new AccumulatorType[] { AccumulatorType.DOUBLE, AccumulatorType.INT, AccumulatorType.UNSIGNED_SHORT } )
+		{
+			final Img< ? > typed = SyntheticRings.transform( ops, mask, 1, null, 10., type );
+			assertNotNull( type + ": backing array", LocalMaxScanner.getBackingArray( typed ) );
+			// A view hides the backing array, so the generic scanner runs.
+			final RandomAccessibleInterval< ? > view = Views.interval( typed, typed );
+			assertNull( type + ": backing array of a view", LocalMaxScanner.getBackingArray( view ) );
+			final List< HoughCircle > expected = SyntheticRings.detect( ops, view );
+			assertRingsFound( type + ": generic scanner", expected, 1. );
+			assertSameCircles( type.toString(), expected, SyntheticRings.detect( ops, typed ), 1e-9 );
+		}
+	}
+
+	@Test
+	public void testMaxNDetectionsKeepsTheBestCircles()
+	{
+		final List< HoughCircle > all = SyntheticRings.detect( ops, votes );
+		for ( final int k : new int[] { 1, CIRCLES.length, all.size() - 1, all.size() + 1 } )
+		{
+			final List< HoughCircle > best = SyntheticRings.detect( ops, votes, false, k );
+			assertEquals( k + " detections: number of circles", Math.min( k, all.size() ), best.size() );
+			assertSortedSubset( k + " detections", all, best, 1e-6 );
+		}
+		assertRingsFound( CIRCLES.length + " detections", SyntheticRings.detect( ops, votes, false, CIRCLES.length ), 1. );
+	}
+}
@@ -0,0 +1,119 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner.hough;
+
+import static net.imagej.circleskinner.hough.SyntheticRings.CIRCLES;
+import static net.imagej.circleskinner.hough.SyntheticRings.MIN_RADIUS;
+import static net.imagej.circleskinner.hough.SyntheticRings.SENSITIVITY;
+import static net.imagej.circleskinner.hough.SyntheticRings.STEP_RADIUS;
+import static net.imagej.circleskinner.hough.SyntheticRings.THICKNESS;
+import static net.imagej.circleskinner.hough.SyntheticRings.assertRingsFound;
+import static net.imagej.circleskinner.hough.SyntheticRings.assertSameCircles;
+
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.scijava.Context;
+
+import net.imagej.ops.OpService;
+import net.imagej.ops.special.function.Functions;
+import net.imagej.ops.special.function.UnaryFunctionOp;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.real.DoubleType;
+
+/**
+ * Compares the circles found by {@link HoughCircleProjectionDetectorOp} with
+ * the ones found by {@link HoughCircleLocalMaxDetectorOp}, on rings that do
+ * not share their center.
+ *
+ * @author agent
+ */
+public class HoughCircleProjectionDetectorOpTest
+{
+
+	private static Context context;
+
+	private static OpService ops;
+
+	private static Img< DoubleType > votes;
+
+	@BeforeClass
+	public static void setUp()
+	{
+		context = SyntheticRings.context();
+		ops = context.service( OpService.class );
+		votes = SyntheticRings.transform( ops, SyntheticRings.mask() );
+	}
+
+	@AfterClass
+	public static void tearDown()
+	{
+		context.dispose();
+	}
+
+	@Test
+	public void testProjectionFindsTheRings()
+	{
+		final List< HoughCircle > circles = project( Integer.MAX_VALUE );
+		assertRingsFound( "Projection", circles, 1. );
+		final List< HoughCircle > dense = SyntheticRings.detect( ops, votes );
+		assertSameCircles( "Best circles", dense.subList( 0, CIRCLES.length ), circles.subList( 0, CIRCLES.length ), 1e-6 );
+	}
+
+	@Test
+	public void testParabolicFitFindsTheRings()
+	{
+		assertRingsFound( "Parabolic fit", project( Integer.MAX_VALUE, true ), 1. );
+	}
+
+	@Test
+	public void testMaxNDetectionsIsAPrefix()
+	{
+		final List< HoughCircle > all = project( Integer.MAX_VALUE );
+		for ( final int k : new int[] { 1, CIRCLES.length, all.size() - 1 } )
+			assertSameCircles( k + " detections", all.subList( 0, k ), project( k ), 1e-6 );
+	}
+
+	private static List< HoughCircle > project( final int maxNDetections )
+	{
+		return project( maxNDetections, false );
+	}
+
+	private static List< HoughCircle > project( final int maxNDetections, final boolean parabolicFit )
+	{
+		@SuppressWarnings( { "rawtypes", "unchecked" } )
+		final UnaryFunctionOp< RandomAccessibleInterval< DoubleType >, List< HoughCircle > > op =
+				( UnaryFunctionOp ) Functions.unary( ops, HoughCircleProjectionDetectorOp.class, List.class,
+						votes, THICKNESS, ( double ) MIN_RADIUS, ( double ) STEP_RADIUS, SENSITIVITY, false, maxNDetections, parabolicFit );
+		return op.calculate( votes );
+	}
+}
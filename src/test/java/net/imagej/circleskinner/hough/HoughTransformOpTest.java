@@ -0,0 +1,296 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner.hough;
+
+import static net.imagej.circleskinner.hough.SyntheticRings.CIRCLES;
+import static net.imagej.circleskinner.hough.SyntheticRings.MAX_RADIUS;
+import static net.imagej.circleskinner.hough.SyntheticRings.MIN_RADIUS;
+import static net.imagej.circleskinner.hough.SyntheticRings.STEP_RADIUS;
+import static net.imagej.circleskinner.hough.SyntheticRings.assertRingsFound;
+import static net.imagej.circleskinner.hough.SyntheticRings.assertSameVotes;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.thread.ThreadService;
+
+import net.imagej.ops.OpService;
+import net.imagej.ops.special.function.Functions;
+import net.imagej.ops.special.function.UnaryFunctionOp;
+import net.imglib2.Cursor;
+import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.DiskCachedCellImg;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Util;
+
+/**
+ * Compares the votes of {@link HoughTransformOp} with the ones of the
+ * original Hough transform.
+ *
+ * @author agent
+ */
+public class HoughTransformOpTest
+{
+
+	private static Context context;
+
+	private static OpService ops;
+
+	private static Img< BitType > mask;
+
+	private static Img< DoubleType > reference;
+
+	@BeforeClass
+	public static void setUp()
+	{
+		context = SyntheticRings.context();
+		ops = context.service( OpService.class );
+		mask = SyntheticRings.mask();
+		reference = SyntheticRings.referenceVotes();
+	}
+
+	@AfterClass
+	public static void tearDown()
+	{
+		context.dispose();
+	}
+
+	@Test
+	public void testVotesDoNotDependOnThreadCount()
+	{
+		for ( final int numThreads : new int[] { 1, 2, 3, 8 } )
+			assertSameVotes( numThreads + " threads", reference, transform( mask, numThreads ), 0. );
+	}
+
+	@Test
+	public void testIntegerAccumulatorsMatchBaseline()
+	{
+		for ( final AccumulatorType type : new AccumulatorType[] { AccumulatorType.INT, AccumulatorType.UNSIGNED_SHORT } )
+			for ( final int numThreads : new int[] { 1, 3 } )
+			{
+				final Img< ? extends RealType< ? > > votes = transform( mask, numThreads, null, 10., type );
+				assertEquals( type + ": pixel type", type.createType().getClass(), votes.firstElement().getClass() );
+				assertSameVotes( type + ", " + numThreads + " threads", reference, votes, 0. );
+			}
+	}
+
+	@Test
+	public void testVotesAlongNormalsPeakAtRingCenters()
+	{
+		final Img< DoubleType > votes = transform( mask, 2, SyntheticRings.normals(), 10. );
+		double total = 0.;
+		for ( final DoubleType v : votes )
+			total += v.get();
+		double referenceTotal = 0.;
+		for ( final DoubleType v : reference )
+			referenceTotal += v.get();
+		// Arcs of ±10 degrees on each side are about 1/9 of the circle.
+		assertTrue( "Votes along normals: " + total + ", on full circles: " + referenceTotal, total < referenceTotal / 4. );
+
+		final RandomAccess< DoubleType > ra = votes.randomAccess();
+		for ( final double[] ring : CIRCLES )
+		{
+			final long[] center = new long[] { ( long ) ring[ 0 ], ( long ) ring[ 1 ], ( long ) ( ring[ 2 ] - MIN_RADIUS ) / STEP_RADIUS };
+			ra.setPosition( center );
+			// Each crown pixel at the right distance votes once for the center.
+			final double expected = 2. * Math.PI * ring[ 2 ];
+			assertEquals( "Votes at the center of " + Util.printCoordinates( center ), expected, ra.get().get(), 0.25 * expected );
+		}
+
+		assertRingsFound( "Votes along normals", detect( votes ), 1. );
+	}
+
+	@Test
+	public void testVoterSubsamplingIsReproducible()
+	{
+		double referenceTotal = 0.;
+		for ( final DoubleType v : reference )
+			referenceTotal += v.get();
+
+		final double fraction = 0.3;
+		for ( final boolean stratified : new boolean[] { false, true } )
+		{
+			final String message = stratified ? "Stratified" : "Random";
+			final Img< DoubleType > votes = transform( mask, 1, null, 10., null, fraction, stratified, 5l );
+			assertSameVotes( message + ", 3 threads", votes, transform( mask, 3, null, 10., null, fraction, stratified, 5l ), 0. );
+
+			// Selected voters cast the same votes as without subsampling.
+			double total = 0.;
+			final Cursor< DoubleType > cursor = votes.localizingCursor();
+			final RandomAccess< DoubleType > ra = reference.randomAccess();
+			while ( cursor.hasNext() )
+			{
+				cursor.fwd();
+				ra.setPosition( cursor );
+				assertTrue( message + ": votes at " + Util.printCoordinates( cursor ), cursor.get().get() <= ra.get().get() );
+				total += cursor.get().get();
+			}
+			assertEquals( message + ": fraction of the votes", fraction, total / referenceTotal, 0.05 );
+
+			final Img< DoubleType > otherSeed = transform( mask, 1, null, 10., null, fraction, stratified, 6l );
+			boolean differs = false;
+			final Cursor< DoubleType > c1 = votes.cursor();
+			final Cursor< DoubleType > c2 = otherSeed.cursor();
+			while ( c1.hasNext() )
+				differs |= c1.next().get() != c2.next().get();
+			assertTrue( message + ": another seed selects other voters", differs );
+		}
+	}
+
+	@Test
+	public void testFusedThresholdMatchesMask()
+	{
+		final Img< DoubleType > ridges = SyntheticRings.ridges();
+		final ExecutorService es = context.service( ThreadService.class ).getExecutorService();
+		final long nMask = BitMask.count( BitMask.threshold( ridges, 1., 3, es ) );
+		long expected = 0;
+		for ( final BitType b : mask )
+			if ( b.get() )
+				expected++;
+		assertEquals( "Pixels in the packed mask", expected, nMask );
+
+		for ( final int numThreads : new int[] { 1, 3 } )
+		{
+			@SuppressWarnings( { "rawtypes", "unchecked" } )
+			final HoughTransformOp< DoubleType, DoubleType > op =
+					( HoughTransformOp ) Functions.unary( ops, HoughTransformOp.class, RandomAccessibleInterval.class,
+							ridges, MIN_RADIUS, MAX_RADIUS, STEP_RADIUS, numThreads, null, 10., null, 1., false, 1l, 1. );
+			final Img< DoubleType > votes = op.createOutput( ridges );
+			op.compute( ridges, votes );
+			assertSameVotes( "Fused threshold, " + numThreads + " threads", reference, votes, 0. );
+			assertEquals( "Voters, " + numThreads + " threads", nMask, op.getNVoters() );
+		}
+	}
+
+	@Test
+	public void testSparseAccumulatorMatchesBaseline()
+	{
+		for ( final int numThreads : new int[] { 1, 3 } )
+		{
+			final Img< IntType > votes = transform( mask, numThreads, null, 10., AccumulatorType.SPARSE_INT );
+			assertTrue( "Sparse vote image", votes instanceof SparseVoteImg );
+			assertSameVotes( "Sparse, " + numThreads + " threads", reference, votes, 0. );
+		}
+
+		// A single voter near the corner of a large image only fills one tile per plane.
+		final Img< BitType > single = ArrayImgs.bits( 8 * SparseVoteImg.TILE_SIZE, 8 * SparseVoteImg.TILE_SIZE );
+		final RandomAccess< BitType > ra = single.randomAccess();
+		ra.setPosition( new long[] { MAX_RADIUS, MAX_RADIUS } );
+		ra.get().set( true );
+		final Img< IntType > votes = transform( single, 2, null, 10., AccumulatorType.SPARSE_INT );
+		assertEquals( "Allocated tiles", votes.dimension( 2 ), ( ( SparseVoteImg ) votes ).getNAllocatedTiles() );
+		assertSameVotes( "Single voter", SyntheticRings.referenceVotes( single, MIN_RADIUS, MAX_RADIUS, STEP_RADIUS ), votes, 0. );
+	}
+
+	@Test
+	public void testDiskAccumulatorMatchesBaseline() throws IOException
+	{
+		final File directory = Files.createTempDirectory( "votes" ).toFile();
+		directory.deleteOnExit();
+		for ( final int numThreads : new int[] { 1, 3 } )
+		{
+			// A budget of 1 MB keeps only a few cells in memory.
+			final Img< IntType > votes = transform( mask, numThreads, null, 10., AccumulatorType.DISK_INT,
+					1., false, 1l, 0., false, directory, 1 );
+			assertTrue( "Disk-cached vote image", votes instanceof DiskCachedCellImg );
+			assertSameVotes( "Disk cached, " + numThreads + " threads", reference, votes, 0. );
+		}
+	}
+
+	@Test
+	public void testLazyAccumulatorMatchesBaseline()
+	{
+		for ( final int numThreads : new int[] { 1, 3 } )
+		{
+			final Img< IntType > votes = transform( mask, numThreads, null, 10., AccumulatorType.LAZY_INT );
+			assertTrue( "Lazy vote image", votes instanceof CachedCellImg );
+			assertSameVotes( "Lazy, " + numThreads + " threads", reference, votes, 0. );
+		}
+	}
+
+	@Test
+	public void testSplitVotesFindRingsBetweenPlanes()
+	{
+		// With a step of 4 from 9, every ring radius is 3/4 of the way between two planes.
+		final List< HoughCircle > split = detectWithStep( 9, 4, true );
+		assertRingsFound( "Split votes", split, 0.5 );
+
+		// Plain votes snap the radii to the nearest plane.
+		final List< HoughCircle > plain = detectWithStep( 9, 4, false );
+		assertRingsFound( "Plain votes", plain, 1.5 );
+		for ( int i = 0; i < CIRCLES.length; i++ )
+		{
+			final double r = plain.get( i ).getRadius();
+			assertEquals( "Plain votes: radius " + r + " on a plane", 0., Math.IEEEremainder( r - 9., 4. ), 0.2 );
+		}
+	}
+
+	private static List< HoughCircle > detectWithStep( final int minRadius, final int stepRadius, final boolean fractional )
+	{
+		@SuppressWarnings( { "rawtypes", "unchecked" } )
+		final HoughTransformOp< BitType, DoubleType > op =
+				( HoughTransformOp ) Functions.unary( ops, HoughTransformOp.class, RandomAccessibleInterval.class,
+						mask, minRadius, MAX_RADIUS + 1, stepRadius, 2, null, 10., null, 1., false, 1l, 0., false, null, 1024, fractional );
+		final Img< DoubleType > votes = op.createOutput( mask );
+		op.compute( mask, votes );
+		@SuppressWarnings( { "rawtypes", "unchecked" } )
+		final UnaryFunctionOp< RandomAccessibleInterval< DoubleType >, List< HoughCircle > > detector =
+				( UnaryFunctionOp ) Functions.unary( ops, HoughCircleLocalMaxDetectorOp.class, List.class,
+						votes, SyntheticRings.THICKNESS, ( double ) minRadius, ( double ) stepRadius, SyntheticRings.SENSITIVITY, fractional );
+		return detector.calculate( votes );
+	}
+
+	private static < V extends RealType< V > & NativeType< V > > Img< V > transform( final IterableInterval< ? > input, final Object... args )
+	{
+		return SyntheticRings.transform( ops, input, args );
+	}
+
+	private static List< HoughCircle > detect( final RandomAccessibleInterval< ? > votes )
+	{
+		return SyntheticRings.detect( ops, votes );
+	}
+}
@@ -0,0 +1,108 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner.hough;
+
+import static net.imagej.circleskinner.hough.SyntheticRings.MAX_RADIUS;
+import static net.imagej.circleskinner.hough.SyntheticRings.MIN_RADIUS;
+import static net.imagej.circleskinner.hough.SyntheticRings.SENSITIVITY;
+import static net.imagej.circleskinner.hough.SyntheticRings.THICKNESS;
+import static net.imagej.circleskinner.hough.SyntheticRings.assertRingsFound;
+import static net.imagej.circleskinner.hough.SyntheticRings.assertSameCircles;
+
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.scijava.Context;
+
+import net.imagej.ops.OpService;
+import net.imagej.ops.special.function.Functions;
+import net.imagej.ops.special.function.UnaryFunctionOp;
+import net.imglib2.img.Img;
+import net.imglib2.type.logic.BitType;
+
+/**
+ * Checks that {@link RandomizedHoughCircleDetectorOp} finds the rings, and
+ * that its results only depend on its seed.
+ *
+ * @author agent
+ */
+public class RandomizedHoughCircleDetectorOpTest
+{
+
+	private static Context context;
+
+	private static OpService ops;
+
+	private static Img< BitType > mask;
+
+	@BeforeClass
+	public static void setUp()
+	{
+		context = SyntheticRings.context();
+		ops = context.service( OpService.class );
+		mask = SyntheticRings.mask();
+	}
+
+	@AfterClass
+	public static void tearDown()
+	{
+		context.dispose();
+	}
+
+	@Test
+	public void testFindsTheRings()
+	{
+		for ( final long seed : new long[] { 1l, 2l, 3l } )
+			assertRingsFound( "Seed " + seed, detect( seed, 1 << 16 ), 1. );
+	}
+
+	@Test
+	public void testSameSeedGivesSameCircles()
+	{
+		assertSameCircles( "Seed 7", detect( 7l, 1 << 16 ), detect( 7l, 1 << 16 ), 0. );
+	}
+
+	@Test
+	public void testSmallAccumulatorStillFindsTheRings()
+	{
+		// The accumulator is cleared every 64 bins.
+		assertRingsFound( "64 bins", detect( 1l, 64 ), 1. );
+	}
+
+	private static List< HoughCircle > detect( final long seed, final int maxAccumulatorSize )
+	{
+		@SuppressWarnings( { "rawtypes", "unchecked" } )
+		final UnaryFunctionOp< Img< BitType >, List< HoughCircle > > op =
+				( UnaryFunctionOp ) Functions.unary( ops, RandomizedHoughCircleDetectorOp.class, List.class,
+						mask, THICKNESS, MIN_RADIUS, MAX_RADIUS, SENSITIVITY, seed, 1000000, 50000, 3, maxAccumulatorSize );
+		return op.calculate( mask );
+	}
+}
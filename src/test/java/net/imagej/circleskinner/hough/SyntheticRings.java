@@ -0,0 +1,392 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner.hough;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.scijava.Context;
+import org.scijava.app.StatusService;
+import org.scijava.thread.ThreadService;
+
+import net.imagej.ops.OpService;
+import net.imagej.ops.special.function.Functions;
+import net.imagej.ops.special.function.UnaryFunctionOp;
+import net.imglib2.Cursor;
+import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.BooleanType;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Synthetic images of rings shared by the tests of the Hough transforms and of
+ * the circle detectors, with the votes the original Hough transform casts for
+ * them.
+ *
+ * @author agent
+ */
+public class SyntheticRings
+{
+
+	public static final int WIDTH = 128;
+
+	public static final int HEIGHT = 112;
+
+	public static final int MIN_RADIUS = 10;
+
+	public static final int MAX_RADIUS = 24;
+
+	public static final int STEP_RADIUS = 2;
+
+	public static final double THICKNESS = 2.;
+
+	public static final double SENSITIVITY = 10.;
+
+	/**
+	 * X, Y and radius of the rings. Radiuses are on the radius grid.
+	 */
+	public static final double[][] CIRCLES = new double[][] {
+			{ 40., 40., 16. },
+			{ 88., 56., 20. },
+			{ 44., 84., 12. } };
+
+	private SyntheticRings()
+	{}
+
+	/**
+	 * Creates a context with the services the ops of this plugin need.
+	 *
+	 * @return a new context.
+	 */
+	public static Context context()
+	{
+		return new Context( OpService.class, ThreadService.class, StatusService.class );
+	}
+
+	/**
+	 * Returns the distance to the nearest ring crown, and the index of this
+	 * ring, for the specified position.
+	 */
+	private static double[] nearestRing( final double x, final double y )
+	{
+		double best = Double.POSITIVE_INFINITY;
+		int index = -1;
+		for ( int i = 0; i < CIRCLES.length; i++ )
+		{
+			final double dx = x - CIRCLES[ i ][ 0 ];
+			final double dy = y - CIRCLES[ i ][ 1 ];
+			final double dist = Math.abs( Math.sqrt( dx * dx + dy * dy ) - CIRCLES[ i ][ 2 ] );
+			if ( dist < best )
+			{
+				best = dist;
+				index = i;
+			}
+		}
+		return new double[] { best, index };
+	}
+
+	/**
+	 * Creates a mask in which the pixels within half the thickness of a ring
+	 * are on.
+	 *
+	 * @return a new mask.
+	 */
+	public static Img< BitType > mask()
+	{
+		final Img< BitType > img = ArrayImgs.bits( WIDTH, HEIGHT );
+		final Cursor< BitType > cursor = img.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			if ( nearestRing( cursor.getDoublePosition( 0 ), cursor.getDoublePosition( 1 ) )[ 0 ] <= THICKNESS / 2. )
+				cursor.get().set( true );
+		}
+		return img;
+	}
+
+	/**
+	 * Creates an image of bright rings on a dark background, whose values
+	 * decrease away from the ring centerlines. They are at least 2 in the
+	 * pixels of {@link #mask()} and below 1 elsewhere.
+	 *
+	 * @return a new image.
+	 */
+	public static Img< DoubleType > ridges()
+	{
+		final Img< DoubleType > img = ArrayImgs.doubles( WIDTH, HEIGHT );
+		final Cursor< DoubleType > cursor = img.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			final double dist = nearestRing( cursor.getDoublePosition( 0 ), cursor.getDoublePosition( 1 ) )[ 0 ];
+			final double margin = THICKNESS / 2. - dist;
+			cursor.get().set( ( margin >= 0. ) ? 2. + margin : Math.max( 0., 1. + margin ) );
+		}
+		return img;
+	}
+
+	/**
+	 * Creates the image of the ridge normals of the rings, that is the angle
+	 * of the direction from the center of the nearest ring.
+	 *
+	 * @return a new image of angles, in radians.
+	 */
+	public static Img< DoubleType > normals()
+	{
+		final Img< DoubleType > img = ArrayImgs.doubles( WIDTH, HEIGHT );
+		final Cursor< DoubleType > cursor = img.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			final double x = cursor.getDoublePosition( 0 );
+			final double y = cursor.getDoublePosition( 1 );
+			final double[] center = CIRCLES[ ( int ) nearestRing( x, y )[ 1 ] ];
+			cursor.get().set( Math.atan2( y - center[ 1 ], x - center[ 0 ] ) );
+		}
+		return img;
+	}
+
+	/**
+	 * Computes the votes of the original Hough transform: each foreground
+	 * pixel votes for the circles of the midpoint algorithm, one radius at a
+	 * time.
+	 *
+	 * @param input
+	 *            the mask.
+	 * @param minRadius
+	 *            the min radius.
+	 * @param maxRadius
+	 *            the max radius.
+	 * @param stepRadius
+	 *            the radius step.
+	 * @return a new vote image.
+	 */
+	public static < B extends BooleanType< B > > Img< DoubleType > referenceVotes( final IterableInterval< B > input, final int minRadius, final int maxRadius, final int stepRadius )
+	{
+		final int nRadiuses = ( maxRadius - minRadius ) / stepRadius + 1;
+		final Img< DoubleType > votes = ArrayImgs.doubles( input.dimension( 0 ), input.dimension( 1 ), nRadiuses );
+		final Cursor< B > cursor = input.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			if ( !cursor.get().get() )
+				continue;
+
+			for ( int i = 0; i < nRadiuses; i++ )
+			{
+				final RandomAccess< DoubleType > ra = Views.extendZero( Views.hyperSlice( votes, 2, i ) ).randomAccess();
+				midPointAlgorithm( cursor.getIntPosition( 0 ), cursor.getIntPosition( 1 ), minRadius + i * stepRadius, ra );
+			}
+		}
+		return votes;
+	}
+
+	/**
+	 * Computes the votes of the original Hough transform for {@link #mask()},
+	 * with the default radius range.
+	 *
+	 * @return a new vote image.
+	 */
+	public static Img< DoubleType > referenceVotes()
+	{
+		return referenceVotes( mask(), MIN_RADIUS, MAX_RADIUS, STEP_RADIUS );
+	}
+
+	/**
+	 * Computes the Hough transform of the specified input with the default
+	 * radius range. The arguments are the ones of {@link HoughTransformOp}
+	 * after the radius range.
+	 */
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	public static < V extends RealType< V > & NativeType< V > > Img< V > transform( final OpService ops, final IterableInterval< ? > input, final Object... args )
+	{
+		final Object[] allArgs = new Object[ args.length + 3 ];
+		allArgs[ 0 ] = MIN_RADIUS;
+		allArgs[ 1 ] = MAX_RADIUS;
+		allArgs[ 2 ] = STEP_RADIUS;
+		System.arraycopy( args, 0, allArgs, 3, args.length );
+		final HoughTransformOp op = ( HoughTransformOp ) Functions.unary( ops, HoughTransformOp.class, RandomAccessibleInterval.class,
+				input, allArgs );
+		final Img< V > votes = op.createOutput( ( IterableInterval ) input );
+		op.compute( input, votes );
+		return votes;
+	}
+
+	/**
+	 * Detects circles in the specified vote image, with the local max
+	 * detector and the default settings. The arguments are the ones of
+	 * {@link HoughCircleLocalMaxDetectorOp} after the sensitivity.
+	 */
+	public static List< HoughCircle > detect( final OpService ops, final RandomAccessibleInterval< ? > votes, final Object... args )
+	{
+		final Object[] allArgs = new Object[ args.length + 4 ];
+		allArgs[ 0 ] = THICKNESS;
+		allArgs[ 1 ] = ( double ) MIN_RADIUS;
+		allArgs[ 2 ] = ( double ) STEP_RADIUS;
+		allArgs[ 3 ] = SENSITIVITY;
+		System.arraycopy( args, 0, allArgs, 4, args.length );
+		@SuppressWarnings( { "rawtypes", "unchecked" } )
+		final UnaryFunctionOp< RandomAccessibleInterval< ? >, List< HoughCircle > > op =
+				( UnaryFunctionOp ) Functions.unary( ops, HoughCircleLocalMaxDetectorOp.class, List.class,
+						votes, allArgs );
+		return op.calculate( votes );
+	}
+
+	private static void midPointAlgorithm( final int x0, final int y0, final int radius, final RandomAccess< DoubleType > ra )
+	{
+		final int octantSize = ( int ) Math.floor( ( Math.sqrt( 2 ) * ( radius - 1 ) + 4 ) / 2 );
+
+		int x = 0;
+		int y = radius;
+		int f = 1 - radius;
+		int dx = 1;
+		int dy = -2 * radius;
+
+		for ( int i = 2; i < octantSize; i++ )
+		{
+			if ( f > 0 )
+			{
+				y = y - 1;
+				dy = dy + 2;
+				f = f + dy;
+			}
+			x = x + 1;
+			dx = dx + 2;
+			f = f + dx;
+
+			inc( ra, x0 + x, y0 + y );
+			inc( ra, x0 - x, y0 + y );
+			inc( ra, x0 + x, y0 - y );
+			inc( ra, x0 - x, y0 - y );
+			inc( ra, x0 + y, y0 + x );
+			inc( ra, x0 - y, y0 + x );
+			inc( ra, x0 + y, y0 - x );
+			inc( ra, x0 - y, y0 - x );
+		}
+	}
+
+	private static void inc( final RandomAccess< DoubleType > ra, final int x, final int y )
+	{
+		ra.setPosition( x, 0 );
+		ra.setPosition( y, 1 );
+		ra.get().inc();
+	}
+
+	/**
+	 * Checks that two vote images have the same dimensions and the same
+	 * values, to the specified tolerance.
+	 */
+	public static void assertSameVotes( final String message, final RandomAccessibleInterval< ? extends RealType< ? > > expected, final RandomAccessibleInterval< ? extends RealType< ? > > actual, final double tolerance )
+	{
+		assertEquals( message + ": number of dimensions", expected.numDimensions(), actual.numDimensions() );
+		for ( int d = 0; d < expected.numDimensions(); d++ )
+			assertEquals( message + ": dimension " + d, expected.dimension( d ), actual.dimension( d ) );
+
+		final Cursor< ? extends RealType< ? > > cursor = Views.flatIterable( expected ).localizingCursor();
+		final RandomAccess< ? extends RealType< ? > > ra = actual.randomAccess();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			ra.setPosition( cursor );
+			assertEquals( message + ": votes at " + Util.printCoordinates( cursor ), cursor.get().getRealDouble(), ra.get().getRealDouble(), tolerance );
+		}
+	}
+
+	/**
+	 * Checks that two lists of circles hold the same circles in the same
+	 * order, to the specified tolerance on the position, the radius and the
+	 * sensitivity.
+	 */
+	public static void assertSameCircles( final String message, final List< HoughCircle > expected, final List< HoughCircle > actual, final double tolerance )
+	{
+		assertEquals( message + ": number of circles", expected.size(), actual.size() );
+		for ( int i = 0; i < expected.size(); i++ )
+		{
+			final HoughCircle e = expected.get( i );
+			final HoughCircle a = actual.get( i );
+			assertEquals( message + ": X of circle " + i, e.getDoublePosition( 0 ), a.getDoublePosition( 0 ), tolerance );
+			assertEquals( message + ": Y of circle " + i, e.getDoublePosition( 1 ), a.getDoublePosition( 1 ), tolerance );
+			assertEquals( message + ": radius of circle " + i, e.getRadius(), a.getRadius(), tolerance );
+			assertEquals( message + ": sensitivity of circle " + i, e.getSensitivity(), a.getSensitivity(), tolerance );
+		}
+	}
+
+	/**
+	 * Checks that the specified circles are sorted by sensitivity, and that
+	 * each of them is in the specified list, to the specified tolerance on
+	 * the position, the radius and the sensitivity.
+	 */
+	public static void assertSortedSubset( final String message, final List< HoughCircle > all, final List< HoughCircle > subset, final double tolerance )
+	{
+		for ( int i = 0; i < subset.size(); i++ )
+		{
+			final HoughCircle a = subset.get( i );
+			if ( i > 0 )
+				assertTrue( message + ": circle " + i + " not sorted", subset.get( i - 1 ).getSensitivity() <= a.getSensitivity() );
+			boolean found = false;
+			for ( final HoughCircle e : all )
+				found |= Math.abs( e.getDoublePosition( 0 ) - a.getDoublePosition( 0 ) ) <= tolerance
+						&& Math.abs( e.getDoublePosition( 1 ) - a.getDoublePosition( 1 ) ) <= tolerance
+						&& Math.abs( e.getRadius() - a.getRadius() ) <= tolerance
+						&& Math.abs( e.getSensitivity() - a.getSensitivity() ) <= tolerance;
+			assertTrue( message + ": circle " + a + " not found in " + all, found );
+		}
+	}
+
+	/**
+	 * Checks that the best circles of the specified list are the rings, to
+	 * the specified tolerance on the position and the radius.
+	 */
+	public static void assertRingsFound( final String message, final List< HoughCircle > circles, final double tolerance )
+	{
+		assertTrue( message + ": found " + circles.size() + " circles", circles.size() >= CIRCLES.length );
+		for ( final double[] ring : CIRCLES )
+		{
+			boolean found = false;
+			for ( int i = 0; i < CIRCLES.length; i++ )
+			{
+				final HoughCircle circle = circles.get( i );
+				found |= Math.abs( circle.getDoublePosition( 0 ) - ring[ 0 ] ) <= tolerance
+						&& Math.abs( circle.getDoublePosition( 1 ) - ring[ 1 ] ) <= tolerance
+						&& Math.abs( circle.getRadius() - ring[ 2 ] ) <= tolerance;
+			}
+			assertTrue( message + ": ring at " + ring[ 0 ] + ", " + ring[ 1 ] + " with radius " + ring[ 2 ] + " not found in " + circles, found );
+		}
+	}
+}
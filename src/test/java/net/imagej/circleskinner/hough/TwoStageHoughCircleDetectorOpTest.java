@@ -0,0 +1,145 @@
+/*-
+ * #%L
+ * A Fiji plugin for the automated detection and quantification of circular structure in images.
+ * %%
+ * Copyright (C) 2016 - 2022 My Company, Inc.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package net.imagej.circleskinner.hough;
+
+import static net.imagej.circleskinner.hough.SyntheticRings.CIRCLES;
+import static net.imagej.circleskinner.hough.SyntheticRings.MAX_RADIUS;
+import static net.imagej.circleskinner.hough.SyntheticRings.MIN_RADIUS;
+import static net.imagej.circleskinner.hough.SyntheticRings.SENSITIVITY;
+import static net.imagej.circleskinner.hough.SyntheticRings.THICKNESS;
+import static net.imagej.circleskinner.hough.SyntheticRings.assertRingsFound;
+import static net.imagej.circleskinner.hough.SyntheticRings.assertSameCircles;
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.scijava.Context;
+
+import net.imagej.ops.OpService;
+import net.imagej.ops.special.function.Functions;
+import net.imagej.ops.special.function.UnaryFunctionOp;
+import net.imglib2.Cursor;
+import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
+
+/**
+ * Checks that {@link TwoStageHoughCircleDetectorOp} finds the rings.
+ *
+ * @author agent
+ */
+public class TwoStageHoughCircleDetectorOpTest
+{
+
+	private static Context context;
+
+	private static OpService ops;
+
+	private static Img< BitType > mask;
+
+	private static Img< DoubleType > normals;
+
+	@BeforeClass
+	public static void setUp()
+	{
+		context = SyntheticRings.context();
+		ops = context.service( OpService.class );
+		mask = SyntheticRings.mask();
+		normals = SyntheticRings.normals();
+	}
+
+	@AfterClass
+	public static void tearDown()
+	{
+		context.dispose();
+	}
+
+	@Test
+	public void testFindsTheRings()
+	{
+		final List< HoughCircle > circles = detect( mask, MIN_RADIUS, MAX_RADIUS, 1 );
+		assertRingsFound( "Two-stage", circles, 1. );
+		assertSameCircles( "3 threads", circles, detect( mask, MIN_RADIUS, MAX_RADIUS, 3 ), 0. );
+	}
+
+	@Test
+	public void testRadiusOnTheBoundsOfTheRange()
+	{
+		// The smallest ring has the min radius, the largest one the max radius.
+		final double[] small = CIRCLES[ 2 ];
+		assertFound( "Min radius", small, detect( mask, ( int ) small[ 2 ], MAX_RADIUS, 1 ) );
+		final double[] large = CIRCLES[ 1 ];
+		assertFound( "Max radius", large, detect( mask, MIN_RADIUS, ( int ) large[ 2 ], 1 ) );
+	}
+
+	@Test
+	public void testDoesNotDependOnIterationOrder()
+	{
+		// Cells of 16x16 pixels are iterated one after the other.
+		final Img< BitType > cells = new CellImgFactory<>( new BitType(), 16 ).create( mask );
+		final IterableInterval< BitType > source = Views.flatIterable( mask );
+		final Cursor< BitType > cursor = cells.localizingCursor();
+		final RandomAccess< BitType > ra = mask.randomAccess();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			ra.setPosition( cursor );
+			cursor.get().set( ra.get() );
+		}
+		assertSameCircles( "Cell image", detect( source, MIN_RADIUS, MAX_RADIUS, 1 ), detect( cells, MIN_RADIUS, MAX_RADIUS, 1 ), 0. );
+	}
+
+	private static void assertFound( final String message, final double[] ring, final List< HoughCircle > circles )
+	{
+		for ( final HoughCircle circle : circles )
+		{
+			if ( Math.abs( circle.getDoublePosition( 0 ) - ring[ 0 ] ) > 1. || Math.abs( circle.getDoublePosition( 1 ) - ring[ 1 ] ) > 1. )
+				continue;
+			assertEquals( message + ": radius", ring[ 2 ], circle.getRadius(), 0.5 );
+			return;
+		}
+		throw new AssertionError( message + ": ring at " + ring[ 0 ] + ", " + ring[ 1 ] + " not found in " + circles );
+	}
+
+	private static List< HoughCircle > detect( final IterableInterval< BitType > input, final int minRadius, final int maxRadius, final int numThreads )
+	{
+		@SuppressWarnings( { "rawtypes", "unchecked" } )
+		final UnaryFunctionOp< IterableInterval< BitType >, List< HoughCircle > > op =
+				( UnaryFunctionOp ) Functions.unary( ops, TwoStageHoughCircleDetectorOp.class, List.class,
+						input, THICKNESS, minRadius, maxRadius, SENSITIVITY, normals, numThreads );
+		return op.calculate( input );
+	}
+}